@@ -35,6 +35,10 @@ public class Runner extends Task {
 
     private String mainClassName = null;
 
+    private int threads = 1;
+
+    private boolean interactive = true;
+
     /**
      * Sets the work directory.
      */
@@ -105,6 +109,25 @@ public class Runner extends Task {
         this.mainClassName = mainClass;
     }
 
+    /**
+     * Sets the number of threads that run conversations.
+     */
+    public void setThreads(int threads) {
+        if(threads<1)
+            throw new BuildException("threads must be positive: "+threads);
+        this.threads = threads;
+    }
+
+    /**
+     * If true (the default), waits for the user to hit ENTER
+     * before shutting down the engine. If false, shuts down as soon as
+     * {@link Program#main(Engine)} returns, which is useful for programs
+     * that run to completion, such as load tests.
+     */
+    public void setInteractive(boolean interactive) {
+        this.interactive = interactive;
+    }
+
     public void execute() {
         ClassLoader cl = Thread.currentThread().getContextClassLoader();
         try {
@@ -131,7 +154,7 @@ public class Runner extends Task {
             Thread.currentThread().setContextClassLoader(loader);
 
             engine = EngineFactory.newEngine(getWorkDir(),loader,
-                new ThreadPoolExecutor(1,true));
+                new ThreadPoolExecutor(threads,true));
         } catch (IOException e) {
             throw new BuildException("Unable to initialize engine: "+e.getMessage(),e);
         }
@@ -195,11 +218,13 @@ public class Runner extends Task {
             throw new BuildException(mainClass.getName()+".main() method reported an exception",e);
         }
 
-        System.out.println("Press ENTER to quit");
-        try {
-            new BufferedReader(new InputStreamReader(System.in)).readLine();
-        } catch (IOException e) {
-            throw new Error(e); // impossible
+        if(interactive) {
+            System.out.println("Press ENTER to quit");
+            try {
+                new BufferedReader(new InputStreamReader(System.in)).readLine();
+            } catch (IOException e) {
+                throw new Error(e); // impossible
+            }
         }
 
         try {
@@ -0,0 +1,82 @@
+package dalma.benchmark;
+
+import dalma.Conversation;
+import dalma.ErrorHandler;
+import dalma.helpers.ParallelInstrumentingClassLoader;
+import dalma.helpers.ThreadPoolExecutor;
+import dalma.impl.EngineImpl;
+import dalma.impl.Util;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * {@link EngineImpl} running in a temporary directory, used by benchmarks.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class BenchmarkEngine {
+    public final File root;
+    public final EngineImpl engine;
+
+    /**
+     * Loads workflow classes with the javaflow instrumentation.
+     */
+    private final ClassLoader classLoader;
+
+    /**
+     * The first failure of a workflow, if any.
+     */
+    private volatile Throwable error;
+
+    public BenchmarkEngine(int nThreads) throws IOException {
+        root = File.createTempFile("dalma","benchmark");
+        root.delete();
+        root.mkdirs();
+
+        classLoader = new ParallelInstrumentingClassLoader(
+            BenchmarkEngine.class.getClassLoader(), "dalma.benchmark.workflow.");
+
+        engine = new EngineImpl(root,classLoader,new ThreadPoolExecutor(nThreads,true));
+        engine.setErrorHandler(new ErrorHandler() {
+            public void onError(Throwable t) {
+                // this runs in an executor thread. let the benchmark thread report it
+                if(error==null)
+                    error = t;
+            }
+        });
+    }
+
+    /**
+     * Throws the error of a failed workflow, if any,
+     * as a benchmark result is meaningless if a workflow fails.
+     */
+    public void checkError() {
+        Throwable t = error;
+        if(t!=null)
+            throw new IllegalStateException("A workflow failed",t);
+    }
+
+    /**
+     * Instantiates a workflow class in the {@code dalma.benchmark.workflow} package
+     * with its instrumentation, and starts it as a new conversation.
+     */
+    public Conversation start(Class<? extends Runnable> workflow, int... args) throws Exception {
+        Class<?>[] types = new Class<?>[args.length];
+        Object[] values = new Object[args.length];
+        for( int i=0; i<args.length; i++ ) {
+            types[i] = int.class;
+            values[i] = args[i];
+        }
+        checkError();
+        Runnable r = (Runnable)classLoader.loadClass(workflow.getName())
+            .getConstructor(types).newInstance(values);
+        return engine.createConversation(r);
+    }
+
+    public void stop() throws IOException {
+        engine.stop();
+        Util.deleteRecursive(root);
+        checkError();
+    }
+}
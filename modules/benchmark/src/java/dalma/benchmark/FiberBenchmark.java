@@ -0,0 +1,65 @@
+package dalma.benchmark;
+
+import dalma.benchmark.workflow.SuspendLoop;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a suspend/resume cycle of a fiber through
+ * {@link org.apache.commons.javaflow.Continuation}.
+ *
+ * <p>
+ * Since the conversation has only one fiber, every cycle is also a full
+ * dehydration/hydration round trip of the conversation, so the parameters
+ * control the size of the persisted continuation.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FiberBenchmark {
+    private static final int CYCLES = 100;
+
+    /**
+     * Depth of the call stack at the point of suspension.
+     */
+    @Param({"1","10","100"})
+    public int depth;
+
+    /**
+     * Number of bytes the workflow keeps in its state.
+     */
+    @Param({"0","65536"})
+    public int payloadSize;
+
+    private BenchmarkEngine engine;
+
+    @Setup
+    public void setUp() throws Exception {
+        engine = new BenchmarkEngine(1);
+        engine.engine.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        engine.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public void suspendResume() throws Exception {
+        engine.start(SuspendLoop.class,CYCLES,depth,payloadSize).join();
+        engine.checkError();
+    }
+}
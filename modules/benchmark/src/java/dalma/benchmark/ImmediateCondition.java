@@ -0,0 +1,25 @@
+package dalma.benchmark;
+
+import dalma.Condition;
+
+/**
+ * {@link Condition} that becomes active as soon as a fiber parks on it,
+ * so that a fiber goes through a full suspend/resume cycle without any wait.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class ImmediateCondition extends Condition<Void> {
+    public void onParked() {
+        activate(null);
+    }
+
+    public void interrupt() {
+    }
+
+    public void onLoad() {
+        if(!isActive())
+            activate(null);
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,260 @@
+package dalma.benchmark;
+
+import dalma.Conversation;
+import dalma.Engine;
+import dalma.ErrorHandler;
+import dalma.Executor;
+import dalma.Program;
+import dalma.Resource;
+import dalma.benchmark.workflow.Pinger;
+import dalma.benchmark.workflow.Ponger;
+import dalma.endpoints.invm.Channel;
+import dalma.helpers.Java5Executor;
+import dalma.helpers.ParallelInstrumentingClassLoader;
+import dalma.helpers.ThreadPoolExecutor;
+import dalma.impl.EngineImpl;
+import dalma.impl.Util;
+import dalma.metrics.Histogram;
+import dalma.metrics.MetricsRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * Load generator that drives the engine end to end through
+ * the in-VM endpoint.
+ *
+ * <p>
+ * Starts the given number of {@link Pinger}/{@link Ponger} conversation pairs,
+ * each of which exchanges the given number of messages over
+ * {@link Channel}s, then reports the throughput, the round-trip
+ * latency percentiles, the number of bytes written into the
+ * continuation files, and the GC activity during the run.
+ *
+ * <p>
+ * This class can be run from the command line (see {@link #main(String[])}),
+ * or as a {@link Program} from the Ant {@code Runner} task, in which case
+ * the parameters are configured as resources, like this:
+ *
+ * <pre>
+ * &lt;runner mainClass="dalma.benchmark.LoadTest" threads="4" interactive="false">
+ *   &lt;classpath path="dalma-benchmark.jar" />
+ *   &lt;property key="conversations" value="1000" />
+ *   &lt;property key="messages" value="10" />
+ * &lt;/runner>
+ * </pre>
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class LoadTest extends Program {
+    @Resource(description="number of conversation pairs to run",optional=true)
+    public int conversations = 100;
+
+    @Resource(description="number of round trips each conversation pair makes",optional=true)
+    public int messages = 100;
+
+    @Resource(description="size of the payload of each message in bytes",optional=true)
+    public int payloadSize = 64;
+
+    public void main(Engine engine) throws Exception {
+        run((EngineImpl)engine,System.out);
+    }
+
+    /**
+     * Runs the load test on the given engine, and reports the result.
+     */
+    public void run(EngineImpl engine, PrintStream out) throws Exception {
+        MetricsRegistry.GLOBAL.remove(Pinger.ROUND_TRIP_TIME);
+        Histogram roundTrip = MetricsRegistry.GLOBAL.histogram(Pinger.ROUND_TRIP_TIME);
+        Histogram dehydrationSize = engine.getMetrics().histogram("conversation.dehydrationSize");
+        Histogram queueWaitTime = engine.getMetrics().histogram("engine.queueWaitTime");
+
+        long writes = dehydrationSize.getCount();
+        long bytes = sum(dehydrationSize);
+        Map<String,long[]> gc = getGcStats();
+
+        out.println("Running "+conversations+" conversation pairs, "
+            +messages+" round trips each, with "+payloadSize+" bytes payload");
+
+        long start = System.nanoTime();
+
+        List<Conversation> convs = new ArrayList<Conversation>(conversations*2);
+        for( int i=0; i<conversations; i++ ) {
+            Channel ping = new Channel();
+            Channel pong = new Channel();
+            convs.add(engine.createConversation(newWorkflow(engine,Ponger.class,pong)));
+            convs.add(engine.createConversation(newWorkflow(engine,Pinger.class,ping,pong,messages,payloadSize)));
+        }
+        for (Conversation conv : convs)
+            conv.join();
+
+        double elapsed = (System.nanoTime()-start)/1000000000.0;
+
+        writes = dehydrationSize.getCount()-writes;
+        bytes = sum(dehydrationSize)-bytes;
+
+        out.printf("elapsed         : %.2f s%n", elapsed);
+        out.printf("throughput      : %.1f round trips/s, %.1f conversations/s%n",
+            roundTrip.getCount()/elapsed, convs.size()/elapsed);
+        out.println("round trip (us) : "+format(roundTrip));
+        out.println("queue wait (us) : "+format(queueWaitTime));
+        // conversation.xml, logs and blobs are not included
+        out.printf("continuations   : %d writes, %d bytes (%d bytes/write)%n",
+            writes, bytes, writes==0 ? 0 : bytes/writes);
+        for (Map.Entry<String,long[]> e : getGcStats().entrySet()) {
+            long[] before = gc.get(e.getKey());
+            long[] after = e.getValue();
+            if(before==null)    before = new long[2];
+            out.printf("GC %-12s : %d collections, %d ms%n",
+                e.getKey(), after[0]-before[0], after[1]-before[1]);
+        }
+        Runtime rt = Runtime.getRuntime();
+        out.printf("heap            : %d KB used, %d KB total%n",
+            (rt.totalMemory()-rt.freeMemory())/1024, rt.totalMemory()/1024);
+    }
+
+    /**
+     * Instantiates a workflow by using the engine's {@link ClassLoader},
+     * so that it gets the necessary bytecode instrumentation.
+     */
+    private static Runnable newWorkflow(EngineImpl engine, Class<? extends Runnable> type, Object... args) throws Exception {
+        Class<?> c = engine.getClassLoader().loadClass(type.getName());
+        for (Constructor<?> con : c.getConstructors()) {
+            if(con.getParameterTypes().length==args.length)
+                return (Runnable)con.newInstance(args);
+        }
+        throw new NoSuchMethodException(type.getName());
+    }
+
+    private static long sum(Histogram h) {
+        return Math.round(h.getMean()*h.getCount());
+    }
+
+    private static String format(Histogram h) {
+        return String.format("mean=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d",
+            h.getMean(), h.getPercentile(50), h.getPercentile(90),
+            h.getPercentile(99), h.getPercentile(99.9), h.getMax());
+    }
+
+    /**
+     * Gets the collection count and time of each garbage collector.
+     */
+    private static Map<String,long[]> getGcStats() {
+        Map<String,long[]> r = new LinkedHashMap<String,long[]>();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            r.put(gc.getName(),new long[]{gc.getCollectionCount(),gc.getCollectionTime()});
+        return r;
+    }
+
+    /**
+     * Runs the load test from the command line.
+     */
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        int threads = 1;
+        String executorType = "dalma";
+        File dir = null;
+        boolean keep = false;
+
+        for( int i=0; i<args.length; i++ ) {
+            String arg = args[i];
+            if(arg.equals("-conversations"))
+                test.conversations = Integer.parseInt(args[++i]);
+            else
+            if(arg.equals("-messages"))
+                test.messages = Integer.parseInt(args[++i]);
+            else
+            if(arg.equals("-payloadSize"))
+                test.payloadSize = Integer.parseInt(args[++i]);
+            else
+            if(arg.equals("-threads"))
+                threads = Integer.parseInt(args[++i]);
+            else
+            if(arg.equals("-executor"))
+                executorType = args[++i];
+            else
+            if(arg.equals("-dir"))
+                dir = new File(args[++i]);
+            else
+            if(arg.equals("-keep"))
+                keep = true;
+            else {
+                usage();
+                return;
+            }
+        }
+
+        Executor executor;
+        if(executorType.equals("dalma"))
+            executor = new ThreadPoolExecutor(threads,true);
+        else
+        if(executorType.equals("java5"))
+            executor = new Java5Executor(Executors.newFixedThreadPool(threads));
+        else {
+            usage();
+            return;
+        }
+
+        if(dir==null) {
+            dir = File.createTempFile("dalma","loadtest");
+            dir.delete();
+        }
+        if(dir.exists() && dir.list().length>0) {
+            // the engine would resume the conversations left there
+            System.err.println(dir+" is not empty");
+            System.exit(1);
+        }
+        dir.mkdirs();
+
+        EngineImpl engine = new EngineImpl(dir,
+            new ParallelInstrumentingClassLoader(LoadTest.class.getClassLoader(),"dalma.benchmark.workflow."),
+            executor);
+        engine.setErrorHandler(new ErrorHandler() {
+            public void onError(Throwable t) {
+                // the result is meaningless if a workflow fails
+                t.printStackTrace();
+                System.exit(1);
+            }
+        });
+        engine.start();
+        try {
+            test.run(engine,System.out);
+        } finally {
+            engine.stop();
+            executor.stop(1000);
+            if(!keep)
+                deleteDir(dir);
+        }
+    }
+
+    private static void deleteDir(File dir) {
+        try {
+            Util.deleteRecursive(dir);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java dalma.benchmark.LoadTest [options]");
+        System.err.println("  -conversations N : number of conversation pairs (default 100)");
+        System.err.println("  -messages N      : round trips per conversation pair (default 100)");
+        System.err.println("  -payloadSize N   : payload size of each message in bytes (default 64)");
+        System.err.println("  -threads N       : number of executor threads (default 1)");
+        System.err.println("  -executor TYPE   : 'dalma' for the built-in thread pool (default),");
+        System.err.println("                     'java5' for java.util.concurrent thread pool");
+        System.err.println("  -dir DIR         : directory to persist conversations to (default: temporary directory)");
+        System.err.println("  -keep            : don't delete the directory after the run");
+    }
+
+    private static final long serialVersionUID = 1L;
+}
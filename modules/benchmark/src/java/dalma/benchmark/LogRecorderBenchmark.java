@@ -0,0 +1,52 @@
+package dalma.benchmark;
+
+import dalma.impl.LogRecorder;
+import dalma.impl.Util;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogRecord;
+
+/**
+ * Measures {@link LogRecorder#publish(LogRecord)}, which is invoked
+ * for every log record of every conversation.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LogRecorderBenchmark {
+    private File dir;
+    private LogRecorder recorder;
+    private final LogRecord record = new LogRecord(java.util.logging.Level.INFO,"Sent an e-mail to {0}");
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        dir = File.createTempFile("dalma","log");
+        dir.delete();
+        dir.mkdirs();
+        recorder = new LogRecorder(dir);
+        record.setParameters(new Object[]{"kk@kohsuke.org"});
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        Util.deleteRecursive(dir);
+    }
+
+    @Benchmark
+    public void publish() {
+        recorder.publish(record);
+    }
+}
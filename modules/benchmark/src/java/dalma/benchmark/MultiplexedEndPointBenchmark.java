@@ -0,0 +1,105 @@
+package dalma.benchmark;
+
+import dalma.spi.port.MultiplexedEndPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link MultiplexedEndPoint#handleMessage(Object)}, which routes
+ * every incoming message to the conversation waiting for it.
+ *
+ * <p>
+ * Only conversations can wait for replies through the public API,
+ * so the waiting parties are registered through the package-private
+ * {@code Receiver} interface by reflection. The numbers therefore include
+ * the cost of a dynamic proxy call per message.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MultiplexedEndPointBenchmark {
+    /**
+     * Number of conversations waiting for replies.
+     */
+    @Param({"10","10000"})
+    public int waiters;
+
+    private EndPointImpl endPoint;
+
+    private String[] keys;
+
+    private static final class EndPointImpl extends MultiplexedEndPoint<String,String> {
+        EndPointImpl() {
+            super("benchmark");
+        }
+
+        protected String getKey(String msg) {
+            return msg;
+        }
+
+        protected void onNewMessage(String msg) {
+        }
+
+        protected String send(String msg) {
+            return msg;
+        }
+
+        protected void start() {
+        }
+
+        protected void stop() {
+        }
+
+        void route(String msg) {
+            handleMessage(msg);
+        }
+    }
+
+    private static final class ReceiverImpl implements InvocationHandler {
+        volatile int count;
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            count++;
+            return Boolean.TRUE;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Class<?> receiverType = Class.forName("dalma.spi.port.Receiver");
+        Method register = MultiplexedEndPoint.class.getDeclaredMethod("register",Object.class,receiverType);
+        register.setAccessible(true);
+
+        endPoint = new EndPointImpl();
+        keys = new String[waiters];
+        for( int i=0; i<waiters; i++ ) {
+            keys[i] = "<"+i+"@dalma>";
+            Object receiver = Proxy.newProxyInstance(
+                receiverType.getClassLoader(), new Class<?>[]{receiverType}, new ReceiverImpl());
+            register.invoke(endPoint,keys[i],receiver);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int i;
+    }
+
+    @Benchmark
+    public void handleMessage(Cursor c) {
+        endPoint.route(keys[c.i++%keys.length]);
+    }
+}
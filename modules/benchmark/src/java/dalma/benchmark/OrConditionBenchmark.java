@@ -0,0 +1,75 @@
+package dalma.benchmark;
+
+import dalma.Condition;
+import dalma.impl.OrCondition;
+import dalma.spi.ConditionListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures waiting on many {@link Condition}s at once, which happens
+ * when a workflow waits for any one of many replies.
+ *
+ * <p>
+ * One operation parks on all the branches, activates one of them,
+ * and cancels the rest.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OrConditionBenchmark {
+    @Param({"2","16","256"})
+    public int branches;
+
+    private int next;
+
+    private static final ConditionListener LISTENER = new ConditionListener() {
+        public void onActivated(Condition cond) {
+        }
+    };
+
+    /**
+     * {@link Condition} that's activated explicitly by the benchmark.
+     */
+    private static final class Branch extends Condition<Integer> {
+        boolean parked;
+
+        public void onParked() {
+            parked = true;
+        }
+
+        public void interrupt() {
+            parked = false;
+        }
+
+        public void onLoad() {
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    @Benchmark
+    public Object parkAndActivate() {
+        List<Condition<? extends Integer>> list = new ArrayList<Condition<? extends Integer>>(branches);
+        for( int i=0; i<branches; i++ )
+            list.add(new Branch());
+
+        OrCondition<Integer> or = new OrCondition<Integer>(list);
+        or.park(LISTENER);
+
+        Branch b = (Branch)list.get(next++%branches);
+        b.activate(next);
+        return or.getReturnValue();
+    }
+}
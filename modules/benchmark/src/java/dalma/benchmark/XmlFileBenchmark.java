@@ -0,0 +1,70 @@
+package dalma.benchmark;
+
+import dalma.impl.XmlFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading and writing {@link XmlFile}s,
+ * which is how conversations and the engine are saved.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class XmlFileBenchmark {
+    /**
+     * Number of entries in the persisted object.
+     */
+    @Param({"1","100","10000"})
+    public int size;
+
+    private File file;
+    private XmlFile xmlFile;
+    private Data data;
+
+    public static final class Data {
+        public String title;
+        public List<String> entries = new ArrayList<String>();
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("dalma","xml");
+        xmlFile = new XmlFile(file);
+        data = new Data();
+        data.title = "benchmark";
+        for( int i=0; i<size; i++ )
+            data.entries.add("entry"+i);
+        xmlFile.write(data);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        xmlFile.write(data);
+    }
+
+    @Benchmark
+    public Object read() throws IOException {
+        return xmlFile.read();
+    }
+}
@@ -0,0 +1,13 @@
+/**
+ * JMH benchmarks for the hot paths of the engine.
+ *
+ * <p>
+ * Run them by "maven benchmark" in this module. Classes in the
+ * {@code dalma.benchmark.workflow} package are instrumented at runtime
+ * by {@link dalma.benchmark.BenchmarkEngine}.
+ *
+ * <p>
+ * {@link dalma.benchmark.LoadTest} is an end-to-end load generator.
+ * Run it by "maven loadtest", or from the Ant runner task.
+ */
+package dalma.benchmark;
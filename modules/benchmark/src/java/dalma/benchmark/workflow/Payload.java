@@ -0,0 +1,24 @@
+package dalma.benchmark.workflow;
+
+import java.io.Serializable;
+
+/**
+ * Payload of the messages exchanged by {@link Pinger} and {@link Ponger}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class Payload implements Serializable {
+    /**
+     * {@link System#nanoTime()} when the request was sent.
+     */
+    public final long sentAt;
+
+    public final byte[] data;
+
+    public Payload(long sentAt, byte[] data) {
+        this.sentAt = sentAt;
+        this.data = data;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
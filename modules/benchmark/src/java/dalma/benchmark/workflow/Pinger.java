@@ -0,0 +1,49 @@
+package dalma.benchmark.workflow;
+
+import dalma.endpoints.invm.Channel;
+import dalma.endpoints.invm.Message;
+import dalma.metrics.MetricsRegistry;
+
+import java.io.Serializable;
+
+/**
+ * Workflow that sends requests to a {@link Ponger} one at a time,
+ * and records the round-trip time of each of them.
+ *
+ * <p>
+ * When done, sends a message without a payload to tell
+ * the {@link Ponger} to quit.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class Pinger implements Runnable, Serializable {
+    private final Channel mine;
+    private final Channel peer;
+    private final int messages;
+    private final int payloadSize;
+
+    public Pinger(Channel mine, Channel peer, int messages, int payloadSize) {
+        this.mine = mine;
+        this.peer = peer;
+        this.messages = messages;
+        this.payloadSize = payloadSize;
+    }
+
+    public void run() {
+        for( int i=0; i<messages; i++ ) {
+            mine.send(new Message<Payload>(new Payload(System.nanoTime(),new byte[payloadSize])),peer);
+            Message<Payload> reply = mine.receive();
+            // Histogram isn't serializable, so don't keep it in a local variable
+            MetricsRegistry.GLOBAL.histogram(ROUND_TRIP_TIME).recordTimeSince(reply.payload.sentAt);
+        }
+        mine.send(new Message<Payload>(),peer);
+    }
+
+    /**
+     * Name of the histogram in {@link MetricsRegistry#GLOBAL} that records
+     * the round-trip time in microseconds.
+     */
+    public static final String ROUND_TRIP_TIME = "loadtest.roundTripTime";
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,31 @@
+package dalma.benchmark.workflow;
+
+import dalma.endpoints.invm.Channel;
+import dalma.endpoints.invm.Message;
+
+import java.io.Serializable;
+
+/**
+ * Workflow that echoes back the messages sent by a {@link Pinger},
+ * until it receives a message without a payload.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class Ponger implements Runnable, Serializable {
+    private final Channel mine;
+
+    public Ponger(Channel mine) {
+        this.mine = mine;
+    }
+
+    public void run() {
+        while(true) {
+            Message<Payload> msg = mine.receive();
+            if(msg.payload==null)
+                return;
+            mine.send(new Message<Payload>(msg.payload),msg.getFrom());
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,40 @@
+package dalma.benchmark.workflow;
+
+import dalma.benchmark.ImmediateCondition;
+import dalma.spi.FiberSPI;
+
+import java.io.Serializable;
+
+/**
+ * Workflow that suspends and resumes the given number of times,
+ * from the given depth of the call stack, while holding the given
+ * number of bytes in its state.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class SuspendLoop implements Runnable, Serializable {
+    private final int cycles;
+    private final int depth;
+    private final byte[] payload;
+
+    public SuspendLoop(int cycles, int depth, int payloadSize) {
+        this.cycles = cycles;
+        this.depth = depth;
+        this.payload = new byte[payloadSize];
+    }
+
+    public void run() {
+        recurse(depth);
+    }
+
+    private void recurse(int n) {
+        if(n>1) {
+            recurse(n-1);
+            return;
+        }
+        for( int i=0; i<cycles; i++ )
+            FiberSPI.currentFiber(true).suspend(new ImmediateCondition());
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -3,6 +3,9 @@ package dalma.container;
 import dalma.Conversation;
 import dalma.Engine;
 import dalma.ConversationState;
+import dalma.impl.ConversationImpl;
+import dalma.impl.LogRecorder;
+import dalma.impl.Util;
 import dalma.impl.XmlFile;
 
 import java.util.Date;
@@ -10,6 +13,7 @@ import java.util.List;
 import java.util.Collections;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.io.Serializable;
@@ -23,6 +27,11 @@ import java.io.IOException;
  * This object is immutable. From outside this object is accessed just as
  * {@link Conversation}.
  *
+ * <p>
+ * Log records are normally kept in a separate directory next to the data file,
+ * moved there from the conversation directory when the conversation completes.
+ * They are read lazily when {@link #getLog()} is accessed.
+ *
  * @author Kohsuke Kawaguchi
  */
 final class CompletedConversation implements Conversation, Serializable {
@@ -31,28 +40,63 @@ final class CompletedConversation implements Conversation, Serializable {
     private final long startDate;
     private final long endDate;
     private final ConversationState state;
+
+    /**
+     * Copies of the log records.
+     *
+     * Null if the log records are kept in {@link #logDir}, which is the normal case.
+     * Non-null if the data is from an older version, or if we failed to
+     * move the log directory.
+     */
     private final LogRecord[] logs;
 
+    /**
+     * Directory that stores the log records.
+     */
+    private transient File logDir;
+
     private transient List<LogRecord> logView;
 
     /**
      * Creates a new {@link CompletedConversation} from another {@link Conversation}.
+     *
+     * @param logDir
+     *      The directory to move the log records of the conversation into.
      */
-    CompletedConversation(Conversation that) {
+    CompletedConversation(Conversation that, File logDir) {
         this.id = that.getId();
         this.title = that.getTitle();
         this.startDate = that.getStartDate().getTime();
         this.endDate = that.getCompletionDate().getTime();
         this.state = that.getState();
+        this.logDir = logDir;
+        this.logs = moveLog(that,logDir);
+    }
+
+    /**
+     * Moves the log records of the given conversation into the given directory.
+     *
+     * @return
+     *      null if the log records are moved. Otherwise copies of the log records.
+     */
+    private static LogRecord[] moveLog(Conversation conv, File logDir) {
+        if(conv instanceof ConversationImpl) {
+            try {
+                ((ConversationImpl)conv).moveLog(logDir);
+                return null;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to move the log of the conversation "+conv.getId()+". Copying instead", e);
+            }
+        }
 
         // scrape off null entries, which can happen if log records fail to load.
         List<LogRecord> ll = new ArrayList<LogRecord>();
-        for (LogRecord lr : that.getLog()) {
+        for (LogRecord lr : conv.getLog()) {
             if(lr!=null)
                 ll.add(lr);
         }
 
-        this.logs = ll.toArray(new LogRecord[ll.size()]);
+        return ll.toArray(new LogRecord[ll.size()]);
     }
 
     public int getId() {
@@ -80,11 +124,26 @@ final class CompletedConversation implements Conversation, Serializable {
     }
 
     public List<LogRecord> getLog() {
-        if(logView==null)
-            logView = Collections.unmodifiableList(Arrays.asList(logs));
+        if(logView==null) {
+            if(logs!=null)
+                logView = Collections.unmodifiableList(Arrays.asList(logs));
+            else
+            if(logDir.isDirectory())
+                logView = Collections.unmodifiableList(new LogRecorder(logDir).getLogs());
+            else
+                logView = Collections.emptyList();
+        }
         return logView;
     }
 
+    /**
+     * Deletes the log records kept on disk, if any.
+     */
+    void deleteLog() throws IOException {
+        if(logs==null)
+            Util.deleteRecursive(logDir);
+    }
+
     public Date getStartDate() {
         return new Date(startDate);
     }
@@ -105,7 +164,17 @@ final class CompletedConversation implements Conversation, Serializable {
      * Loads a {@link CompletedConversation} from a data file.
      */
     public static CompletedConversation load(File file) throws IOException {
-        return (CompletedConversation)new XmlFile(file).read();
+        CompletedConversation conv = (CompletedConversation)new XmlFile(file).read();
+        conv.logDir = getLogDir(file);
+        return conv;
+    }
+
+    /**
+     * Gets the directory that stores the log records for the given data file.
+     */
+    static File getLogDir(File dataFile) {
+        String name = dataFile.getName();
+        return new File(dataFile.getParentFile(), name.substring(0,name.length()-".dat".length()));
     }
 
     /**
@@ -114,4 +183,6 @@ final class CompletedConversation implements Conversation, Serializable {
     public void save(File file) throws IOException {
         new XmlFile(file).write(this);
     }
+
+    private static final Logger logger = Logger.getLogger(CompletedConversation.class.getName());
 }
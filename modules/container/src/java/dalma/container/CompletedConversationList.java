@@ -66,27 +66,29 @@ final class CompletedConversationList extends Observable {
 
     public void add(Conversation _conv) {
         loadSync();
-        CompletedConversation conv = new CompletedConversation(_conv);
+        File dt = getDataFile(_conv);
+        CompletedConversation conv = new CompletedConversation(_conv,CompletedConversation.getLogDir(dt));
 
-        synchronized(convs) {
-            convs.put(conv.getId(),conv);
-            applyLogRotation(convs);
-        }
-
-        File dt = getDataFile(conv);
+        // save first, so that the log rotation can delete it
         try {
             conv.save(dt);
         } catch (IOException e) {
             logger.log(Level.WARNING, "Unable to save "+dt, e);
         }
+
+        synchronized(convs) {
+            convs.put(conv.getId(),conv);
+            applyLogRotation(convs);
+        }
     }
 
     public void remove(Conversation conv) {
         loadSync();
-        if(convs.remove(conv.getId())==null)
+        CompletedConversation cc = convs.remove(conv.getId());
+        if(cc==null)
             throw new IllegalArgumentException();
         // delete from disk, too
-        getDataFile(conv).delete();
+        delete(cc);
     }
 
     /**
@@ -142,8 +144,22 @@ final class CompletedConversationList extends Observable {
         // apply log policy and trim the entries
         for (Iterator<Map.Entry<Integer,CompletedConversation>> itr = convs.entrySet().iterator(); itr.hasNext();) {
             CompletedConversation c = itr.next().getValue();
-            if(!policy.keep(c))
+            if(!policy.keep(c)) {
                 itr.remove();
+                delete(c);
+            }
+        }
+    }
+
+    /**
+     * Deletes the data file and the log records of the given conversation.
+     */
+    private void delete(CompletedConversation c) {
+        getDataFile(c).delete();
+        try {
+            c.deleteLog();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to delete the log of "+c.getId(), e);
         }
     }
 
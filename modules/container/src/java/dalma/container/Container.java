@@ -3,6 +3,8 @@ package dalma.container;
 import dalma.Executor;
 import dalma.helpers.Java5Executor;
 import dalma.impl.Util;
+import dalma.metrics.MetricsMBean;
+import dalma.metrics.MetricsRegistry;
 
 import javax.management.JMException;
 import javax.management.MBeanServer;
@@ -125,6 +127,14 @@ public final class Container implements ContainerMBean {
             logger.log(Level.WARNING,"Failed to register to JMX",e);
         }
 
+        try {
+            ObjectName name = new ObjectName("dalma:dir="+ObjectName.quote(homeDir.toString())+",type=metrics");
+            if(!mbeanServer.isRegistered(name))
+                mbeanServer.registerMBean(new MetricsMBean(MetricsRegistry.GLOBAL),name);
+        } catch (JMException e) {
+            logger.log(Level.WARNING,"Failed to register metrics to JMX",e);
+        }
+
         redeployer = new Redeployer(this);
         logger.info("Auto-redeployment activated");
     }
@@ -13,6 +13,7 @@ import dalma.container.model.Model;
 import dalma.impl.EngineImpl;
 import dalma.impl.Util;
 import dalma.impl.LogRecorder;
+import dalma.metrics.MetricsMBean;
 
 import javax.management.JMException;
 import javax.management.ObjectName;
@@ -104,6 +105,12 @@ public final class WorkflowApplication implements WorkflowApplicationMBean {
 
     private ObjectName objectName;
 
+    /**
+     * JMX name of the {@link MetricsMBean} of {@link #engine}.
+     * Non-null while the engine is running.
+     */
+    private ObjectName metricsObjectName;
+
     private WorkflowState state;
 
     /**
@@ -302,6 +309,14 @@ public final class WorkflowApplication implements WorkflowApplicationMBean {
 
             engine.getAggregateLogger().setParent(loggerAggregate);
 
+            try {
+                metricsObjectName = new ObjectName("dalma:container=" + ObjectName.quote(owner.getHomeDir().toString()) + ",name=" + name + ",type=metrics");
+                owner.mbeanServer.registerMBean(new MetricsMBean(engine.getMetrics()),metricsObjectName);
+            } catch (JMException e) {
+                logger.log(Level.WARNING,"Failed to register metrics to JMX",e);
+                metricsObjectName = null;
+            }
+
             try {
                 Object main = mainClass.newInstance();
                 if(!(main instanceof Program)) {
@@ -362,6 +377,7 @@ public final class WorkflowApplication implements WorkflowApplicationMBean {
                 if(engine.isStarted())
                     engine.stop();
                 engine = null;
+                unregisterMetrics();
             }
         }
     }
@@ -435,11 +451,24 @@ public final class WorkflowApplication implements WorkflowApplicationMBean {
 
         engine.stop();
         engine = null;
+        unregisterMetrics();
         state = STOPPED;
 
         logger.info("Stopped "+name);
     }
 
+    private void unregisterMetrics() {
+        if(metricsObjectName!=null) {
+            try {
+                owner.mbeanServer.unregisterMBean(metricsObjectName);
+            } catch(JMException e) {
+                logger.log(Level.WARNING,"Failed to unregister "+metricsObjectName);
+            } finally {
+                metricsObjectName = null;
+            }
+        }
+    }
+
     /**
      * Unloads the workflow application from memory.
      *
@@ -0,0 +1,57 @@
+package dalma.endpoints.email;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct {@link ByteBuffer}s of the same size.
+ *
+ * <p>
+ * Direct buffers are expensive to allocate, and the memory is only
+ * reclaimed when GC finds the buffer, so we keep reusing them.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class BufferPool {
+    private final int bufferSize;
+
+    /**
+     * The maximum number of idle buffers kept in the pool.
+     */
+    private final int max;
+
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    BufferPool(int bufferSize, int max) {
+        this.bufferSize = bufferSize;
+        this.max = max;
+    }
+
+    /**
+     * Gets an empty buffer.
+     */
+    ByteBuffer allocate() {
+        ByteBuffer buf = pool.poll();
+        if(buf==null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        size.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #allocate()}.
+     * The caller must not use the buffer afterward.
+     */
+    void release(ByteBuffer buf) {
+        if(size.incrementAndGet()>max) {
+            size.decrementAndGet();
+            return; // let GC take it
+        }
+        pool.offer(buf);
+    }
+}
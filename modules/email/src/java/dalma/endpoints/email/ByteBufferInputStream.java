@@ -0,0 +1,84 @@
+package dalma.endpoints.email;
+
+import javax.mail.internet.SharedInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link InputStream} that reads from a {@link ByteBuffer}.
+ *
+ * <p>
+ * This implements {@link SharedInputStream}, so {@link MimeMessageEx}
+ * parsed from this stream refers to the buffer for its body, instead of
+ * copying it. This works nicely with a memory-mapped file.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class ByteBufferInputStream extends InputStream implements SharedInputStream {
+    /**
+     * The whole data of this stream. Never modified.
+     */
+    private final ByteBuffer data;
+
+    /**
+     * The portion of {@link #data} yet to be read.
+     */
+    private final ByteBuffer buf;
+
+    private int mark;
+
+    ByteBufferInputStream(ByteBuffer data) {
+        this.data = data.slice();
+        this.buf = this.data.duplicate();
+    }
+
+    public int read() {
+        if(!buf.hasRemaining())
+            return -1;
+        return buf.get()&0xFF;
+    }
+
+    public int read(byte b[], int off, int len) {
+        if(len==0)
+            return 0;
+        if(!buf.hasRemaining())
+            return -1;
+        len = Math.min(len,buf.remaining());
+        buf.get(b,off,len);
+        return len;
+    }
+
+    public long skip(long n) {
+        n = Math.max(0,Math.min(n,buf.remaining()));
+        buf.position(buf.position()+(int)n);
+        return n;
+    }
+
+    public int available() {
+        return buf.remaining();
+    }
+
+    public boolean markSupported() {
+        return true;
+    }
+
+    public void mark(int readlimit) {
+        mark = buf.position();
+    }
+
+    public void reset() {
+        buf.position(mark);
+    }
+
+    public long getPosition() {
+        return buf.position();
+    }
+
+    public InputStream newStream(long start, long end) {
+        ByteBuffer sub = data.duplicate();
+        if(end!=-1)
+            sub.limit((int)end);
+        sub.position((int)start);
+        return new ByteBufferInputStream(sub);
+    }
+}
@@ -0,0 +1,116 @@
+package dalma.endpoints.email;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Waits for files to be created in a directory.
+ *
+ * <p>
+ * On Java 7 and later, this uses <tt>java.nio.file.WatchService</tt>
+ * so that the caller wakes up as soon as a file is created.
+ * Otherwise, or if the platform fails to watch the directory,
+ * the caller simply wakes up periodically.
+ *
+ * <p>
+ * <tt>WatchService</tt> is accessed reflectively, so that this code
+ * compiles and runs on Java 5.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+abstract class DirectoryWatcher {
+    /**
+     * Waits until a file may have been created in the directory,
+     * or the given time elapses, whichever comes first.
+     */
+    abstract void await(long timeout) throws InterruptedException;
+
+    abstract void close();
+
+    /**
+     * Creates the best {@link DirectoryWatcher} available for the given directory.
+     */
+    static DirectoryWatcher create(File dir) {
+        try {
+            return new NioWatcher(dir);
+        } catch (ClassNotFoundException e) {
+            // pre-Java 7
+        } catch (Exception e) {
+            logger.log(Level.INFO,"Unable to watch "+dir+". Falling back to polling",e);
+        }
+        return new Poller();
+    }
+
+    /**
+     * Just sleeps.
+     */
+    private static final class Poller extends DirectoryWatcher {
+        void await(long timeout) throws InterruptedException {
+            Thread.sleep(timeout);
+        }
+
+        void close() {
+        }
+    }
+
+    private static final class NioWatcher extends DirectoryWatcher {
+        private final Object watchService;
+        private final Method poll, pollEvents, reset, close;
+
+        NioWatcher(File dir) throws Exception {
+            Class<?> fileSystems = Class.forName("java.nio.file.FileSystems");
+            Class<?> watchServiceType = Class.forName("java.nio.file.WatchService");
+            Class<?> watchKey = Class.forName("java.nio.file.WatchKey");
+            Class<?> kind = Class.forName("java.nio.file.WatchEvent$Kind");
+            Class<?> watchable = Class.forName("java.nio.file.Path");
+
+            Object fs = fileSystems.getMethod("getDefault").invoke(null);
+            watchService = Class.forName("java.nio.file.FileSystem").getMethod("newWatchService").invoke(fs);
+
+            Object kinds = Array.newInstance(kind,1);
+            Array.set(kinds,0,Class.forName("java.nio.file.StandardWatchEventKinds").getField("ENTRY_CREATE").get(null));
+            Object path = File.class.getMethod("toPath").invoke(dir);
+            watchable.getMethod("register",watchServiceType,kinds.getClass()).invoke(path,watchService,kinds);
+
+            poll = watchServiceType.getMethod("poll",long.class,TimeUnit.class);
+            close = watchServiceType.getMethod("close");
+            pollEvents = watchKey.getMethod("pollEvents");
+            reset = watchKey.getMethod("reset");
+        }
+
+        void await(long timeout) throws InterruptedException {
+            try {
+                Object key = poll.invoke(watchService,timeout,TimeUnit.MILLISECONDS);
+                if(key!=null) {
+                    // we rescan the directory anyway, so the events themselves don't matter
+                    pollEvents.invoke(key);
+                    reset.invoke(key);
+                }
+            } catch (InvocationTargetException e) {
+                Throwable t = e.getTargetException();
+                if(t instanceof InterruptedException)
+                    throw (InterruptedException)t;
+                // the watch service is closed or broken. avoid spinning
+                logger.log(Level.WARNING,"Failed to watch the directory",t);
+                Thread.sleep(timeout);
+            } catch (IllegalAccessException e) {
+                throw new Error(e); // impossible
+            }
+        }
+
+        void close() {
+            try {
+                close.invoke(watchService);
+            } catch (Exception e) {
+                logger.log(Level.FINE,"Failed to close the watch service",e);
+            }
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(DirectoryWatcher.class.getName());
+}
@@ -0,0 +1,224 @@
+package dalma.endpoints.email;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads and dispatches incoming e-mails to {@link EmailEndPoint} in parallel.
+ *
+ * <p>
+ * Each e-mail is assigned to one of the threads by its correlation key,
+ * so the e-mails to the same conversation are dispatched in the order they
+ * are received, while the e-mails to different conversations are read and
+ * dispatched in parallel. E-mails that start new conversations are spread
+ * across all the threads.
+ *
+ * <p>
+ * E-mails that belong to a folder need to be read before the folder is closed,
+ * so {@link #dispatch(Collection, Runnable)} waits until they are read
+ * (but not until they are dispatched.) The caller learns that they are
+ * dispatched through the callback.
+ *
+ * <p>
+ * Each thread queues up to {@link #QUEUE_SIZE} e-mails. When the queue is full,
+ * the caller waits, which holds off the listener from receiving more e-mails
+ * than we can handle.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class Dispatcher {
+    private final EmailEndPoint endPoint;
+
+    /**
+     * Each thread has its own queue, to keep the order per key.
+     */
+    private final ThreadPoolExecutor[] threads;
+
+    /**
+     * Assigns threads to e-mails without keys.
+     */
+    private final AtomicInteger iota = new AtomicInteger();
+
+    private static final Logger logger = Logger.getLogger(Dispatcher.class.getName());
+
+    Dispatcher(EmailEndPoint endPoint, int nThreads) {
+        this.endPoint = endPoint;
+        threads = new ThreadPoolExecutor[nThreads];
+        for( int i=0; i<nThreads; i++ ) {
+            final String name = "E-mail dispatcher thread #"+i+" for "+endPoint.getAddress();
+            threads[i] = new ThreadPoolExecutor(1,1,0,TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r,name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                WAIT_POLICY);
+        }
+    }
+
+    /**
+     * Dispatches e-mails, and returns once they are all read.
+     *
+     * @param onDispatched
+     *      If non-null, run once all the e-mails are dispatched (or failed to be read or dispatched),
+     *      by one of the dispatcher threads. Not run if some of the e-mails
+     *      couldn't be queued because the dispatcher is shutting down.
+     */
+    void dispatch(Collection<? extends MimeMessage> msgs, Runnable onDispatched) {
+        Batch batch = new Batch(msgs.size(),onDispatched);
+        boolean needsWait = false;
+
+        for (MimeMessage msg : msgs) {
+            needsWait |= msg.getFolder()!=null;
+
+            UUID key;
+            try {
+                key = endPoint.getKey(msg);
+            } catch (EmailException e) {
+                logger.log(Level.WARNING,"Failed to parse the headers",e);
+                key = null;
+            }
+            int idx = key!=null ? key.hashCode() : iota.getAndIncrement();
+            try {
+                threads[(idx&Integer.MAX_VALUE)%threads.length].execute(new Task(msg,batch));
+            } catch (RejectedExecutionException e) {
+                logger.log(Level.WARNING,"Dropping an e-mail as the dispatcher is shutting down",e);
+                // nobody is going to read it. don't make the caller wait for it,
+                // but don't tell the caller that it's dispatched, either.
+                batch.read.countDown();
+            }
+        }
+
+        if(msgs.isEmpty())
+            batch.dispatched();
+
+        if(needsWait) {
+            try {
+                batch.read.await();
+            } catch (InterruptedException e) {
+                // process this interruption later
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stops the threads, after dispatching all the queued e-mails.
+     */
+    void shutDown() {
+        for (ThreadPoolExecutor t : threads)
+            t.shutdown();
+        boolean interrupted = false;
+        for (ThreadPoolExecutor t : threads) {
+            while(true) {
+                try {
+                    if(t.awaitTermination(10,TimeUnit.SECONDS))
+                        break;
+                    logger.info("Waiting for "+t.getQueue().size()+" e-mails to be dispatched");
+                } catch (InterruptedException e) {
+                    // e-mails in the queue are acknowledged already, so keep waiting
+                    interrupted = true;
+                }
+            }
+        }
+        if(interrupted)
+            // process this interruption later
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * E-mails handed to {@link #dispatch(Collection, Runnable)} at once.
+     */
+    private static final class Batch {
+        final CountDownLatch read;
+        private final AtomicInteger remaining;
+        private final Runnable onDispatched;
+
+        Batch(int size, Runnable onDispatched) {
+            this.read = new CountDownLatch(size);
+            this.remaining = new AtomicInteger(size);
+            this.onDispatched = onDispatched;
+        }
+
+        /**
+         * Called when an e-mail is done.
+         */
+        void dispatched() {
+            if(remaining.decrementAndGet()>0 || onDispatched==null)
+                return;
+            try {
+                onDispatched.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING,"failed to acknowledge messages",e);
+            }
+        }
+    }
+
+    private final class Task implements Runnable {
+        private final MimeMessage msg;
+        private final Batch batch;
+
+        Task(MimeMessage msg, Batch batch) {
+            this.msg = msg;
+            this.batch = batch;
+        }
+
+        public void run() {
+            try {
+                MimeMessageEx ex;
+                try {
+                    ex = endPoint.read(msg);
+                } catch (MessagingException e) {
+                    logger.log(Level.WARNING,"failed to read a message",e);
+                    return;
+                } finally {
+                    batch.read.countDown();
+                }
+
+                try {
+                    endPoint.dispatch(ex);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING,"failed to handle a message",e);
+                }
+            } finally {
+                batch.dispatched();
+            }
+        }
+    }
+
+    /**
+     * Makes the caller wait for a room in the queue.
+     */
+    private static final RejectedExecutionHandler WAIT_POLICY = new RejectedExecutionHandler() {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if(executor.isShutdown())
+                throw new RejectedExecutionException();
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        }
+    };
+
+    /**
+     * Number of e-mails each thread queues.
+     */
+    private static final int QUEUE_SIZE = 64;
+}
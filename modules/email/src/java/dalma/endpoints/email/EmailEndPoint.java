@@ -1,6 +1,7 @@
 package dalma.endpoints.email;
 
 import dalma.EndPoint;
+import dalma.Engine;
 import dalma.ReplyIterator;
 import dalma.TimeUnit;
 import dalma.spi.port.MultiplexedEndPoint;
@@ -12,8 +13,16 @@ import javax.mail.Session;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.WeakHashMap;
 import java.util.logging.Level;
 
 /**
@@ -37,7 +46,23 @@ public class EmailEndPoint extends MultiplexedEndPoint<UUID,MimeMessage> {
      */
     private final Session session;
 
-    private final SenderThread sender;
+    private final SMTPSender sender;
+
+    /**
+     * @see #setSpooled(boolean)
+     */
+    private boolean spooled = true;
+
+    /**
+     * @see #setDispatchThreads(int)
+     */
+    private int dispatchThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Reads and dispatches incoming e-mails. Null if they are
+     * handled by the listener thread, or if the endpoint is not started.
+     */
+    private volatile Dispatcher dispatcher;
 
     /**
      * Creates a new e-mail end point.
@@ -89,19 +114,28 @@ public class EmailEndPoint extends MultiplexedEndPoint<UUID,MimeMessage> {
         this.address = address;
         this.listener = listener;
         this.session = session;
-        this.sender = new SenderThread(address.toString(),session);
+        this.sender = new SMTPSender(address.toString(),session);
         if(address==null || listener==null || session==null)
             throw new IllegalArgumentException();
         listener.setEndPoint(this);
+        endPoints.put(session,new WeakReference<EmailEndPoint>(this));
     }
 
     protected void start() {
+        if(dispatchThreads>0)
+            dispatcher = new Dispatcher(this,dispatchThreads);
         listener.start();
-        sender.start();
+        sender.start(
+            spooled ? new MailSpool(new File(getDataDir(),"outbox"),session) : null,
+            getMetrics(), "endpoint."+getName()+".mail.");
     }
 
     protected void stop() {
         listener.stop();
+        if(dispatcher!=null) {
+            dispatcher.shutDown();
+            dispatcher = null;
+        }
         sender.shutDown();
     }
 
@@ -121,6 +155,65 @@ public class EmailEndPoint extends MultiplexedEndPoint<UUID,MimeMessage> {
         this.newMailHandler = newMailHandler;
     }
 
+    /**
+     * If true, out-going e-mails are written to the disk before
+     * {@link #send(MimeMessage)} returns, and the e-mails that weren't sent
+     * before the engine shuts down are sent when it starts again.
+     * Defaults to true. Must be set before the endpoint is started.
+     */
+    public void setSpooled(boolean spooled) {
+        this.spooled = spooled;
+    }
+
+    /**
+     * Sets the number of threads that read and dispatch incoming e-mails.
+     *
+     * <p>
+     * E-mails to the same conversation are always dispatched in the order
+     * they are received. Defaults to the number of processors.
+     * If 0, e-mails are dispatched by the thread of the {@link Listener}.
+     * Must be set before the endpoint is started.
+     */
+    public void setDispatchThreads(int n) {
+        this.dispatchThreads = n;
+    }
+
+    /**
+     * Sets the maximum number of SMTP connections used to send e-mails in parallel.
+     * Defaults to 4. Must be set before the endpoint is started.
+     */
+    public void setMaxSMTPConnections(int n) {
+        sender.setPoolSize(n);
+    }
+
+    /**
+     * Sets the number of milliseconds an idle SMTP connection is kept open
+     * for the e-mails sent later. Defaults to 30 seconds.
+     */
+    public void setSMTPKeepAlive(long ms) {
+        sender.setKeepAlive(ms);
+    }
+
+    /**
+     * Sets the number of times an e-mail is sent before giving up,
+     * and the delay before the first retry in milliseconds.
+     * The delay doubles for each retry thereafter.
+     * Defaults to 4 times, starting with 5 seconds.
+     */
+    public void setSMTPRetry(int maxAttempts, long delay) {
+        sender.setMaxAttempts(maxAttempts);
+        sender.setRetryDelay(delay);
+    }
+
+    /**
+     * If set to true, the stack trace of the code that sent an e-mail
+     * is recorded, and logged if the e-mail cannot be sent.
+     * Useful for debugging, but expensive. Defaults to false.
+     */
+    public void setCaptureSenderStackTrace(boolean b) {
+        sender.setCaptureStackTrace(b);
+    }
+
     /**
      * Gets the JavaMail session that this endpoint uses to configure
      * JavaMail.
@@ -132,6 +225,33 @@ public class EmailEndPoint extends MultiplexedEndPoint<UUID,MimeMessage> {
         return session;
     }
 
+    /**
+     * Gets the endpoint that owns the given JavaMail session in the given engine.
+     *
+     * <p>
+     * {@link MimeMessageEx} uses this to remember which endpoint an e-mail
+     * came from, so that the e-mail gets the same session when it's restored.
+     *
+     * @return
+     *      null if the session is not used by any endpoint in that engine.
+     */
+    /*package*/ static EmailEndPoint of(Session session, Engine engine) {
+        WeakReference<EmailEndPoint> ref = endPoints.get(session);
+        if(ref==null)
+            return null;
+        EmailEndPoint ep = ref.get();
+        if(ep==null || ep.getEngine()!=engine)
+            return null;
+        return ep;
+    }
+
+    /**
+     * {@link EmailEndPoint}s keyed by their sessions.
+     * The endpoint is weakly referenced so that its session can go away with it.
+     */
+    private static final Map<Session,WeakReference<EmailEndPoint>> endPoints
+        = Collections.synchronizedMap(new WeakHashMap<Session,WeakReference<EmailEndPoint>>());
+
     /**
      * Gets the e-mail address that this endpoint is connected to.
      */
@@ -155,7 +275,7 @@ public class EmailEndPoint extends MultiplexedEndPoint<UUID,MimeMessage> {
         NewMailHandler h = newMailHandler;
         if(h!=null) {
             try {
-                h.onNewMail(new MimeMessageEx(msg));
+                h.onNewMail(read(msg));
             } catch (Exception e) {
                 logger.log(Level.WARNING,"Unhandled exception",e);
             }
@@ -186,12 +306,73 @@ public class EmailEndPoint extends MultiplexedEndPoint<UUID,MimeMessage> {
         }
     }
 
+    /**
+     * Reads and dispatches a received e-mail.
+     *
+     * <p>
+     * If the e-mail belongs to a folder, this method returns once
+     * the e-mail is read, so that the folder can be closed.
+     */
     protected void handleMessage(MimeMessage msg) {
+        handleMessages(Collections.singletonList(msg),null);
+    }
+
+    /**
+     * Reads and dispatches received e-mails, in parallel if possible.
+     *
+     * @param onDispatched
+     *      If non-null, run once all the e-mails are dispatched to conversations
+     *      (or failed to be.) This may happen in another thread, and before or after
+     *      this method returns.
+     * @see #handleMessage(MimeMessage)
+     */
+    /*package*/ void handleMessages(Collection<? extends MimeMessage> msgs, Runnable onDispatched) {
+        Dispatcher d = dispatcher;
+        if(d!=null) {
+            d.dispatch(msgs,onDispatched);
+            return;
+        }
+        for (MimeMessage msg : msgs) {
+            try {
+                dispatch(read(msg));
+            } catch (MessagingException e) {
+                logger.log(Level.WARNING,"failed to read a message",e);
+            }
+        }
+        if(onDispatched!=null)
+            onDispatched.run();
+    }
+
+    /**
+     * Checks if anyone needs the given e-mail, by only looking at its headers.
+     *
+     * <p>
+     * {@link Listener}s use this to avoid downloading e-mails that
+     * would be discarded anyway.
+     */
+    /*package*/ boolean isWanted(MimeMessage msg) {
+        UUID key;
         try {
-            super.handleMessage(new MimeMessageEx(msg));
-        } catch (MessagingException e) {
-            throw new EmailException(e);
+            key = getKey(msg);
+        } catch (EmailException e) {
+            return true;    // let the normal path report the problem
         }
+        if(key==null)
+            return newMailHandler!=null;
+        return accepts(key);
+    }
+
+    /**
+     * Reads an e-mail into memory.
+     */
+    /*package*/ MimeMessageEx read(MimeMessage msg) throws MessagingException {
+        if(msg instanceof MimeMessageEx)
+            return (MimeMessageEx)msg;
+        return new MimeMessageEx(msg);
+    }
+
+    /*package*/ void dispatch(MimeMessageEx msg) {
+        super.handleMessage(msg);
     }
 
     /**
@@ -200,6 +381,29 @@ public class EmailEndPoint extends MultiplexedEndPoint<UUID,MimeMessage> {
      * Use this method when no further reply is expected.
      */
     public UUID send(MimeMessage msg) {
+        UUID uuid = prepare(msg);
+        sender.queue(msg);
+        return uuid;
+    }
+
+    /**
+     * Sends messages in one batch and return immediately.
+     *
+     * @return
+     *      the IDs of the messages, in the same order.
+     */
+    protected List<UUID> send(Collection<? extends MimeMessage> msgs) {
+        List<UUID> ids = new ArrayList<UUID>(msgs.size());
+        for (MimeMessage msg : msgs)
+            ids.add(prepare(msg));
+        sender.queue(msgs);
+        return ids;
+    }
+
+    /**
+     * Sets the headers necessary to correlate replies.
+     */
+    private UUID prepare(MimeMessage msg) {
         try {
             String[] rt = msg.getHeader("Reply-To");
             if(rt ==null || rt.length==0)
@@ -213,9 +417,6 @@ public class EmailEndPoint extends MultiplexedEndPoint<UUID,MimeMessage> {
             // predict another one (to steal the session)
             UUID uuid = UUID.randomUUID();
             msg.setHeader("Message-ID",'<'+uuid.toString()+"@localhost>");
-
-            sender.queue(msg);
-
             return uuid;
         } catch (MessagingException e) {
             throw new EmailException(e);
@@ -317,6 +518,28 @@ public class EmailEndPoint extends MultiplexedEndPoint<UUID,MimeMessage> {
         return (MimeMessageEx)super.waitForReply(outgoing,timeoutDate);
     }
 
+    /**
+     * Sends e-mails out and waits for replies to some of them.
+     *
+     * <p>
+     * All the e-mails are queued in one batch, so that the e-mails to
+     * the same domain share an SMTP connection.
+     * Only the first reply to each e-mail counts.
+     *
+     * @param outgoing
+     *      The messages to be sent. Must not be empty.
+     * @param quorum
+     *      This method returns once replies to this many e-mails are received.
+     * @param timeoutDate
+     *      if non-null, this method returns at this time even if
+     *      the quorum is not reached.
+     * @return
+     *      the received replies, in the order they arrived. always non-null.
+     */
+    public List<MimeMessageEx> scatterGather(Collection<? extends MimeMessage> outgoing, int quorum, Date timeoutDate) {
+        return (List)super.scatterGather(outgoing,quorum,timeoutDate);
+    }
+
     /**
      * Creates a new empty e-mail to be sent to the given address.
      *
@@ -1,17 +1,42 @@
 package dalma.endpoints.email;
 
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.event.MessageCountAdapter;
+import javax.mail.event.MessageCountEvent;
 import javax.mail.internet.MimeMessage;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * {@link Listener} that picks up messages from an IMAP4 server.
- * 
+ *
+ * <p>
+ * This {@link Listener} keeps a connection to the server open.
+ * If the server and JavaMail support the IDLE command (RFC 2177, JavaMail 1.4.1 and later),
+ * new e-mails are picked up as soon as the server tells us about them.
+ * Otherwise the server is checked periodically over the same connection.
+ * When the connection is lost, this listener reconnects, waiting longer
+ * between each failed attempt.
+ *
+ * <p>
+ * Only the e-mails that arrived since the last check are retrieved.
+ * Their headers are retrieved first, in one round-trip, and the rest of
+ * an e-mail is only retrieved if the endpoint has a use for it.
+ *
+ * <p>
+ * Once retrieved, e-mails are deleted from the server, regardless
+ * of whether the processing of the e-mail succeeded or not.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class IMAP4Listener extends Listener {
@@ -21,8 +46,56 @@ public class IMAP4Listener extends Listener {
     private final int interval;
     private final Thread thread;
 
-    private static final Logger logger = Logger.getLogger(POP3Listener.class.getName());
+    /**
+     * The current connection. Null if not connected.
+     */
+    private volatile Store store;
 
+    /**
+     * Guards {@link #newMail} and {@link #fetching}.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * True if the server told us that new e-mails arrived.
+     */
+    private boolean newMail;
+
+    /**
+     * True while the listener thread is talking to the server,
+     * during which we shouldn't go into IDLE.
+     */
+    private boolean fetching = true;
+
+    /**
+     * The UIDVALIDITY of the inbox. UIDs are only meaningful
+     * while this value stays the same.
+     */
+    private long uidValidity = -1;
+
+    /**
+     * The largest UID retrieved so far.
+     */
+    private long lastUid = 0;
+
+    private static final Logger logger = Logger.getLogger(IMAP4Listener.class.getName());
+
+    /**
+     * Creates a new {@link IMAP4Listener}.
+     *
+     * @param host
+     *      Name of the IMAP4 server, such as "mail.acme.org"
+     *      must not be null.
+     * @param uid
+     *      The user name used to log in to the IMAP4 server.
+     * @param password
+     *      The password used to log in to the IMAP4 server.
+     * @param interval
+     *      The server is checked every this many milliseconds.
+     *      When the server supports IDLE, this is only the safety net
+     *      in case the notification is lost. This is also the delay
+     *      before reconnecting for the first time.
+     */
     public IMAP4Listener(String host, String uid, String password, int interval) {
         this.host = host;
         this.uid = uid;
@@ -43,45 +116,235 @@ public class IMAP4Listener extends Listener {
 
     protected void stop() {
         thread.interrupt();
+        // the listener thread may be blocked on the network
+        close(store);
         try {
             thread.join();
         } catch (InterruptedException e) {
+            // process this interruption later
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void close(Store store) {
+        if(store==null)     return;
+        try {
+            store.close();
+        } catch (MessagingException e) {
+            logger.log(Level.FINE,"failed to close the connection",e);
+        }
+    }
+
+    /**
+     * Connects to the server and opens the inbox.
+     */
+    private Folder connect() throws MessagingException {
+        logger.fine("connecting");
+        Store s = getEndPoint().getSession().getStore("imap");
+        store = s;
+        s.connect(host,uid,password);
+        logger.fine("connected");
+
+        Folder folder = s.getFolder("INBOX");
+        folder.open(Folder.READ_WRITE);
+        folder.addMessageCountListener(new MessageCountAdapter() {
+            public void messagesAdded(MessageCountEvent e) {
+                synchronized(lock) {
+                    newMail = true;
+                    lock.notifyAll();
+                }
+            }
+        });
+        return folder;
+    }
+
+    /**
+     * Retrieves and handles e-mails that arrived since the last time.
+     */
+    private void fetch(Folder folder) throws MessagingException {
+        UIDFolder uf = (UIDFolder)folder;
+
+        long v = uf.getUIDValidity();
+        if(v!=uidValidity) {
+            // the server reassigned UIDs, so we need to look at everything
+            uidValidity = v;
+            lastUid = 0;
+        }
+
+        // this also tells the server that we are alive
+        Message[] msgs = uf.getMessagesByUID(lastUid+1,UIDFolder.LASTUID);
+        if(msgs.length==0)
+            return;
+
+        // retrieve the headers that we need in one round-trip
+        FetchProfile fp = new FetchProfile();
+        fp.add(UIDFolder.FetchProfileItem.UID);
+        fp.add("References");
+        fp.add("In-Reply-To");
+        folder.fetch(msgs,fp);
+
+        List<Message> fetched = new ArrayList<Message>(msgs.length);
+        List<MimeMessage> batch = new ArrayList<MimeMessage>(msgs.length);
+        long max = lastUid;
+        for( Message msg : msgs ) {
+            if(msg==null)   continue;   // expunged by someone else
+            long u = uf.getUID(msg);
+            // "n:*" always includes the last e-mail, even if it's older than n
+            if(u<=lastUid)  continue;
+            max = Math.max(max,u);
+            fetched.add(msg);
+
+            if(isWanted((MimeMessage)msg))
+                batch.add((MimeMessage)msg);
+            else
+                logger.fine("nobody needs the e-mail UID="+u+". skipping");
+        }
+        if(fetched.isEmpty())
+            return;
+
+        logger.fine("handling "+batch.size()+" messages");
+        try {
+            if(!handleMessagesAndWait(batch))
+                return; // interrupted. leave them on the server, so that we see them again
+        } catch (MessagingException e) {
+            logger.log(Level.WARNING,"failed to handle messages",e);
+        }
+
+        // delete these messages regardless of the outcome of handling,
+        // but only after they are dispatched
+        folder.setFlags(fetched.toArray(new Message[fetched.size()]),new Flags(Flags.Flag.DELETED),true);
+        lastUid = max;
+        folder.expunge();
+    }
+
+    /**
+     * Waits until the server tells us about new e-mails, or
+     * until the interval elapses.
+     */
+    private void await() throws InterruptedException {
+        synchronized(lock) {
+            fetching = false;
+            lock.notifyAll();
+            try {
+                if(!newMail)
+                    lock.wait(interval);
+                newMail = false;
+            } finally {
+                fetching = true;
+            }
         }
     }
 
     private class Runner implements Runnable {
         public void run() {
+            long backoff = interval;
             while(true) {
+                Idler idler = null;
                 try {
-                    Thread.sleep(interval);
+                    Folder folder = connect();
+                    if(IDLE!=null && IDLE.getDeclaringClass().isInstance(folder)) {
+                        idler = new Idler(folder);
+                        idler.start();
+                    }
+                    while(true) {
+                        fetch(folder);
+                        backoff = interval;
+                        logger.fine("done. waiting for new e-mails");
+                        await();
+                    }
                 } catch (InterruptedException e) {
                     return; // treat as a signal to die
+                } catch (MessagingException e) {
+                    if(Thread.currentThread().isInterrupted())
+                        return; // we are asked to die, and the connection is closed
+                    logger.log(Level.WARNING,"failed to talk to the IMAP4 server. reconnecting in "+backoff+"ms",e);
+                } finally {
+                    if(idler!=null)
+                        idler.shutDown();
+                    close(store);
+                    store = null;
                 }
+
                 try {
-                    logger.fine("connecting");
-                    Store store = getEndPoint().getSession().getStore("imap");
-                    store.connect(host,uid,password);
-                    logger.fine("connected");
-
-                    Folder folder = store.getFolder("INBOX");
-                    folder.open(Folder.READ_WRITE);
-                    Message[] msgs = folder.getMessages();
-                    for( Message msg : msgs ) {
-                        logger.fine("handling message: "+msg.getSubject());
-                        msg.setFlag(Flags.Flag.DELETED,true);
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return; // treat as a signal to die
+                }
+                backoff = Math.min(backoff*2,MAX_BACKOFF);
+            }
+        }
+    }
+
+    /**
+     * Keeps the connection in IDLE while the listener thread is waiting.
+     *
+     * <p>
+     * <tt>IMAPFolder.idle()</tt> blocks until another thread uses the folder,
+     * and in the mean time the new e-mails are reported to the
+     * {@link javax.mail.event.MessageCountListener}. If IDLE is not available,
+     * this thread just quits and the listener thread keeps polling.
+     */
+    private final class Idler extends Thread {
+        private final Folder folder;
+        private boolean done;
+
+        Idler(Folder folder) {
+            super("IMAP4 IDLE thread for "+uid+'@'+host);
+            this.folder = folder;
+            setDaemon(true);
+        }
+
+        public void run() {
+            while(true) {
+                synchronized(lock) {
+                    while(fetching && !done) {
                         try {
-                            handleMessage((MimeMessage)msg);
-                        } catch (MessagingException e) {
-                            logger.log(Level.WARNING,"failed to handle message: "+msg.getSubject(),e);
-                            // but delete this message anyway
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            return;
                         }
                     }
-                    folder.close(true);
-                    logger.fine("done. going back to sleep");
-                } catch (MessagingException e) {
-                    logger.log(Level.WARNING,"failed to connect to the POP3 server",e);
+                    if(done)    return;
+                }
+                try {
+                    IDLE.invoke(folder);
+                } catch (InvocationTargetException e) {
+                    synchronized(lock) {
+                        if(done)    return;
+                    }
+                    logger.log(Level.INFO,"IDLE failed. checking the server every "+interval+"ms instead",e.getTargetException());
+                    return;
+                } catch (IllegalAccessException e) {
+                    throw new Error(e); // impossible
                 }
             }
         }
+
+        void shutDown() {
+            synchronized(lock) {
+                done = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * The maximum delay between attempts to reconnect.
+     */
+    private static final long MAX_BACKOFF = 5*60*1000;
+
+    /**
+     * <tt>IMAPFolder.idle()</tt>, if available.
+     */
+    private static final Method IDLE = findIdle();
+
+    private static Method findIdle() {
+        try {
+            return Class.forName("com.sun.mail.imap.IMAPFolder").getMethod("idle");
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            return null;    // JavaMail 1.4 or earlier
+        }
     }
 }
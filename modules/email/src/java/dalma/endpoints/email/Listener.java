@@ -4,6 +4,9 @@ import dalma.impl.EndPointImpl;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Listens to the incoming e-mail messages and pass it to
@@ -48,7 +51,93 @@ public abstract class Listener {
      * This method can be invoked from any thread.
      */
     protected void handleMessage(MimeMessage msg) throws MessagingException {
-        endPoint.handleMessage(msg);
+        handleMessage(msg,null);
+    }
+
+    /**
+     * Derived classes should call this method when
+     * a new e-mail is received, if they need to know when it's dispatched.
+     *
+     * <p>
+     * Derived classes should acknowledge an e-mail to where it came from
+     * (for example by removing it from the mailbox) only after it's dispatched,
+     * so that the e-mail is not lost if the engine dies before that.
+     *
+     * This method can be invoked from any thread.
+     *
+     * @param onDispatched
+     *      If non-null, run once the e-mail is dispatched to a conversation
+     *      (or failed to be.) This may happen in another thread, and before or
+     *      after this method returns. Not run if this method throws an exception.
+     */
+    protected void handleMessage(MimeMessage msg, Runnable onDispatched) throws MessagingException {
+        handleMessages(Collections.singletonList(msg),onDispatched);
+    }
+
+    /**
+     * Derived classes should call this method when
+     * multiple e-mails are received at once.
+     *
+     * <p>
+     * E-mails are read and dispatched in parallel where possible. If the e-mails
+     * belong to a folder, this method returns once all of them are read,
+     * so that the folder can be closed.
+     *
+     * This method can be invoked from any thread.
+     */
+    protected void handleMessages(Collection<? extends MimeMessage> msgs) throws MessagingException {
+        handleMessages(msgs,null);
+    }
+
+    /**
+     * Same as {@link #handleMessages(Collection)}, except that the callback is run
+     * once all the e-mails are dispatched, just like {@link #handleMessage(MimeMessage, Runnable)}.
+     */
+    protected void handleMessages(Collection<? extends MimeMessage> msgs, Runnable onDispatched) throws MessagingException {
+        endPoint.handleMessages(msgs,onDispatched);
+    }
+
+    /**
+     * Handles e-mails just like {@link #handleMessages(Collection)},
+     * but returns only after all of them are dispatched.
+     *
+     * <p>
+     * Derived classes that acknowledge e-mails from the thread that received them,
+     * such as by expunging a folder, can use this method.
+     *
+     * @return
+     *      false if the calling thread is interrupted before all the e-mails are dispatched.
+     *      The e-mails shouldn't be acknowledged then.
+     */
+    protected boolean handleMessagesAndWait(Collection<? extends MimeMessage> msgs) throws MessagingException {
+        final CountDownLatch done = new CountDownLatch(1);
+        handleMessages(msgs,new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+            return true;
+        } catch (InterruptedException e) {
+            // process this interruption later
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Checks if the endpoint has any use for the given e-mail,
+     * by only looking at its correlation headers
+     * (<tt>References</tt> and <tt>In-Reply-To</tt>.)
+     *
+     * <p>
+     * Derived classes that can retrieve the headers of an e-mail separately
+     * from the rest (such as POP3 TOP and IMAP4 FETCH) should call this method
+     * before retrieving the whole e-mail, and skip the e-mails that nobody needs.
+     */
+    protected boolean isWanted(MimeMessage msg) {
+        return endPoint.isWanted(msg);
     }
 
     /**
@@ -6,24 +6,63 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Picks up messages from <a href="http://en.wikipedia.org/wiki/Maildir">the maildir directory</a>.
  *
+ * <p>
+ * A new message is picked up as soon as it's delivered to <tt>new</tt>
+ * when the platform can notify us of new files (Java 7 and later.)
+ * Otherwise the directory is checked periodically.
+ *
+ * <p>
+ * Following the maildir protocol, a message is moved to <tt>cur</tt> when
+ * it's picked up, and marked as seen once it's dispatched. Messages are parsed
+ * and handled by multiple threads in parallel.
+ * Messages that were picked up but not dispatched before the endpoint stopped
+ * are handled when it starts again.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class MailDirListener extends Listener {
     private final File dir;
     private final int interval;
+    private final int nThreads;
     private final Thread thread;
 
+    /**
+     * Parses and handles messages. Created when started.
+     */
+    private ThreadPoolExecutor executor;
+
     private static final Logger logger = Logger.getLogger(MailDirListener.class.getName());
 
+    /**
+     * @param interval
+     *      The directory is checked every this many milliseconds.
+     *      When the platform notifies us of new messages, this is only
+     *      the safety net in case the notification is lost.
+     */
     public MailDirListener(File dir, int interval) {
+        this(dir,interval,4);
+    }
+
+    /**
+     * @param nThreads
+     *      Number of threads that parse and handle messages in parallel.
+     */
+    public MailDirListener(File dir, int interval, int nThreads) {
+        if(nThreads<1)
+            throw new IllegalArgumentException();
         this.dir = dir;
         this.interval = interval;
+        this.nThreads = nThreads;
         this.thread = new Thread(new Runner(),"MailDir listener thread for "+dir.getPath());
     }
 
@@ -33,6 +72,19 @@ public class MailDirListener extends Listener {
     }
 
     protected void start() {
+        // if the queue is full, the listener thread handles messages by itself,
+        // which holds off picking up more messages
+        executor = new ThreadPoolExecutor(nThreads,nThreads,0,TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(nThreads*4),
+            new ThreadFactory() {
+                private int iota;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r,"MailDir handler thread #"+(iota++)+" for "+dir.getPath());
+                    t.setDaemon(true);
+                    return t;
+                }
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
         thread.start();
     }
 
@@ -43,62 +95,127 @@ public class MailDirListener extends Listener {
         } catch (InterruptedException e) {
             // noop
         }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(interval,TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // noop
+        }
+    }
+
+    /**
+     * Moves a message from <tt>new</tt> to <tt>cur</tt>.
+     *
+     * @return
+     *      null if another process took the message first.
+     */
+    private File claim(File mail) {
+        File dst = new File(new File(dir,"cur"),mail.getName()+":2,");
+        if(!mail.renameTo(dst))
+            return null;
+        return dst;
+    }
+
+    /**
+     * Marks a message in <tt>cur</tt> as seen.
+     */
+    private void markSeen(File mail) {
+        String name = mail.getName();
+        File dst = new File(mail.getParentFile(),name+'S');
+        if(!mail.renameTo(dst))
+            logger.warning("Unable to rename "+mail+" to "+dst);
+    }
+
+    /**
+     * Parses and handles a message in <tt>cur</tt>.
+     */
+    private final class Handler implements Runnable {
+        private final File mail;
+
+        Handler(File mail) {
+            this.mail = mail;
+        }
+
+        public void run() {
+            try {
+                BufferedInputStream in = new BufferedInputStream(new FileInputStream(mail));
+                MimeMessage msg;
+                try {
+                    msg = new MimeMessageEx(getEndPoint().getSession(),in);
+                } catch(OutOfMemoryError e) {
+                    // got a message that's too big
+                    logger.log(Level.SEVERE, "Failed to read "+mail+". Marking it as seen");
+                    markSeen(mail);
+                    return;
+                } finally {
+                    in.close();
+                }
+
+                logger.fine("handling message: "+msg.getSubject());
+                try {
+                    // if we die before it's dispatched, it's handled again when we start next time
+                    handleMessage(msg,new Runnable() {
+                        public void run() {
+                            markSeen(mail);
+                        }
+                    });
+                } catch (MessagingException e) {
+                    logger.log(Level.WARNING,"failed to handle message: "+msg.getSubject(),e);
+                    // but mark this message anyway
+                    markSeen(mail);
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING,"failed to read "+mail,e);
+            } catch (MessagingException e) {
+                logger.log(Level.WARNING,"failed to parse "+mail,e);
+                markSeen(mail);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE,e.getMessage(),e);
+            }
+        }
     }
 
     private class Runner implements Runnable {
         public void run() {
+            File newDir = new File(dir,"new");
+            File curDir = new File(dir,"cur");
+            curDir.mkdirs();
+            DirectoryWatcher watcher = DirectoryWatcher.create(newDir);
             try {
+                // messages picked up but not handled last time
+                File[] files = curDir.listFiles();
+                if(files!=null) {
+                    for (File mail : files) {
+                        if(mail.getName().endsWith(":2,"))
+                            executor.execute(new Handler(mail));
+                    }
+                }
+
                 while(true) {
+                    files = newDir.listFiles();
+                    if(files!=null) {
+                        for(File mail : files ) {
+                            File claimed = claim(mail);
+                            if(claimed!=null)
+                                executor.execute(new Handler(claimed));
+                        }
+                    }
+                    // if the directory doesn't exist, just try again later.
+
+                    if(Thread.interrupted())
+                        return; // treat as a signal to die
                     try {
-                        Thread.sleep(interval);
+                        watcher.await(interval);
                     } catch (InterruptedException e) {
                         return; // treat as a signal to die
                     }
-                    try {
-                        File newDir = new File(dir,"new");
-                        File[] files = newDir.listFiles();
-                        if(files==null)
-                            continue;   // the directory doesn't exist.
-
-                        try {
-                            for(File mail : files ) {
-                                BufferedInputStream in = new BufferedInputStream(new FileInputStream(mail));
-                                try {
-                                    MimeMessage msg;
-                                    try {
-                                        msg = new MimeMessage(getEndPoint().getSession(),in);
-                                    } catch(OutOfMemoryError e) {
-                                        // got a message that's too big
-                                        logger.log(Level.SEVERE, "Failed to read "+mail+". Re-classifying to cur");
-                                        in.close();
-                                        mail.renameTo(new File(new File(dir,"cur"),mail.getName()));
-                                        continue;
-                                    }
-                                    
-                                    logger.fine("handling message: "+msg.getSubject());
-                                    try {
-                                        handleMessage(msg);
-                                    } catch (MessagingException e) {
-                                        logger.log(Level.WARNING,"failed to handle message: "+msg.getSubject(),e);
-                                        // but delete this message anyway
-                                    }
-                                } finally {
-                                    in.close();
-                                    mail.delete();
-                                }
-                            }
-                        } catch (IOException e) {
-                            logger.log(Level.WARNING,e.getMessage(),e);
-                        }
-                        logger.fine("done. going back to sleep");
-                    } catch (MessagingException e) {
-                        logger.log(Level.WARNING,e.getMessage(),e);
-                    }
                 }
             } catch (Error e) {
                 logger.log(Level.SEVERE,e.getMessage(),e);
             } catch (RuntimeException e) {
                 logger.log(Level.SEVERE,e.getMessage(),e);
+            } finally {
+                watcher.close();
             }
         }
     }
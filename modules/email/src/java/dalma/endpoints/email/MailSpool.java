@@ -0,0 +1,163 @@
+package dalma.endpoints.email;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps out-going e-mails on the disk until they are sent.
+ *
+ * <p>
+ * The layout follows maildir. An e-mail is first written to <tt>tmp</tt>,
+ * then moved to <tt>new</tt> once it's completely on the disk, and deleted
+ * once it's sent. E-mails that cannot be sent are moved to <tt>failed</tt>.
+ * E-mails left in <tt>new</tt> are sent again when the endpoint restarts.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class MailSpool {
+    private final File tmp,new_,failed;
+
+    private final Session session;
+
+    private long iota;
+
+    MailSpool(File dir, Session session) {
+        this.session = session;
+        tmp = new File(dir,"tmp");
+        new_ = new File(dir,"new");
+        failed = new File(dir,"failed");
+        tmp.mkdirs();
+        new_.mkdirs();
+        failed.mkdirs();
+    }
+
+    /**
+     * Loads e-mails that weren't sent before the last shutdown,
+     * in the order they were stored.
+     */
+    synchronized Map<File,MimeMessage> recover() {
+        // partially written e-mails were never accepted
+        File[] files = tmp.listFiles();
+        if(files!=null) {
+            for (File f : files)
+                delete(f);
+        }
+
+        Map<File,MimeMessage> r = new LinkedHashMap<File,MimeMessage>();
+        files = new_.listFiles();
+        if(files==null)
+            return r;
+
+        List<Long> ids = new ArrayList<Long>();
+        for (File f : files) {
+            String n = f.getName();
+            try {
+                if(n.endsWith(".eml")) {
+                    ids.add(Long.valueOf(n.substring(0,n.length()-4)));
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+            logger.warning("Ignoring unexpected file "+f);
+        }
+        Collections.sort(ids);
+
+        for (long id : ids) {
+            File f = getFile(new_,id);
+            try {
+                InputStream in = new BufferedInputStream(new FileInputStream(f));
+                try {
+                    r.put(f,new MimeMessage(session,in));
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING,"Failed to load the spooled e-mail "+f,e);
+                fail(f);
+            } catch (MessagingException e) {
+                logger.log(Level.WARNING,"Failed to load the spooled e-mail "+f,e);
+                fail(f);
+            }
+            iota = Math.max(iota,id+1);
+        }
+        return r;
+    }
+
+    /**
+     * Writes the e-mails to the disk.
+     *
+     * @return
+     *      the files that store the e-mails, in the same order.
+     */
+    List<File> store(Collection<? extends MimeMessage> msgs) throws IOException, MessagingException {
+        List<File> tmps = new ArrayList<File>(msgs.size());
+        List<File> files = new ArrayList<File>(msgs.size());
+        synchronized(this) {
+            for( int i=0; i<msgs.size(); i++ ) {
+                long id = iota++;
+                tmps.add(getFile(tmp,id));
+                files.add(getFile(new_,id));
+            }
+        }
+
+        int i=0;
+        for (MimeMessage msg : msgs) {
+            FileOutputStream fos = new FileOutputStream(tmps.get(i++));
+            try {
+                OutputStream out = new BufferedOutputStream(fos);
+                msg.writeTo(out);
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+        }
+
+        for( i=0; i<files.size(); i++ ) {
+            if(!tmps.get(i).renameTo(files.get(i)))
+                throw new IOException("Unable to move "+tmps.get(i)+" to "+files.get(i));
+        }
+        return files;
+    }
+
+    /**
+     * Removes an e-mail that was sent.
+     */
+    void delete(File f) {
+        if(!f.delete() && f.exists())
+            logger.warning("Unable to delete "+f);
+    }
+
+    /**
+     * Moves an e-mail that cannot be sent out of the way.
+     */
+    void fail(File f) {
+        File dst = new File(failed,f.getName());
+        if(!f.renameTo(dst))
+            logger.warning("Unable to move "+f+" to "+dst);
+    }
+
+    private static File getFile(File dir, long id) {
+        return new File(dir,id+".eml");
+    }
+
+    private static final Logger logger = Logger.getLogger(MailSpool.class.getName());
+}
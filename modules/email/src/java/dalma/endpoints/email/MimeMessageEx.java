@@ -1,5 +1,8 @@
 package dalma.endpoints.email;
 
+import dalma.spi.BlobStore;
+import dalma.spi.EngineSPI;
+
 import javax.activation.DataHandler;
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
@@ -7,6 +10,7 @@ import javax.mail.Session;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -22,9 +26,21 @@ import java.util.regex.Pattern;
 /**
  * A wrapper around {@link MimeMessage} to make it serializable.
  *
+ * <p>
+ * When a continuation is persisted, the e-mail is stored in the
+ * {@link BlobStore} of the conversation and only its ID goes into
+ * the continuation. So an e-mail that's kept across many suspensions
+ * is written only once.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class MimeMessageEx extends MimeMessage implements Serializable {
+    /**
+     * ID of the blob that has the same data as this e-mail, if we know one.
+     * Reset whenever the e-mail is modified.
+     */
+    private transient volatile String blobId;
+
     public MimeMessageEx(MimeMessage source) throws MessagingException {
         super(source);
     }
@@ -49,6 +65,31 @@ public class MimeMessageEx extends MimeMessage implements Serializable {
         }
     }
 
+    public void setHeader(String name, String value) throws MessagingException {
+        blobId = null;
+        super.setHeader(name, value);
+    }
+
+    public void addHeader(String name, String value) throws MessagingException {
+        blobId = null;
+        super.addHeader(name, value);
+    }
+
+    public void removeHeader(String name) throws MessagingException {
+        blobId = null;
+        super.removeHeader(name);
+    }
+
+    public void addHeaderLine(String line) throws MessagingException {
+        blobId = null;
+        super.addHeaderLine(line);
+    }
+
+    public void saveChanges() throws MessagingException {
+        blobId = null;
+        super.saveChanges();
+    }
+
     public MimeMessageEx reply(boolean replyToAll) throws MessagingException {
         MimeMessage msg = (MimeMessage)super.reply(replyToAll);
 
@@ -108,6 +149,7 @@ public class MimeMessageEx extends MimeMessage implements Serializable {
      * Working around another bug in JavaMail.
      */
     public synchronized void setDataHandler(DataHandler dh) throws MessagingException {
+        blobId = null;
         super.setDataHandler(dh);
 //        content = null;
 //        contentStream = null;
@@ -178,27 +220,116 @@ public class MimeMessageEx extends MimeMessage implements Serializable {
 
 
     private Object writeReplace() throws IOException, MessagingException {
+        EmailEndPoint endPoint = getSerializableEndPoint();
+
+        BlobStore store = BlobStore.current();
+        if(store==null) {
+            // not a part of the continuation. serialize inline
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            writeTo(baos);
+            return new Moniker(baos.toByteArray(),null,endPoint);
+        }
+
+        String id = blobId;
+        if(id!=null && store.reuse(id))
+            // unmodified since it's last stored
+            return new Moniker(null,id,endPoint);
+
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         writeTo(baos);
-        return new Moniker(baos.toByteArray());
+        // writeTo could have updated headers, so this has to come after that
+        byte[] data = baos.toByteArray();
+        id = store.put(data,0,data.length);
+        blobId = id;
+        return new Moniker(null,id,endPoint);
+    }
+
+    /**
+     * Gets the endpoint whose session this e-mail uses, if it can be serialized now.
+     *
+     * <p>
+     * Endpoints can be only restored by the engine that serialized them,
+     * so this is null unless the engine of the endpoint is serializing.
+     */
+    private EmailEndPoint getSerializableEndPoint() {
+        EngineSPI engine = EngineSPI.current();
+        if(engine==null)
+            return null;
+        return EmailEndPoint.of(session,engine);
     }
 
     private static final class Moniker implements Serializable {
+        /**
+         * The whole e-mail, if it's serialized inline.
+         */
         private final byte[] data;
+        /**
+         * The blob ID in {@link BlobStore}, if the e-mail is stored there.
+         */
+        private final String blob;
+        /**
+         * The endpoint whose session the e-mail uses, if any.
+         */
+        private final EmailEndPoint endPoint;
 
-        public Moniker(byte[] data) {
+        public Moniker(byte[] data, String blob, EmailEndPoint endPoint) {
             this.data = data;
+            this.blob = blob;
+            this.endPoint = endPoint;
         }
 
-        private Object readResolve() throws MessagingException {
-            return new MimeMessageEx(
-                Session.getInstance(System.getProperties()),
-                new ByteArrayInputStream(data));
+        private Object readResolve() throws IOException, MessagingException {
+            Session session = endPoint!=null ? endPoint.getSession() : getDefaultSession();
+            if(blob==null)
+                return new MimeMessageEx(session,new ByteArrayInputStream(data));
+
+            BlobStore store = BlobStore.current();
+            if(store==null)
+                throw new IOException("No blob store to load the e-mail "+blob+" from");
+            long size = store.getSize(blob);
+            if(size<0)
+                throw new IOException("The e-mail "+blob+" is missing");
+
+            MimeMessageEx msg;
+            if(size>MEMORY_THRESHOLD) {
+                // the body is paged in only when it's accessed
+                msg = new MimeMessageEx(session,new ByteBufferInputStream(store.map(blob)));
+            } else {
+                InputStream is = new BufferedInputStream(store.open(blob));
+                try {
+                    msg = new MimeMessageEx(session,is);
+                } finally {
+                    is.close();
+                }
+            }
+            msg.blobId = blob;
+            return msg;
         }
 
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Gets the session for e-mails that don't belong to any endpoint.
+     *
+     * <p>
+     * Creating a {@link Session} is expensive, as it loads the provider configuration files,
+     * so one session is shared. It still sees the changes to the system properties,
+     * since it doesn't copy them.
+     */
+    private static synchronized Session getDefaultSession() {
+        if(defaultSession==null)
+            defaultSession = Session.getInstance(System.getProperties());
+        return defaultSession;
+    }
+
+    private static Session defaultSession;
+
+    /**
+     * E-mails bigger than this are mapped into memory, instead of being read.
+     */
+    private static final int MEMORY_THRESHOLD = 64*1024;
+
     private static final long serialVersionUID = 1L;
 
 
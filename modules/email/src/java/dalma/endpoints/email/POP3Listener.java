@@ -1,11 +1,14 @@
 package dalma.endpoints.email;
 
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Store;
 import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,6 +23,13 @@ import java.util.logging.Logger;
  * (see {@link EmailEndPoint#getSession()}.)
  *
  * <p>
+ * The headers of e-mails are retrieved first, and the rest of
+ * an e-mail is only retrieved if the endpoint has a use for it.
+ * For example, a reply to a conversation that no longer exists
+ * is not retrieved when dead letters are not kept
+ * (see {@link EmailEndPoint#setMaxDeadLetters(int)}.)
+ *
+ * <p>
  * Once retrieved, e-mails are deleted from the server, regardless
  * of whether the processing of the e-mail succeeded or not (Otherwise
  * this listener will end up reading the same message over and over.)
@@ -93,17 +103,32 @@ public class POP3Listener extends Listener {
                     Folder folder = store.getFolder("INBOX");
                     folder.open(Folder.READ_WRITE);
                     Message[] msgs = folder.getMessages();
+
+                    // retrieve the headers first (by TOP), so that we only
+                    // retrieve the whole e-mails (by RETR) that we need
+                    FetchProfile fp = new FetchProfile();
+                    fp.add(FetchProfile.Item.ENVELOPE);
+                    folder.fetch(msgs,fp);
+
+                    List<MimeMessage> batch = new ArrayList<MimeMessage>(msgs.length);
                     for( Message msg : msgs ) {
-                        logger.fine("handling message: "+msg.getSubject());
+                        // delete this message regardless of the outcome of handling
                         msg.setFlag(Flags.Flag.DELETED,true);
-                        try {
-                            handleMessage((MimeMessage)msg);
-                        } catch (MessagingException e) {
-                            logger.log(Level.WARNING,"failed to handle message: "+msg.getSubject(),e);
-                            // but delete this message anyway
-                        }
+                        if(isWanted((MimeMessage)msg))
+                            batch.add((MimeMessage)msg);
+                        else
+                            logger.fine("nobody needs the e-mail #"+msg.getMessageNumber()+". skipping");
+                    }
+                    logger.fine("handling "+batch.size()+" messages");
+                    boolean dispatched = true;
+                    try {
+                        dispatched = handleMessagesAndWait(batch);
+                    } catch (MessagingException e) {
+                        logger.log(Level.WARNING,"failed to handle messages",e);
                     }
-                    folder.close(true);
+                    // the deletions only take effect here, after the e-mails are dispatched.
+                    // if we are interrupted before that, leave them on the server
+                    folder.close(dispatched);
                     logger.fine("done. going back to sleep");
                 } catch (MessagingException e) {
                     logger.log(Level.WARNING,"failed to connect to the POP3 server",e);
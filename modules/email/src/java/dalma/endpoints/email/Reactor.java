@@ -0,0 +1,244 @@
+package dalma.endpoints.email;
+
+import java.io.IOException;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread that talks to many non-blocking {@link SocketChannel}s.
+ *
+ * <p>
+ * Channels are handed over from another thread by {@link #register(SocketChannel, Handler)},
+ * and then they are only touched by this thread until they are closed.
+ * A handler can stop talking to the channel while it waits for another thread,
+ * which then asks this thread to {@link #resume(SocketChannel) resume} the channel.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class Reactor extends Thread {
+    /**
+     * Receives the data from a channel.
+     */
+    interface Handler {
+        /**
+         * Called when the channel has data to read.
+         *
+         * @return
+         *      false if the channel is done. The channel is closed,
+         *      and the handler is responsible for releasing its resources.
+         */
+        boolean read(SocketChannel channel) throws IOException;
+
+        /**
+         * Called when the channel can take more data, while {@link #isWriting()} is true.
+         *
+         * @return
+         *      false if the channel is done, just like {@link #read(SocketChannel)}.
+         */
+        boolean write(SocketChannel channel) throws IOException;
+
+        /**
+         * True if the handler has data to be written. While this is true,
+         * {@link #write(SocketChannel)} is called instead of {@link #read(SocketChannel)}.
+         */
+        boolean isWriting();
+
+        /**
+         * True while the handler waits for another thread, such as one dispatching
+         * a received e-mail. While this is true, neither {@link #read(SocketChannel)} nor
+         * {@link #write(SocketChannel)} is called, until the channel is {@link Reactor#resume(SocketChannel) resumed}.
+         */
+        boolean isSuspended();
+
+        /**
+         * Called after {@link Reactor#resume(SocketChannel)} is called for this channel.
+         *
+         * @return
+         *      false if the channel is done, just like {@link #read(SocketChannel)}.
+         */
+        boolean resume(SocketChannel channel) throws IOException;
+
+        /**
+         * Called when the channel is closed before it's done,
+         * because of an error or because the reactor is shutting down.
+         */
+        void dispose();
+    }
+
+    private final Selector selector;
+
+    /**
+     * Channels waiting to be registered to {@link #selector}.
+     * Registration has to be done by this thread, or else it blocks
+     * while this thread is selecting.
+     */
+    private final Queue<Registration> pending = new ConcurrentLinkedQueue<Registration>();
+
+    /**
+     * Channels to be {@link #resume(SocketChannel) resumed}.
+     */
+    private final Queue<SocketChannel> resumed = new ConcurrentLinkedQueue<SocketChannel>();
+
+    private static final Logger logger = Logger.getLogger(Reactor.class.getName());
+
+    Reactor(String name) throws IOException {
+        super(name);
+        setDaemon(true);
+        selector = Selector.open();
+    }
+
+    /**
+     * Starts reading from the channel.
+     */
+    void register(SocketChannel channel, Handler handler) {
+        pending.add(new Registration(channel,handler));
+        selector.wakeup();
+    }
+
+    /**
+     * Lets the handler of the channel continue, once what it waits for is done.
+     * Can be called from any thread.
+     *
+     * @see Handler#isSuspended()
+     */
+    void resume(SocketChannel channel) {
+        resumed.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Stops this thread and closes all the channels.
+     */
+    void shutDown() {
+        interrupt();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            // process the interruption later
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        try {
+            while(!isInterrupted()) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    // is this error recoverable?
+                    logger.log(Level.SEVERE,"failed to select a socket",e);
+                    return;
+                }
+
+                Registration r;
+                while((r=pending.poll())!=null)
+                    r.register();
+
+                SocketChannel c;
+                while((c=resumed.poll())!=null) {
+                    SelectionKey sk = c.keyFor(selector);
+                    if(sk!=null && sk.isValid())
+                        talk(sk,true);
+                }
+
+                for( SelectionKey sk : selector.selectedKeys() ) {
+                    if(sk.isValid())
+                        talk(sk,false);
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            // close any open connection
+            Registration r;
+            while((r=pending.poll())!=null) {
+                r.handler.dispose();
+                close(r.channel);
+            }
+            for (SelectionKey sk : selector.keys()) {
+                if(!sk.isValid())
+                    continue;   // closed already
+                ((Handler)sk.attachment()).dispose();
+                close(sk.channel());
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE,"failed to close a selector",e);
+            }
+        }
+    }
+
+    /**
+     * Lets the handler talk to its channel.
+     *
+     * @param resume
+     *      true if the channel is {@link #resume(SocketChannel) resumed},
+     *      false if it's selected.
+     */
+    private void talk(SelectionKey sk, boolean resume) {
+        SocketChannel channel = (SocketChannel) sk.channel();
+        Handler handler = (Handler) sk.attachment();
+        try {
+            boolean open;
+            if(resume)
+                open = handler.resume(channel);
+            else
+            if(sk.isWritable())
+                open = handler.write(channel);
+            else
+            if(sk.isReadable())
+                open = handler.read(channel);
+            else
+                return;
+            if(open)
+                sk.interestOps(getInterestOps(handler));
+            else
+                close(channel);
+        } catch (IOException e) {
+            logger.log(Level.WARNING,"failed to talk to a socket",e);
+            handler.dispose();
+            close(channel);
+        }
+    }
+
+    private static int getInterestOps(Handler h) {
+        if(h.isSuspended())
+            return 0;
+        return h.isWriting() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+    }
+
+    private static void close(Channel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE,"failed to close a socket",e);
+        }
+    }
+
+    private final class Registration {
+        final SocketChannel channel;
+        final Handler handler;
+
+        Registration(SocketChannel channel, Handler handler) {
+            this.channel = channel;
+            this.handler = handler;
+        }
+
+        void register() {
+            try {
+                channel.configureBlocking(false);
+                channel.register(selector,getInterestOps(handler),handler);
+            } catch (IOException e) {
+                logger.log(Level.WARNING,"failed to register a socket",e);
+                handler.dispose();
+                close(channel);
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package dalma.endpoints.email;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An e-mail being received from the network.
+ *
+ * <p>
+ * Data is first kept in buffers from a {@link BufferPool}. Once the e-mail
+ * gets bigger than {@link #MEMORY_THRESHOLD}, it is written to a temporary
+ * file, which is mapped into memory when the e-mail is parsed, so that
+ * the body is paged in only as needed. The file is closed and deleted right then,
+ * so a received e-mail never holds a file descriptor or a temporary file.
+ *
+ * <p>
+ * This class is not thread-safe, but it can be handed over from one thread to another.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class ReceivedData {
+    private final BufferPool pool;
+
+    /**
+     * Data received so far, if it's kept in memory.
+     */
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+    /**
+     * Number of bytes received so far.
+     */
+    private long size;
+
+    /**
+     * The temporary file that keeps the data, once it's written to the disk.
+     */
+    private File file;
+    private FileChannel fileChannel;
+
+    private static final Logger logger = Logger.getLogger(ReceivedData.class.getName());
+
+    ReceivedData(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Number of bytes received so far.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Gets the buffer to read data into.
+     * {@link #commit(int)} needs to be called afterward.
+     */
+    ByteBuffer buffer() {
+        ByteBuffer buf = chunks.isEmpty() ? null : chunks.get(chunks.size()-1);
+        if(buf==null || !buf.hasRemaining()) {
+            buf = pool.allocate();
+            chunks.add(buf);
+        }
+        return buf;
+    }
+
+    /**
+     * Records that the given number of bytes were read into {@link #buffer()}.
+     */
+    void commit(int len) throws IOException {
+        size += len;
+        if(fileChannel!=null || size>MEMORY_THRESHOLD)
+            spill();
+    }
+
+    /**
+     * Appends data.
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        while(len>0) {
+            ByteBuffer buf = buffer();
+            int n = Math.min(len,buf.remaining());
+            buf.put(b,off,n);
+            off += n;
+            len -= n;
+            commit(n);
+        }
+    }
+
+    /**
+     * Writes the data in memory to the temporary file.
+     */
+    private void spill() throws IOException {
+        if(fileChannel==null) {
+            file = File.createTempFile("dalma",".eml");
+            fileChannel = new FileOutputStream(file).getChannel();
+        }
+        for (ByteBuffer buf : chunks) {
+            buf.flip();
+            while(buf.hasRemaining())
+                fileChannel.write(buf);
+            pool.release(buf);
+        }
+        chunks.clear();
+    }
+
+    /**
+     * Parses the received data into an e-mail, and releases the resources.
+     */
+    MimeMessageEx parse(Session session) throws IOException, MessagingException {
+        try {
+            if(fileChannel==null) {
+                for (ByteBuffer buf : chunks)
+                    buf.flip();
+                // MimeMessage copies the data into its own memory
+                return new MimeMessageEx(session,new ChunkInputStream());
+            }
+
+            spill();
+            fileChannel.close();
+            fileChannel = null;
+            // the mapping stays valid after the file is closed, and on Unix,
+            // after it's deleted. MimeMessage refers to the mapping for the body
+            ByteBuffer data;
+            FileChannel ch = new RandomAccessFile(file,"r").getChannel();
+            try {
+                data = ch.map(FileChannel.MapMode.READ_ONLY,0,ch.size());
+            } finally {
+                ch.close();
+            }
+            return new MimeMessageEx(session,new ByteBufferInputStream(data));
+        } finally {
+            // release the buffers and the file
+            dispose();
+        }
+    }
+
+    /**
+     * Releases the resources.
+     */
+    void dispose() {
+        for (ByteBuffer buf : chunks)
+            pool.release(buf);
+        chunks.clear();
+        if(fileChannel!=null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE,"failed to close "+file,e);
+            }
+            fileChannel = null;
+        }
+        if(file!=null) {
+            if(!file.delete()) {
+                // on Windows, a file can't be deleted while it's mapped
+                logger.fine("Unable to delete "+file+". Deleting it on exit");
+                file.deleteOnExit();
+            }
+            file = null;
+        }
+    }
+
+    /**
+     * Reads the data in {@link #chunks}.
+     */
+    private final class ChunkInputStream extends InputStream {
+        private int idx;
+
+        private ByteBuffer current() {
+            while(idx<chunks.size()) {
+                ByteBuffer buf = chunks.get(idx);
+                if(buf.hasRemaining())
+                    return buf;
+                idx++;
+            }
+            return null;
+        }
+
+        public int read(byte b[], int off, int len) {
+            ByteBuffer buf = current();
+            if(buf==null)
+                return -1;
+            len = Math.min(len, buf.remaining());
+            buf.get(b,off,len);
+            return len;
+        }
+
+        public int read() {
+            ByteBuffer buf = current();
+            if(buf==null)
+                return -1;
+            return buf.get()&0xFF;
+        }
+    }
+
+    /**
+     * E-mails bigger than this are written to a temporary file while they are received.
+     */
+    private static final int MEMORY_THRESHOLD = 64*1024;
+}
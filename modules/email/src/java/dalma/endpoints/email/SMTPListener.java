@@ -0,0 +1,558 @@
+package dalma.endpoints.email;
+
+import dalma.DalmaException;
+
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link Listener} that receives e-mails by speaking SMTP.
+ *
+ * <p>
+ * This listener works as a small SMTP server that accepts e-mails
+ * for local delivery (it never relays e-mails elsewhere.) An MTA can be
+ * configured to forward e-mails for the endpoint's address to this listener,
+ * and they are handed to {@link EmailEndPoint} as soon as they arrive.
+ *
+ * <p>
+ * The server supports ESMTP with PIPELINING, 8BITMIME, and SIZE.
+ * Connections are handled by a few threads with non-blocking I/O.
+ * E-mails are written to a temporary file while they are received
+ * if they are big, and they are parsed and dispatched by another
+ * set of threads once they are accepted.
+ *
+ * <p>
+ * An e-mail is accepted only after it's dispatched to the endpoint.
+ * If the engine dies before that, the client still has the e-mail and sends it again later.
+ * Meanwhile the connection waits, and the commands pipelined after the e-mail
+ * are processed after that.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class SMTPListener extends Listener {
+    private final TCPServer server;
+
+    /**
+     * The name of this host used in SMTP greetings.
+     */
+    private String hostName = getLocalHostName();
+
+    /**
+     * @see #setMaxMessageSize(long)
+     */
+    private long maxMessageSize = 16*1024*1024;
+
+    private static final Logger logger = Logger.getLogger(SMTPListener.class.getName());
+
+    /**
+     * Listens to the given port of the loopback interface.
+     */
+    public SMTPListener(int port) {
+        this(new InetSocketAddress(getLoopbackAddress(),port));
+    }
+
+    public SMTPListener(InetAddress listenAddress, int port) {
+        this(new InetSocketAddress(listenAddress,port));
+    }
+
+    public SMTPListener(InetSocketAddress address) {
+        server = new TCPServer("SMTP listener "+address,address) {
+            Reactor.Handler createHandler(SocketChannel channel, Reactor reactor) {
+                return new Connection(channel,reactor);
+            }
+        };
+    }
+
+    /**
+     * Sets the host name this server uses to identify itself.
+     * Defaults to the name of the local host.
+     */
+    public void setHostName(String hostName) {
+        this.hostName = hostName;
+    }
+
+    /**
+     * Sets the maximum size of an e-mail in bytes.
+     * Bigger e-mails are rejected. Defaults to 16MB.
+     */
+    public void setMaxMessageSize(long size) {
+        this.maxMessageSize = size;
+    }
+
+    /**
+     * Sets the number of threads that talk to clients.
+     * Defaults to 2. Must be set before the listener is started.
+     */
+    public void setReactorThreads(int n) {
+        server.setReactorThreads(n);
+    }
+
+    /**
+     * Sets the number of threads that parse received e-mails.
+     * Defaults to 4. Must be set before the listener is started.
+     */
+    public void setWorkerThreads(int n) {
+        server.setWorkerThreads(n);
+    }
+
+    protected void start() {
+        try {
+            server.start();
+        } catch (IOException e) {
+            throw new DalmaException(e);
+        }
+    }
+
+    protected void stop() {
+        server.stop();
+    }
+
+    /**
+     * A connection from an SMTP client.
+     */
+    private final class Connection implements Reactor.Handler {
+        private final SocketChannel channel;
+        private final Reactor reactor;
+        private final String remoteAddress;
+
+        /**
+         * Bytes received from the client.
+         */
+        private final ByteBuffer in = ByteBuffer.allocate(4096);
+
+        /**
+         * Replies to be sent to the client.
+         */
+        private ByteBuffer out = ByteBuffer.allocate(1024);
+
+        /**
+         * The line being received.
+         */
+        private final byte[] line = new byte[MAX_LINE_LENGTH];
+        private int lineLength;
+
+        /**
+         * True if the line being received is longer than {@link #MAX_LINE_LENGTH}.
+         */
+        private boolean lineTooLong;
+
+        /**
+         * The domain given by HELO/EHLO. Null until then.
+         */
+        private String helo;
+
+        /**
+         * True once MAIL is accepted.
+         */
+        private boolean inTransaction;
+        private int recipients;
+
+        /**
+         * Non-null while receiving DATA.
+         */
+        private ReceivedData data;
+
+        /**
+         * True if the e-mail being received exceeded {@link #maxMessageSize}.
+         */
+        private boolean tooBig;
+
+        /**
+         * True if the line being received is at the beginning of a line.
+         * Dots are only significant there.
+         */
+        private boolean atLineStart;
+
+        /**
+         * True while the e-mail just received is being dispatched.
+         * We reply to the client, and go on to the next command, after that.
+         */
+        private boolean dispatching;
+
+        /**
+         * The reply to the e-mail being dispatched, if it failed.
+         * Set by the thread that dispatches the e-mail.
+         */
+        private volatile String dispatchError;
+
+        /**
+         * True once QUIT is received.
+         */
+        private boolean quitting;
+
+        Connection(SocketChannel channel, Reactor reactor) {
+            this.channel = channel;
+            this.reactor = reactor;
+            InetSocketAddress remote = (InetSocketAddress)channel.socket().getRemoteSocketAddress();
+            remoteAddress = remote==null ? "unknown" : remote.getAddress().getHostAddress();
+            reply("220 "+hostName+" ESMTP dalma");
+        }
+
+        public boolean read(SocketChannel channel) throws IOException {
+            int r = channel.read(in);
+            if(r<0) {
+                // the client disconnected without QUIT
+                dispose();
+                return false;
+            }
+
+            process();
+            return flush(channel);
+        }
+
+        /**
+         * Processes the bytes received so far, until an e-mail needs to be dispatched.
+         */
+        private void process() throws IOException {
+            in.flip();
+            while(in.hasRemaining() && !quitting && !dispatching) {
+                byte b = in.get();
+                if(data!=null)
+                    readData(b);
+                else
+                    readCommand(b);
+            }
+            if(quitting)
+                // anything after QUIT is ignored
+                in.clear();
+            else
+                // keep what's pipelined after the e-mail until it's dispatched
+                in.compact();
+        }
+
+        public boolean write(SocketChannel channel) throws IOException {
+            return flush(channel);
+        }
+
+        public boolean isWriting() {
+            return out.position()>0;
+        }
+
+        public boolean isSuspended() {
+            // the replies before the e-mail can still go out
+            return dispatching && !isWriting();
+        }
+
+        public boolean resume(SocketChannel channel) throws IOException {
+            String error = dispatchError;
+            dispatchError = null;
+            dispatching = false;
+            reply(error!=null ? error : "250 2.0.0 OK");
+            process();
+            return flush(channel);
+        }
+
+        /**
+         * Sends the pending replies as much as possible.
+         *
+         * @return
+         *      false if the connection is done.
+         */
+        private boolean flush(SocketChannel channel) throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            return !quitting || isWriting();
+        }
+
+        public void dispose() {
+            if(data!=null) {
+                data.dispose();
+                data = null;
+            }
+        }
+
+        private void readCommand(byte b) {
+            if(b!='\n') {
+                if(lineLength<line.length)
+                    line[lineLength++] = b;
+                else
+                    lineTooLong = true;
+                return;
+            }
+
+            int len = lineLength;
+            if(len>0 && line[len-1]=='\r')
+                len--;
+            lineLength = 0;
+            if(lineTooLong) {
+                lineTooLong = false;
+                reply("500 5.5.6 Line too long");
+                return;
+            }
+
+            try {
+                handleCommand(new String(line,0,len,"ISO-8859-1"));
+            } catch (IOException e) {
+                logger.log(Level.WARNING,"Failed to receive an e-mail from "+remoteAddress,e);
+                dispose();
+                reply("451 4.3.0 Local error in processing");
+            }
+        }
+
+        private void handleCommand(String cmd) throws IOException {
+            String verb = cmd;
+            String arg = "";
+            int idx = cmd.indexOf(' ');
+            if(idx>=0) {
+                verb = cmd.substring(0,idx);
+                arg = cmd.substring(idx+1).trim();
+            }
+            verb = verb.toUpperCase(Locale.ENGLISH);
+
+            if(verb.equals("HELO") || verb.equals("EHLO")) {
+                if(arg.length()==0) {
+                    reply("501 5.5.4 Domain name required");
+                    return;
+                }
+                helo = arg;
+                resetTransaction();
+                if(verb.equals("HELO"))
+                    reply("250 "+hostName);
+                else
+                    reply("250-"+hostName+"\r\n"+
+                          "250-PIPELINING\r\n"+
+                          "250-8BITMIME\r\n"+
+                          "250 SIZE "+maxMessageSize);
+                return;
+            }
+
+            if(verb.equals("MAIL")) {
+                if(helo==null) {
+                    reply("503 5.5.1 Send HELO/EHLO first");
+                    return;
+                }
+                if(inTransaction) {
+                    reply("503 5.5.1 Nested MAIL command");
+                    return;
+                }
+                if(!arg.toUpperCase(Locale.ENGLISH).startsWith("FROM:")) {
+                    reply("501 5.5.4 Syntax: MAIL FROM:<address>");
+                    return;
+                }
+                long size = getSizeParameter(arg);
+                if(size>maxMessageSize) {
+                    reply("552 5.3.4 Message size exceeds fixed maximum message size");
+                    return;
+                }
+                inTransaction = true;
+                reply("250 2.1.0 OK");
+                return;
+            }
+
+            if(verb.equals("RCPT")) {
+                if(!inTransaction) {
+                    reply("503 5.5.1 Need MAIL command");
+                    return;
+                }
+                if(!arg.toUpperCase(Locale.ENGLISH).startsWith("TO:")) {
+                    reply("501 5.5.4 Syntax: RCPT TO:<address>");
+                    return;
+                }
+                if(recipients>=MAX_RECIPIENTS) {
+                    reply("452 4.5.3 Too many recipients");
+                    return;
+                }
+                recipients++;
+                reply("250 2.1.5 OK");
+                return;
+            }
+
+            if(verb.equals("DATA")) {
+                if(recipients==0) {
+                    reply(inTransaction ? "503 5.5.1 Need RCPT command" : "503 5.5.1 Need MAIL command");
+                    return;
+                }
+                data = new ReceivedData(server.pool);
+                tooBig = false;
+                atLineStart = true;
+                // trace header required by RFC 2821
+                byte[] received = ("Received: from "+helo+" (["+remoteAddress+"])\r\n"+
+                    "\tby "+hostName+" with ESMTP; "+
+                    new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z",Locale.ENGLISH).format(new Date())+"\r\n").getBytes("ISO-8859-1");
+                data.write(received,0,received.length);
+                reply("354 End data with <CR><LF>.<CR><LF>");
+                return;
+            }
+
+            if(verb.equals("RSET")) {
+                resetTransaction();
+                reply("250 2.0.0 OK");
+                return;
+            }
+
+            if(verb.equals("NOOP")) {
+                reply("250 2.0.0 OK");
+                return;
+            }
+
+            if(verb.equals("VRFY")) {
+                reply("252 2.5.2 Cannot VRFY user");
+                return;
+            }
+
+            if(verb.equals("QUIT")) {
+                reply("221 2.0.0 Bye");
+                quitting = true;
+                return;
+            }
+
+            reply("502 5.5.2 Command not recognized");
+        }
+
+        /**
+         * Gets the value of the SIZE parameter of the MAIL command, or -1.
+         */
+        private long getSizeParameter(String arg) {
+            for( String token : arg.split(" ") ) {
+                if(token.toUpperCase(Locale.ENGLISH).startsWith("SIZE=")) {
+                    try {
+                        return Long.parseLong(token.substring(5));
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private void resetTransaction() {
+            inTransaction = false;
+            recipients = 0;
+        }
+
+        private void readData(byte b) throws IOException {
+            line[lineLength++] = b;
+            if(b=='\n') {
+                if(atLineStart && isEndOfData()) {
+                    lineLength = 0;
+                    endOfData();
+                    return;
+                }
+                writeData(line,lineLength);
+                atLineStart = true;
+            } else
+            if(lineLength==line.length) {
+                // the line is too long. pass it through
+                writeData(line,lineLength);
+                atLineStart = false;
+            }
+        }
+
+        private boolean isEndOfData() {
+            return (lineLength==3 && line[0]=='.' && line[1]=='\r')
+                || (lineLength==2 && line[0]=='.');
+        }
+
+        /**
+         * Writes the data in the line buffer, undoing the dot-stuffing.
+         */
+        private void writeData(byte[] buf, int len) throws IOException {
+            int off = (atLineStart && buf[0]=='.') ? 1 : 0;
+            lineLength = 0;
+            if(tooBig)
+                return; // we are just waiting for the end of the data
+
+            if(data.size()+len-off>maxMessageSize) {
+                tooBig = true;
+                data.dispose();
+                return;
+            }
+            data.write(buf,off,len-off);
+        }
+
+        private void endOfData() {
+            final ReceivedData d = data;
+            data = null;
+            resetTransaction();
+
+            if(tooBig) {
+                reply("552 5.3.4 Message size exceeds fixed maximum message size");
+                return;
+            }
+
+            // parse and dispatch in another thread, and reply once that's done
+            dispatching = true;
+            server.execute(new Runnable() {
+                public void run() {
+                    Runnable done = new Runnable() {
+                        public void run() {
+                            reactor.resume(channel);
+                        }
+                    };
+                    try {
+                        handleMessage(d.parse(getEndPoint().getSession()),done);
+                        return;
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING,"failed to read an e-mail",e);
+                        dispatchError = "451 4.3.0 Local error in processing";
+                    } catch (MessagingException e) {
+                        logger.log(Level.WARNING,"failed to parse an e-mail",e);
+                        dispatchError = "554 5.6.0 Unable to parse the message";
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING,"failed to handle an e-mail",e);
+                        dispatchError = "451 4.3.0 Local error in processing";
+                    }
+                    done.run();
+                }
+            });
+        }
+
+        /**
+         * Queues a reply.
+         */
+        private void reply(String msg) {
+            byte[] b;
+            try {
+                b = (msg+"\r\n").getBytes("ISO-8859-1");
+            } catch (UnsupportedEncodingException e) {
+                throw new Error(e); // impossible
+            }
+            if(out.remaining()<b.length) {
+                // pipelined commands can produce many replies at once
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity()*2,out.position()+b.length));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            out.put(b);
+        }
+    }
+
+    private static String getLocalHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    private static InetAddress getLoopbackAddress() {
+        try {
+            return InetAddress.getAllByName(null)[0];
+        } catch (UnknownHostException e) {
+            throw new Error(e); // impossible
+        }
+    }
+
+    /**
+     * RFC 2821 requires us to accept lines of 1000 characters including CRLF.
+     */
+    private static final int MAX_LINE_LENGTH = 1000;
+
+    /**
+     * RFC 2821 requires us to accept 100 recipients.
+     */
+    private static final int MAX_RECIPIENTS = 100;
+}
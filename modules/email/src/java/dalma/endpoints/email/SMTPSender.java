@@ -0,0 +1,454 @@
+package dalma.endpoints.email;
+
+import dalma.metrics.Gauge;
+import dalma.metrics.Meter;
+import dalma.metrics.MetricsRegistry;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends e-mails via SMTP from a pool of threads.
+ *
+ * <p>
+ * Each thread keeps its own SMTP connection open while there are e-mails to send,
+ * and for a while after that, so that multiple e-mails are sent through one connection.
+ *
+ * <p>
+ * E-mails are grouped by the domain of their first recipient, and e-mails of
+ * one domain are sent by one thread at a time, in batches. So a slow recipient
+ * domain only holds up one thread, while the other threads keep sending
+ * e-mails to the other domains.
+ *
+ * <p>
+ * An e-mail that fails to be sent is retried a few times with increasing delays,
+ * unless the failure is permanent, such as when all the recipients are rejected.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class SMTPSender {
+    private static final class Unit {
+        final MimeMessage msg;
+        final String domain;
+        /**
+         * Where this e-mail is sent from, for debugging. Null unless enabled.
+         */
+        final Throwable creator;
+        /**
+         * Number of times we tried to send this e-mail.
+         */
+        int attempts;
+        /**
+         * The file in the spool that keeps this e-mail. Null if not spooled.
+         */
+        File file;
+
+        private Unit(MimeMessage msg, boolean captureStackTrace) throws MessagingException {
+            this.msg = msg;
+            this.domain = getDomain(msg);
+            creator = captureStackTrace ? new Exception("Message created here") : null;
+        }
+    }
+
+    private final String name;
+
+    private final Session session;
+
+    /**
+     * E-mails waiting to be sent, grouped by the domain.
+     */
+    private final Map<String,LinkedList<Unit>> queues = new HashMap<String,LinkedList<Unit>>();
+
+    /**
+     * Domains that have e-mails waiting and no thread is sending to.
+     */
+    private final LinkedList<String> ready = new LinkedList<String>();
+
+    /**
+     * Domains that threads are sending to.
+     */
+    private final Set<String> busy = new HashSet<String>();
+
+    private final List<Worker> workers = new ArrayList<Worker>();
+
+    /**
+     * Schedules retries. Null until started.
+     */
+    private Timer retryTimer;
+
+    private boolean isShuttingDown = false;
+
+    /**
+     * Keeps e-mails until they are sent. Null to keep them only in memory.
+     */
+    private MailSpool spool;
+
+    /**
+     * Number of e-mails queued but not yet sent or given up.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private Meter sent, retried, failed;
+
+    private int poolSize = 4;
+    private long keepAlive = 30*1000;
+    private int maxAttempts = 4;
+    private long retryDelay = 5*1000;
+    private boolean captureStackTrace = false;
+
+    private static final Logger logger = Logger.getLogger(SMTPSender.class.getName());
+
+    public SMTPSender(String name, Session session) {
+        this.name = name;
+        this.session = session;
+    }
+
+    /**
+     * Sets the number of threads, thus the maximum number of SMTP connections.
+     */
+    public void setPoolSize(int poolSize) {
+        if(poolSize<1)
+            throw new IllegalArgumentException();
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Sets the number of milliseconds an idle SMTP connection is kept open.
+     */
+    public void setKeepAlive(long keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Sets the number of times an e-mail is sent before giving up.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if(maxAttempts<1)
+            throw new IllegalArgumentException();
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Sets the delay before the first retry in milliseconds.
+     * The delay doubles for each retry thereafter.
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * If true, the stack trace of the code that sent an e-mail is
+     * recorded, and reported when the e-mail cannot be sent.
+     */
+    public void setCaptureStackTrace(boolean captureStackTrace) {
+        this.captureStackTrace = captureStackTrace;
+    }
+
+    /**
+     * Starts sending e-mails.
+     *
+     * @param spool
+     *      if non-null, e-mails are written to this spool before {@link #queue(Collection)}
+     *      returns, and the e-mails left in the spool are sent.
+     * @param metrics
+     *      the delivery statistics are recorded with this prefix.
+     */
+    public synchronized void start(MailSpool spool, MetricsRegistry metrics, String prefix) {
+        this.spool = spool;
+        sent = metrics.meter(prefix+"sent");
+        retried = metrics.meter(prefix+"retried");
+        failed = metrics.meter(prefix+"failed");
+        metrics.gauge(prefix+"pending",new Gauge() {
+            public long getValue() {
+                return pending.get();
+            }
+        });
+
+        if(spool!=null) {
+            Map<File,MimeMessage> msgs = spool.recover();
+            if(!msgs.isEmpty())
+                logger.info("Resending "+msgs.size()+" e-mails left in the spool");
+            for (Map.Entry<File,MimeMessage> e : msgs.entrySet()) {
+                try {
+                    Unit u = new Unit(e.getValue(),false);
+                    u.file = e.getKey();
+                    pending.incrementAndGet();
+                    add(u);
+                } catch (MessagingException x) {
+                    logger.log(Level.WARNING,"Failed to load the spooled e-mail "+e.getKey(),x);
+                    spool.fail(e.getKey());
+                }
+            }
+        }
+
+        retryTimer = new Timer("SMTP retry timer for "+name,true);
+        for( int i=0; i<poolSize; i++ ) {
+            Worker w = new Worker(i);
+            workers.add(w);
+            w.start();
+        }
+    }
+
+    public void queue(MimeMessage msg) {
+        queue(Collections.singletonList(msg));
+    }
+
+    /**
+     * Queues multiple messages at once, so that those to the same domain
+     * will be sent through one SMTP connection.
+     */
+    public void queue(Collection<? extends MimeMessage> batch) {
+        List<Unit> units = new ArrayList<Unit>(batch.size());
+        try {
+            for (MimeMessage msg : batch)
+                units.add(new Unit(msg,captureStackTrace));
+        } catch (MessagingException e) {
+            throw new EmailException(e);
+        }
+
+        MailSpool spool;
+        synchronized(this) {
+            if(isShuttingDown)
+                throw new IllegalStateException("the sender is shutting down");
+            spool = this.spool;
+        }
+        if(spool!=null) {
+            try {
+                List<File> files = spool.store(batch);
+                for( int i=0; i<units.size(); i++ )
+                    units.get(i).file = files.get(i);
+            } catch (IOException e) {
+                throw new EmailException("Failed to spool e-mails",e);
+            } catch (MessagingException e) {
+                throw new EmailException("Failed to spool e-mails",e);
+            }
+        }
+
+        synchronized(this) {
+            pending.addAndGet(units.size());
+            for (Unit u : units)
+                add(u);
+            notifyAll();
+        }
+    }
+
+    private void add(Unit u) {
+        LinkedList<Unit> q = queues.get(u.domain);
+        if(q==null) {
+            queues.put(u.domain,q=new LinkedList<Unit>());
+            if(!busy.contains(u.domain))
+                ready.add(u.domain);
+        }
+        q.add(u);
+    }
+
+    /**
+     * Waits for the next batch of e-mails to send.
+     *
+     * @return
+     *      null if the wait timed out, or if the sender is shutting down
+     *      and there's nothing left to send.
+     */
+    private synchronized List<Unit> take(long timeout) throws InterruptedException {
+        if(ready.isEmpty() && !isShuttingDown)
+            wait(timeout);
+        if(ready.isEmpty())
+            return null;
+
+        String domain = ready.removeFirst();
+        busy.add(domain);
+        LinkedList<Unit> q = queues.get(domain);
+        List<Unit> batch = new ArrayList<Unit>();
+        while(!q.isEmpty() && batch.size()<MAX_BATCH_SIZE)
+            batch.add(q.removeFirst());
+        return batch;
+    }
+
+    /**
+     * Called when a thread is done with a batch.
+     */
+    private synchronized void release(String domain) {
+        busy.remove(domain);
+        LinkedList<Unit> q = queues.get(domain);
+        if(q.isEmpty())
+            queues.remove(domain);
+        else {
+            ready.add(domain);
+            notify();
+        }
+    }
+
+    private void retry(final Unit u) {
+        long delay = retryDelay<<(u.attempts-1);
+        logger.fine(name+" : retrying "+u.domain+" in "+delay+"ms");
+        synchronized(this) {
+            if(isShuttingDown) {
+                if(u.file==null)
+                    logger.warning("Giving up an e-mail to "+u.domain+" as the sender is shutting down");
+                return;
+            }
+            retryTimer.schedule(new TimerTask() {
+                public void run() {
+                    synchronized(SMTPSender.this) {
+                        if(isShuttingDown)
+                            return;
+                        add(u);
+                        notify();
+                    }
+                }
+            },delay);
+        }
+    }
+
+    public void shutDown() {
+        synchronized(this) {
+            if(isShuttingDown)
+                return;
+            isShuttingDown = true;
+            if(retryTimer!=null)
+                retryTimer.cancel();
+            notifyAll();
+        }
+        try {
+            for (Worker w : workers)
+                w.join();
+        } catch (InterruptedException e) {
+            // process an interrupt later
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String getDomain(MimeMessage msg) throws MessagingException {
+        Address[] to = msg.getAllRecipients();
+        if(to==null || to.length==0 || !(to[0] instanceof InternetAddress))
+            return "";
+        String a = ((InternetAddress)to[0]).getAddress();
+        if(a==null)
+            return "";
+        return a.substring(a.lastIndexOf('@')+1).toLowerCase();
+    }
+
+    /**
+     * Thread that owns one SMTP connection.
+     */
+    private final class Worker extends Thread {
+        private Transport transport;
+
+        Worker(int id) {
+            super("SMTP sender thread #"+id+" for "+name);
+        }
+
+        public void run() {
+            while(true) {
+                List<Unit> batch;
+                try {
+                    batch = take(keepAlive);
+                } catch (InterruptedException e) {
+                    batch = null;
+                }
+
+                if(batch==null) {
+                    // idle
+                    disconnect();
+                    synchronized(SMTPSender.this) {
+                        if(isShuttingDown && ready.isEmpty())
+                            return;
+                    }
+                    continue;
+                }
+
+                try {
+                    send(batch);
+                } catch (RuntimeException e) {
+                    // don't let the thread die
+                    logger.log(Level.WARNING,"Unexpected error",e);
+                } catch (Error e) {
+                    // don't let the thread die
+                    logger.log(Level.WARNING,"Unexpected error",e);
+                } finally {
+                    release(batch.get(0).domain);
+                }
+            }
+        }
+
+        private void send(List<Unit> batch) {
+            logger.fine(getName()+" : sending "+batch.size()+" e-mails to "+batch.get(0).domain);
+            for (Unit u : batch) {
+                u.attempts++;
+                try {
+                    if(transport==null || !transport.isConnected()) {
+                        transport = session.getTransport("smtp");
+                        transport.connect();
+                    }
+                    transport.sendMessage(u.msg,u.msg.getAllRecipients());
+                    sent.mark();
+                    pending.decrementAndGet();
+                    if(u.file!=null)
+                        spool.delete(u.file);
+                } catch (MessagingException e) {
+                    if(!(e instanceof SendFailedException))
+                        disconnect(); // the connection may be broken
+                    if(isPermanent(e) || u.attempts>=maxAttempts) {
+                        logger.log(Level.WARNING,"Failed to send an e-mail via SMTP",e);
+                        if(u.creator!=null)
+                            logger.log(Level.WARNING,"Message created here",u.creator);
+                        failed.mark();
+                        pending.decrementAndGet();
+                        if(u.file!=null)
+                            spool.fail(u.file);
+                    } else {
+                        logger.log(Level.FINE,"Failed to send an e-mail via SMTP. Will retry",e);
+                        retried.mark();
+                        retry(u);
+                    }
+                }
+            }
+        }
+
+        private boolean isPermanent(MessagingException e) {
+            if(e instanceof SendFailedException) {
+                Address[] a = ((SendFailedException)e).getValidUnsentAddresses();
+                return a==null || a.length==0;
+            }
+            return false;
+        }
+
+        private void disconnect() {
+            if(transport==null)
+                return;
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                logger.log(Level.FINE,"Failed to close the SMTP connection",e);
+            }
+            transport = null;
+        }
+    }
+
+    /**
+     * Maximum number of e-mails a thread sends to one domain
+     * before giving other domains a turn.
+     */
+    private static final int MAX_BATCH_SIZE = 32;
+}
@@ -3,19 +3,11 @@ package dalma.endpoints.email;
 import dalma.DalmaException;
 
 import javax.mail.MessagingException;
-import javax.mail.internet.MimeMessage;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,17 +37,22 @@ import java.util.logging.Logger;
  * <p>
  * Doing this with sendmail requires tinkering with <tt>/etc/aliases</tt>.
  *
+ * <p>
+ * Connections are read by a few threads, and received messages are
+ * parsed and dispatched by another set of threads, so a slow client
+ * or a huge message doesn't hold up other connections.
+ * A connection is closed only after the message is dispatched to the endpoint,
+ * so that the client can tell that we have it.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class TCPListener extends Listener {
-    private final Thread thread;
-
-    private InetSocketAddress address;
+    private final TCPServer server;
 
     /**
-     * Once the TCP port is open, set to non-null.
+     * @see #setMaxMessageSize(long)
      */
-    private Selector selector = null;
+    private long maxMessageSize = 16*1024*1024;
 
     private static final Logger logger = Logger.getLogger(TCPListener.class.getName());
 
@@ -67,94 +64,50 @@ public class TCPListener extends Listener {
         this(new InetSocketAddress(listenAddress,port));
     }
     public TCPListener(InetSocketAddress adrs) {
-        thread = new Thread(new Runner());
-        this.address = adrs;
+        server = new TCPServer("TCP listener "+adrs,adrs) {
+            Reactor.Handler createHandler(SocketChannel channel, Reactor reactor) {
+                return new ReceivedMessage(channel,reactor);
+            }
+        };
     }
 
-    protected void start() {
-        try {
-            ServerSocketChannel ssc = ServerSocketChannel.open();
-            ssc.configureBlocking(false);
-            ssc.socket().bind(address);
-
-            selector = SelectorProvider.provider().openSelector();
-            ssc.register(selector, SelectionKey.OP_ACCEPT);
-        } catch (IOException e) {
-            throw new DalmaException(e);
-        }
+    /**
+     * Sets the maximum size of a message in bytes.
+     *
+     * <p>
+     * A connection that sends a bigger message is closed
+     * and the message is discarded. Defaults to 16MB.
+     */
+    public void setMaxMessageSize(long size) {
+        this.maxMessageSize = size;
+    }
 
-        thread.start();
+    /**
+     * Sets the number of threads that receive data from connections.
+     * Defaults to 2. Must be set before the listener is started.
+     */
+    public void setReactorThreads(int n) {
+        server.setReactorThreads(n);
     }
 
-    protected void stop() {
-        thread.interrupt();
-        try {
-            thread.join();
-        } catch (InterruptedException e) {
-            // process the interruption later
-            Thread.currentThread().interrupt();
-        }
+    /**
+     * Sets the number of threads that parse received messages.
+     * Defaults to 4. Must be set before the listener is started.
+     */
+    public void setWorkerThreads(int n) {
+        server.setWorkerThreads(n);
+    }
 
-        // close any open connection
+    protected void start() {
         try {
-            for (SelectionKey sk : selector.keys())
-                sk.channel().close();
-            selector.close();
+            server.start();
         } catch (IOException e) {
             throw new DalmaException(e);
         }
     }
 
-    private class Runner implements Runnable {
-        public void run() {
-            while (true) {
-                try {
-                    selector.select();
-                } catch (IOException e) {
-                    // is this error recoverable?
-                    logger.log(Level.SEVERE,"failed to select a socket",e);
-                    return;
-                }
-
-                // Someone is ready for I/O, get the ready keys
-                Set<SelectionKey> readyKeys = selector.selectedKeys();
-
-                // Walk through the ready keys collection and process date requests.
-                for( SelectionKey sk : readyKeys ) {
-                    // The key indexes into the selector so you
-                    // can retrieve the socket that's ready for I/O
-
-                    if(sk.isAcceptable()) {
-                        // accept this connection
-                        try {
-                            ServerSocketChannel newConnection = (ServerSocketChannel)sk.channel();
-                            SocketChannel ncs = newConnection.accept();
-                            ncs.configureBlocking(false);
-                            ncs.register(selector,SelectionKey.OP_READ,new ReceivedMessage());
-                        } catch (IOException e) {
-                            logger.log(Level.WARNING,"failed to accept a connection",e);
-                        }
-                    } else
-                    if(sk.isReadable()) {
-                        SocketChannel client = (SocketChannel) sk.channel();
-                        try {
-                            ReceivedMessage msg = (ReceivedMessage) sk.attachment();
-                            msg.read(client);
-                        } catch (IOException e) {
-                            logger.log(Level.WARNING,"failed to read from a socket",e);
-                            // TODO: shall we close this client?
-                        }
-                    }
-                }
-
-                readyKeys.clear();
-
-                if(Thread.interrupted()) {
-                    // if interrupted, die now
-                    return;
-                }
-            }
-        }
+    protected void stop() {
+        server.stop();
     }
 
     private static InetAddress getLoopbackAddress() {
@@ -168,59 +121,85 @@ public class TCPListener extends Listener {
     /**
      * Represents a partially received message.
      */
-    private class ReceivedMessage {
+    private class ReceivedMessage implements Reactor.Handler, Runnable {
+        private final SocketChannel channel;
+        private final Reactor reactor;
+        private final ReceivedData data = new ReceivedData(server.pool);
+
         /**
-         * Accumulated data.
+         * True once the message is completely received.
+         * From then on {@link #data} belongs to the worker thread that handles it.
          */
-        ByteBuffer buf = ByteBuffer.allocate(4096);
+        private boolean received;
+
+        ReceivedMessage(SocketChannel channel, Reactor reactor) {
+            this.channel = channel;
+            this.reactor = reactor;
+        }
 
-        void read(SocketChannel channel) throws IOException {
-            int r = channel.read(buf);
+        public boolean read(SocketChannel channel) throws IOException {
+            int r = channel.read(data.buffer());
             if(r<0) {
-                buf.flip();
-                finish();
-                channel.close();
-                return;
+                // parse and dispatch in another thread,
+                // and keep the connection until that's done
+                received = true;
+                server.execute(this);
+                return true;
             }
 
-            if(buf.remaining()==0) {
-                // saturated the buffer. get a bigger one
-                ByteBuffer newBuf = ByteBuffer.allocate(buf.capacity() * 2);
-                buf.flip();
-                newBuf.put(buf);
-                buf = newBuf;
+            data.commit(r);
+            if(data.size()>maxMessageSize) {
+                logger.warning("Discarding a message larger than "+maxMessageSize+" bytes from "+channel.socket().getRemoteSocketAddress());
+                dispose();
+                return false;
             }
+            return true;
+        }
+
+        public boolean write(SocketChannel channel) {
+            throw new AssertionError(); // we never write
+        }
+
+        public boolean isWriting() {
+            return false;
+        }
+
+        public boolean isSuspended() {
+            return received;
+        }
+
+        public boolean resume(SocketChannel channel) {
+            // the message is dispatched. closing the connection tells the client that
+            return false;
         }
 
         /**
          * Called when a message is completely read.
          */
-        private void finish() {
-            InputStream is = new InputStream() {
-                public int read(byte b[], int off, int len) {
-                    if(buf.hasRemaining()) {
-                        len = Math.min(len, buf.remaining());
-                        buf.get(b,off,len);
-                        return len;
-                    } else {
-                        return -1;
-                    }
-                }
-
-                public int read() {
-                    if(buf.hasRemaining())
-                        return buf.get();
-                    else
-                        return -1;
+        public void run() {
+            Runnable close = new Runnable() {
+                public void run() {
+                    reactor.resume(channel);
                 }
             };
             try {
-                MimeMessage msg = new MimeMessage(getEndPoint().getSession(),is);
-                handleMessage(msg);
+                handleMessage(data.parse(getEndPoint().getSession()),close);
+                return;
+            } catch (IOException e) {
+                logger.log(Level.WARNING,"failed to read a message",e);
             } catch (MessagingException e) {
                 // this happens when a client sends us something other than e-mail
                 logger.log(Level.WARNING,"failed to parse into a message",e);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING,"failed to handle a message",e);
             }
+            // there's no way to tell the client what went wrong
+            close.run();
+        }
+
+        public void dispose() {
+            if(!received)
+                data.dispose();
         }
     }
 }
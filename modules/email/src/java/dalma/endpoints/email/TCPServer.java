@@ -0,0 +1,166 @@
+package dalma.endpoints.email;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accepts TCP connections and reads from them.
+ *
+ * <p>
+ * One thread accepts connections, and hands them over to a few {@link Reactor}s
+ * that read from them. The work that takes time, such as parsing and dispatching
+ * received e-mails, should be handed to {@link #execute(Runnable)}, so that one
+ * slow client doesn't hold up the others.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+abstract class TCPServer {
+    private final String name;
+    private final InetSocketAddress address;
+
+    private int reactorThreads = 2;
+    private int workerThreads = 4;
+
+    /**
+     * Buffers to receive data.
+     */
+    final BufferPool pool = new BufferPool(8*1024,64);
+
+    // set while running
+    private ServerSocketChannel serverChannel;
+    private Thread acceptor;
+    private Reactor[] reactors;
+    private ThreadPoolExecutor workers;
+
+    private static final Logger logger = Logger.getLogger(TCPServer.class.getName());
+
+    /**
+     * @param name
+     *      Used to name threads.
+     */
+    TCPServer(String name, InetSocketAddress address) {
+        this.name = name;
+        this.address = address;
+    }
+
+    void setReactorThreads(int n) {
+        if(n<1)
+            throw new IllegalArgumentException();
+        this.reactorThreads = n;
+    }
+
+    void setWorkerThreads(int n) {
+        if(n<1)
+            throw new IllegalArgumentException();
+        this.workerThreads = n;
+    }
+
+    /**
+     * Creates a {@link Reactor.Handler} that receives data from a new connection.
+     *
+     * @param reactor
+     *      The reactor that the connection is assigned to.
+     */
+    abstract Reactor.Handler createHandler(SocketChannel channel, Reactor reactor);
+
+    /**
+     * Runs a task in a worker thread.
+     *
+     * <p>
+     * This never runs the task in the calling reactor thread nor blocks it.
+     * Instead, the handler that submits the task must stay {@link Reactor.Handler#isSuspended() suspended}
+     * until the task is done. So each connection has at most one task waiting for the workers,
+     * and while the workers are busy, the clients are held off by TCP flow control.
+     */
+    void execute(Runnable task) {
+        workers.execute(task);
+    }
+
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(address);
+
+        workers = new ThreadPoolExecutor(workerThreads,workerThreads,0,TimeUnit.MILLISECONDS,
+            // bounded by the number of connections, which are suspended while their tasks wait
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private int iota;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r,name+" worker thread #"+(iota++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        reactors = new Reactor[reactorThreads];
+        for( int i=0; i<reactors.length; i++ ) {
+            reactors[i] = new Reactor(name+" reactor thread #"+i);
+            reactors[i].start();
+        }
+
+        acceptor = new Thread(new Acceptor(),name+" acceptor thread");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    void stop() {
+        // this makes the acceptor thread return from accept()
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING,"failed to close "+address,e);
+        }
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            // process the interruption later
+            Thread.currentThread().interrupt();
+        }
+
+        for (Reactor r : reactors)
+            r.shutDown();
+
+        workers.shutdown();
+        try {
+            workers.awaitTermination(10,TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            // process the interruption later
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Acceptor implements Runnable {
+        public void run() {
+            int iota = 0;
+            while(true) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (ClosedChannelException e) {
+                    return; // we are shutting down
+                } catch (IOException e) {
+                    logger.log(Level.WARNING,"failed to accept a connection",e);
+                    // such as running out of file descriptors. give it some time
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException x) {
+                        return;
+                    }
+                    continue;
+                }
+                // assign connections to reactors in turn
+                Reactor r = reactors[(iota++&Integer.MAX_VALUE)%reactors.length];
+                r.register(channel,createHandler(channel,r));
+            }
+        }
+    }
+}
@@ -2,9 +2,11 @@ package dalma.endpoints.email.spi;
 
 import dalma.EndPoint;
 import dalma.endpoints.email.EmailEndPoint;
+import dalma.endpoints.email.IMAP4Listener;
 import dalma.endpoints.email.Listener;
 import dalma.endpoints.email.MailDirListener;
 import dalma.endpoints.email.POP3Listener;
+import dalma.endpoints.email.SMTPListener;
 import dalma.endpoints.email.TCPListener;
 import dalma.spi.EndPointFactory;
 import dalma.spi.UrlQueryParser;
@@ -48,6 +50,9 @@ public class EmailEndPointFactory implements EndPointFactory {
             else
             if(listener.startsWith("tcp://"))
                 listenerObject = createTcpListener(listener,idx+1);
+            else
+            if(listener.startsWith("smtpd://"))
+                listenerObject = createSmtpListener(listener,idx+1);
             else
                 throw new ParseException("Unsupported scheme: "+listener,idx+1);
 
@@ -88,7 +93,7 @@ public class EmailEndPointFactory implements EndPointFactory {
             if(idx<0)
                 throw new ParseException("imap4 needs a password",startIndex);
 
-            return new POP3Listener(
+            return new IMAP4Listener(
                 uri.getHost(),
                 userInfo.substring(0,idx),
                 userInfo.substring(idx+1),
@@ -136,8 +141,24 @@ public class EmailEndPointFactory implements EndPointFactory {
             throw new ParseException("no such directory exists: "+filePath,-1);
 
         int interval = query.getValue("interval",3000);
+        int threads = query.getValue("threads",4);
+
+        return new MailDirListener(dir,interval,threads);
+    }
 
-        return new MailDirListener(dir,interval);
+    private Listener createSmtpListener(String listener, int startIndex) throws URISyntaxException, ParseException {
+        try {
+            URI uri = new URI(listener);
+            if(uri.getPort()==-1)
+                throw new ParseException("smtpd protocol requres a port number",-1);
+            UrlQueryParser query = new UrlQueryParser(uri);
+            SMTPListener smtp = new SMTPListener(new InetSocketAddress(uri.getHost(),uri.getPort()));
+            if(query.getValue("maxSize")!=null)
+                smtp.setMaxMessageSize(query.getValue("maxSize",0));
+            return smtp;
+        } catch (URISyntaxException e) {
+            throw new URISyntaxException(e.getInput(),e.getReason(),e.getIndex()+startIndex);
+        }
     }
 
     private Listener createTcpListener(String listener, int startIndex) throws URISyntaxException, ParseException {
@@ -145,7 +166,11 @@ public class EmailEndPointFactory implements EndPointFactory {
             URI uri = new URI(listener);
             if(uri.getPort()==-1)
                 throw new ParseException("tcp protocol requres a port number",-1);
-            return new TCPListener(new InetSocketAddress(uri.getHost(),uri.getPort()));
+            UrlQueryParser query = new UrlQueryParser(uri);
+            TCPListener tcp = new TCPListener(new InetSocketAddress(uri.getHost(),uri.getPort()));
+            if(query.getValue("maxSize")!=null)
+                tcp.setMaxMessageSize(query.getValue("maxSize",0));
+            return tcp;
         } catch (URISyntaxException e) {
             throw new URISyntaxException(e.getInput(),e.getReason(),e.getIndex()+startIndex);
         }
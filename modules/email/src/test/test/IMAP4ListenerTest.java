@@ -0,0 +1,297 @@
+package test;
+
+import dalma.Engine;
+import dalma.EngineFactory;
+import dalma.endpoints.email.EmailEndPoint;
+import dalma.endpoints.email.IMAP4Listener;
+import dalma.endpoints.email.NewMailHandler;
+import dalma.helpers.ThreadPoolExecutor;
+import junit.framework.TestCase;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Tests {@link IMAP4Listener} against an in-process IMAP4 server.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class IMAP4ListenerTest extends TestCase {
+    private IMAPServer server;
+    private Engine engine;
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+    protected void setUp() throws Exception {
+        server = new IMAPServer();
+        server.start();
+
+        Properties props = new Properties();
+        props.put("mail.imap.port",String.valueOf(server.getPort()));
+        props.put("mail.imap.partialfetch","false");
+
+        EmailEndPoint ep = new EmailEndPoint("mail",new InternetAddress("dalma@localhost"),
+            new IMAP4Listener("localhost","dalma","secret",500),
+            Session.getInstance(props));
+        // discard replies nobody is waiting for, so that we can see they are not downloaded
+        ep.setMaxDeadLetters(0);
+        ep.setNewMailHandler(new NewMailHandler() {
+            public void onNewMail(MimeMessage mail) throws Exception {
+                received.add(mail.getSubject()+':'+mail.getContent().toString().trim());
+            }
+        });
+
+        engine = EngineFactory.newEngine(
+            new File("target/imap4-listener-test"),
+            getClass().getClassLoader(),
+            new ThreadPoolExecutor(1));
+        engine.addEndPoint(ep);
+        engine.start();
+    }
+
+    protected void tearDown() throws Exception {
+        engine.stop();
+        server.close();
+    }
+
+    public void testIncrementalFetch() throws Exception {
+        server.deliver("Subject: one\r\n\r\nfirst\r\n");
+        waitFor(1);
+
+        server.deliver("Subject: two\r\n\r\nsecond\r\n");
+        server.deliver("Subject: re: zero\r\nIn-Reply-To: <"+UUID.randomUUID()+"@localhost>\r\n\r\nnobody waits for this\r\n");
+        waitFor(2);
+        Thread.sleep(500);
+
+        assertEquals("[one:first, two:second]",received.toString());
+        assertEquals(0,server.size());
+        // the reply nobody waits for is deleted without being downloaded
+        assertEquals(2,server.downloads);
+        assertEquals(1,server.connections);
+    }
+
+    public void testReconnect() throws Exception {
+        server.deliver("Subject: one\r\n\r\nfirst\r\n");
+        waitFor(1);
+        // disconnecting before the listener deletes the message would get it delivered again
+        waitForEmptyServer();
+
+        server.disconnect();
+        server.deliver("Subject: two\r\n\r\nsecond\r\n");
+        waitFor(2);
+
+        assertEquals("[one:first, two:second]",received.toString());
+        assertEquals(2,server.connections);
+    }
+
+    private void waitFor(int n) throws InterruptedException {
+        long end = System.currentTimeMillis()+10*1000;
+        while(received.size()<n) {
+            if(System.currentTimeMillis()>end)
+                fail("received only "+received);
+            Thread.sleep(50);
+        }
+    }
+
+    private void waitForEmptyServer() throws InterruptedException {
+        long end = System.currentTimeMillis()+10*1000;
+        while(server.size()>0) {
+            if(System.currentTimeMillis()>end)
+                fail("the listener didn't delete "+server.size()+" message(s)");
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Just enough of IMAP4rev1 to serve JavaMail.
+     */
+    private static final class IMAPServer extends Thread {
+        private final ServerSocket socket = new ServerSocket(0);
+        private final List<Long> uids = new ArrayList<Long>();
+        private final List<String> mails = new ArrayList<String>();
+        private final List<Long> deleted = new ArrayList<Long>();
+        private long nextUid = 1;
+        private Socket client;
+
+        int connections;
+        int downloads;
+
+        IMAPServer() throws IOException {
+            super("IMAP4 server");
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        synchronized void deliver(String mail) {
+            uids.add(nextUid++);
+            mails.add(mail);
+        }
+
+        synchronized int size() {
+            return uids.size();
+        }
+
+        synchronized void disconnect() throws IOException {
+            client.close();
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+
+        public void run() {
+            try {
+                while(true) {
+                    Socket s = socket.accept();
+                    synchronized(this) {
+                        connections++;
+                        client = s;
+                    }
+                    try {
+                        serve(s);
+                    } catch (IOException e) {
+                        // disconnected
+                    } finally {
+                        s.close();
+                    }
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private void serve(Socket s) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(),"ISO-8859-1"));
+            PrintStream out = new PrintStream(s.getOutputStream(),true,"ISO-8859-1");
+            out.print("* OK ready\r\n");
+
+            int exists = 0;
+            String line;
+            while((line=in.readLine())!=null) {
+                String[] tokens = line.split(" ",3);
+                String tag = tokens[0];
+                String cmd = tokens[1].toUpperCase();
+                String args = tokens.length>2 ? tokens[2] : "";
+                boolean uid = cmd.equals("UID");
+                if(uid) {
+                    tokens = args.split(" ",2);
+                    cmd = tokens[0].toUpperCase();
+                    args = tokens[1];
+                }
+
+                synchronized(this) {
+                    if(uids.size()>exists) {
+                        exists = uids.size();
+                        out.print("* "+exists+" EXISTS\r\n");
+                    }
+                    if(cmd.equals("CAPABILITY"))
+                        out.print("* CAPABILITY IMAP4rev1\r\n");
+                    if(cmd.equals("LIST"))
+                        out.print("* LIST () \"/\" INBOX\r\n");
+                    if(cmd.equals("SELECT") || cmd.equals("EXAMINE"))
+                        out.print("* FLAGS (\\Deleted)\r\n* "+exists+" EXISTS\r\n* 0 RECENT\r\n* OK [UIDVALIDITY 1]\r\n");
+                    if(cmd.equals("FETCH"))
+                        fetch(out,uid,args);
+                    if(cmd.equals("STORE"))
+                        for( int i : find(uid,args.split(" ")[0]) )
+                            deleted.add(uids.get(i));
+                    if(cmd.equals("EXPUNGE")) {
+                        for( int i=uids.size()-1; i>=0; i-- ) {
+                            if(deleted.contains(uids.get(i))) {
+                                uids.remove(i);
+                                mails.remove(i);
+                                out.print("* "+(i+1)+" EXPUNGE\r\n");
+                            }
+                        }
+                        exists = uids.size();
+                    }
+                    if(cmd.equals("LOGOUT")) {
+                        out.print("* BYE\r\n"+tag+" OK\r\n");
+                        return;
+                    }
+                    out.print(tag+" OK done\r\n");
+                }
+            }
+        }
+
+        /**
+         * Finds the indices of the e-mails in the given sequence set.
+         */
+        private List<Integer> find(boolean uid, String set) {
+            List<Integer> r = new ArrayList<Integer>();
+            for( String range : set.split(",") ) {
+                String[] ends = range.split(":");
+                long lo = Long.parseLong(ends[0]);
+                long hi = lo;
+                if(ends.length>1) {
+                    if(ends[1].equals("*")) {
+                        hi = Long.MAX_VALUE;
+                        // "n:*" includes the last e-mail, even if it's older than n
+                        if(uid && !uids.isEmpty())
+                            lo = Math.min(lo,uids.get(uids.size()-1));
+                    } else
+                        hi = Long.parseLong(ends[1]);
+                }
+                for( int i=0; i<uids.size(); i++ ) {
+                    long v = uid ? uids.get(i) : i+1;
+                    if(lo<=v && v<=hi)
+                        r.add(i);
+                }
+            }
+            return r;
+        }
+
+        private void fetch(PrintStream out, boolean uid, String args) {
+            String[] tokens = args.split(" ",2);
+            String items = tokens[1].toUpperCase();
+            for( int i : find(uid,tokens[0]) ) {
+                String mail = mails.get(i);
+                String header = mail.substring(0,mail.indexOf("\r\n\r\n")+4);
+
+                StringBuilder buf = new StringBuilder();
+                buf.append("* ").append(i+1).append(" FETCH (UID ").append(uids.get(i));
+                if(items.contains("FLAGS"))
+                    buf.append(" FLAGS ()");
+                if(items.contains("ENVELOPE"))
+                    buf.append(" ENVELOPE (NIL NIL NIL NIL NIL NIL NIL NIL NIL NIL)");
+                if(items.contains("INTERNALDATE"))
+                    buf.append(" INTERNALDATE \"01-Jan-2006 00:00:00 +0000\"");
+                if(items.contains("RFC822.SIZE"))
+                    buf.append(" RFC822.SIZE ").append(mail.length());
+                int idx = items.indexOf("HEADER.FIELDS");
+                if(idx>=0) {
+                    String fields = items.substring(idx,items.indexOf(')',idx)+1);
+                    StringBuilder h = new StringBuilder();
+                    for( String l : header.split("\r\n") ) {
+                        int colon = l.indexOf(':');
+                        if(colon>0 && fields.contains(l.substring(0,colon).toUpperCase()))
+                            h.append(l).append("\r\n");
+                    }
+                    h.append("\r\n");
+                    buf.append(" BODY[").append(fields).append("] {").append(h.length()).append("}\r\n").append(h);
+                }
+                if(items.contains("BODY[]")) {
+                    downloads++;
+                    buf.append(" BODY[] {").append(mail.length()).append("}\r\n").append(mail);
+                }
+                buf.append(")\r\n");
+                out.print(buf);
+            }
+        }
+    }
+}
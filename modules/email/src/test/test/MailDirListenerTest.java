@@ -0,0 +1,151 @@
+package test;
+
+import dalma.Engine;
+import dalma.EngineFactory;
+import dalma.endpoints.email.EmailEndPoint;
+import dalma.endpoints.email.MailDirListener;
+import dalma.endpoints.email.NewMailHandler;
+import dalma.helpers.ThreadPoolExecutor;
+import dalma.impl.Util;
+import junit.framework.TestCase;
+
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests {@link MailDirListener}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class MailDirListenerTest extends TestCase {
+    private File dir;
+    private File newDir;
+    private File curDir;
+    private Engine engine;
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    /**
+     * If non-null, e-mails are not handled until this is opened.
+     */
+    private volatile CountDownLatch gate;
+
+    protected void setUp() throws Exception {
+        dir = new File("target/maildir-listener-test");
+        Util.deleteRecursive(dir);
+        newDir = new File(dir,"mail/new");
+        curDir = new File(dir,"mail/cur");
+        newDir.mkdirs();
+        curDir.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        if(engine!=null)
+            engine.stop();
+        Util.deleteRecursive(dir);
+    }
+
+    private void start() throws Exception {
+        EmailEndPoint ep = new EmailEndPoint("mail","dalma@localhost",
+            new MailDirListener(new File(dir,"mail"),100));
+        ep.setNewMailHandler(new NewMailHandler() {
+            public void onNewMail(MimeMessage mail) throws Exception {
+                if(gate!=null)
+                    gate.await();
+                received.add(mail.getSubject());
+            }
+        });
+
+        engine = EngineFactory.newEngine(
+            new File(dir,"engine"),
+            getClass().getClassLoader(),
+            new ThreadPoolExecutor(1));
+        engine.addEndPoint(ep);
+        engine.start();
+    }
+
+    /**
+     * A delivered message is moved to <tt>cur</tt> and marked as seen.
+     */
+    public void testDelivery() throws Exception {
+        start();
+        deliver(newDir,"1.localhost","one");
+
+        waitFor(1);
+        assertEquals("[one]",received.toString());
+        waitForFiles("[1.localhost:2,S]");
+        assertEquals(0,newDir.list().length);
+    }
+
+    /**
+     * A message is marked as seen only after it's dispatched.
+     */
+    public void testSeenAfterDispatch() throws Exception {
+        gate = new CountDownLatch(1);
+        start();
+        deliver(newDir,"1.localhost","one");
+
+        // claimed, but not yet dispatched
+        waitForFiles("[1.localhost:2,]");
+        Thread.sleep(500);
+        assertEquals("[1.localhost:2,]",listCur());
+
+        gate.countDown();
+        waitForFiles("[1.localhost:2,S]");
+        assertEquals("[one]",received.toString());
+    }
+
+    /**
+     * Messages claimed but not dispatched before the listener stopped are handled when it starts.
+     */
+    public void testRecovery() throws Exception {
+        deliver(curDir,"1.localhost:2,","claimed");
+        deliver(curDir,"2.localhost:2,S","seen");
+        start();
+
+        waitFor(1);
+        waitForFiles("[1.localhost:2,S, 2.localhost:2,S]");
+        Thread.sleep(500);
+        assertEquals("[claimed]",received.toString());
+    }
+
+    /**
+     * Writes a message the way a mail delivery agent does.
+     */
+    private void deliver(File dst, String name, String subject) throws Exception {
+        File tmp = new File(dir,name+".tmp");
+        OutputStream os = new FileOutputStream(tmp);
+        os.write(("Subject: "+subject+"\r\n\r\nbody\r\n").getBytes("US-ASCII"));
+        os.close();
+        assertTrue(tmp.renameTo(new File(dst,name)));
+    }
+
+    private String listCur() {
+        String[] names = curDir.list();
+        Arrays.sort(names);
+        return Arrays.asList(names).toString();
+    }
+
+    private void waitForFiles(String expected) throws InterruptedException {
+        long end = System.currentTimeMillis()+10*1000;
+        while(!listCur().equals(expected)) {
+            if(System.currentTimeMillis()>end)
+                fail("cur has "+listCur());
+            Thread.sleep(50);
+        }
+    }
+
+    private void waitFor(int n) throws InterruptedException {
+        long end = System.currentTimeMillis()+10*1000;
+        while(received.size()<n) {
+            if(System.currentTimeMillis()>end)
+                fail("received only "+received);
+            Thread.sleep(50);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package test;
+
+import dalma.endpoints.email.MimeMessageEx;
+import dalma.endpoints.timer.TimerEndPoint;
+import dalma.impl.EngineImpl;
+import dalma.metrics.Histogram;
+import dalma.test.WorkflowTestProgram;
+import junit.textui.TestRunner;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import java.io.IOException;
+import java.io.Serializable;
+
+import static dalma.TimeUnit.MILLISECONDS;
+
+/**
+ * Makes sure that an e-mail kept in a conversation is not written
+ * into the continuation.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class MimeMessageExPersistenceTest extends WorkflowTestProgram {
+    public MimeMessageExPersistenceTest(String name) {
+        super(name);
+    }
+
+    public static void main(String[] args) {
+        TestRunner.run(MimeMessageExPersistenceTest.class);
+    }
+
+    protected void setupEndPoints() throws Exception {
+        // only uses the timer endpoint
+    }
+
+    public void test() throws Exception {
+        createConversation(KeepMail.class);
+        engine.waitForCompletion();
+
+        assertEquals("subject 2:"+BODY_SIZE,result);
+
+        Histogram size = ((EngineImpl)engine).getMetrics().histogram("conversation.dehydrationSize");
+        assertEquals(4,size.getCount());
+        assertTrue("continuation is too big: "+size.getMax(),size.getMax()<BODY_SIZE/4);
+    }
+
+    private static final int BODY_SIZE = 200*1024;
+
+    private static String result;
+
+    public static final class KeepMail implements Runnable, Serializable {
+        public void run() {
+            try {
+                StringBuilder buf = new StringBuilder();
+                while(buf.length()<BODY_SIZE)
+                    buf.append("0123456789012345678901234567890123456789012345678901234567890123456789\n");
+                buf.setLength(BODY_SIZE);
+
+                MimeMessageEx msg = new MimeMessageEx(Session.getInstance(System.getProperties()));
+                msg.setSubject("subject");
+                msg.setText(buf.toString());
+
+                // dehydrate a few times with the same e-mail
+                TimerEndPoint.waitFor(10,MILLISECONDS);
+                TimerEndPoint.waitFor(10,MILLISECONDS);
+
+                // and once with a modified one
+                msg.setSubject("subject 2");
+                TimerEndPoint.waitFor(10,MILLISECONDS);
+                TimerEndPoint.waitFor(10,MILLISECONDS);
+
+                result = msg.getSubject()+':'+msg.getContent().toString().length();
+            } catch (MessagingException e) {
+                throw new Error(e);
+            } catch (IOException e) {
+                throw new Error(e);
+            }
+        }
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,103 @@
+package test;
+
+import dalma.Engine;
+import dalma.EngineFactory;
+import dalma.endpoints.email.EmailEndPoint;
+import dalma.endpoints.email.Listener;
+import dalma.endpoints.email.MimeMessageEx;
+import dalma.helpers.ThreadPoolExecutor;
+import dalma.impl.Util;
+import junit.framework.TestCase;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.util.Properties;
+
+/**
+ * Makes sure that an e-mail that an endpoint persists by itself
+ * gets the session of the endpoint back.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class MimeMessageExSessionTest extends TestCase {
+    private static final class NoListener extends Listener {
+        protected void start() {
+        }
+
+        protected void stop() {
+        }
+    }
+
+    private static final class EndPoint extends EmailEndPoint {
+        EndPoint(Session session) throws Exception {
+            super("mail",new InternetAddress("dalma@localhost"),new NoListener(),session);
+        }
+
+        /**
+         * Persists the object the way the endpoint does for dead letters.
+         */
+        Object roundTrip(Object o) throws Exception {
+            return deserialize(serialize(o));
+        }
+    }
+
+    private File dir;
+    private Session session;
+    private EndPoint endPoint;
+
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("dalma","session");
+        dir.delete();
+        session = Session.getInstance(new Properties());
+        endPoint = new EndPoint(session);
+        Engine engine = EngineFactory.newEngine(dir,getClass().getClassLoader(),new ThreadPoolExecutor(1,true));
+        engine.addEndPoint(endPoint);
+    }
+
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    public void testEndPointSession() throws Exception {
+        MimeMessageEx restored = (MimeMessageEx)endPoint.roundTrip(createMessage());
+        assertEquals("hello",restored.getSubject());
+        assertSame(session,getSession(restored));
+    }
+
+    /**
+     * Outside the engine, the e-mail can't refer to the endpoint.
+     */
+    public void testWithoutEngine() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(createMessage());
+        oos.close();
+
+        MimeMessageEx restored = (MimeMessageEx)new ObjectInputStream(
+            new ByteArrayInputStream(baos.toByteArray())).readObject();
+        assertEquals("hello",restored.getSubject());
+        assertNotSame(session,getSession(restored));
+    }
+
+    private MimeMessageEx createMessage() throws Exception {
+        MimeMessageEx msg = new MimeMessageEx(session);
+        msg.setSubject("hello");
+        msg.setText("hi");
+        msg.saveChanges();
+        return msg;
+    }
+
+    private static Session getSession(MimeMessage msg) throws Exception {
+        Field f = Message.class.getDeclaredField("session");
+        f.setAccessible(true);
+        return (Session)f.get(msg);
+    }
+}
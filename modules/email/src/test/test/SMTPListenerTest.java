@@ -0,0 +1,197 @@
+package test;
+
+import dalma.Engine;
+import dalma.EngineFactory;
+import dalma.endpoints.email.EmailEndPoint;
+import dalma.endpoints.email.NewMailHandler;
+import dalma.endpoints.email.SMTPListener;
+import dalma.helpers.ThreadPoolExecutor;
+import junit.framework.TestCase;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests {@link SMTPListener}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class SMTPListenerTest extends TestCase {
+    private int port;
+    private Engine engine;
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    /**
+     * If non-null, e-mails are not handled until this is opened.
+     */
+    private volatile CountDownLatch gate;
+
+    protected void setUp() throws Exception {
+        ServerSocket ss = new ServerSocket(0);
+        port = ss.getLocalPort();
+        ss.close();
+
+        SMTPListener listener = new SMTPListener(port);
+        listener.setHostName("dalma.test");
+        listener.setMaxMessageSize(1024*1024);
+
+        EmailEndPoint ep = new EmailEndPoint("mail","dalma@localhost",listener);
+        ep.setNewMailHandler(new NewMailHandler() {
+            public void onNewMail(MimeMessage mail) throws Exception {
+                if(gate!=null)
+                    gate.await();
+                String body = mail.getContent().toString().trim();
+                if(body.length()>20)
+                    body = body.length()+" bytes";
+                received.add(mail.getSubject()+':'+body);
+            }
+        });
+
+        engine = EngineFactory.newEngine(
+            new File("target/smtp-listener-test"),
+            getClass().getClassLoader(),
+            new ThreadPoolExecutor(1));
+        engine.addEndPoint(ep);
+        engine.start();
+    }
+
+    protected void tearDown() throws Exception {
+        engine.stop();
+    }
+
+    /**
+     * Sends e-mails with the SMTP client of JavaMail.
+     */
+    public void testJavaMail() throws Exception {
+        Properties props = new Properties();
+        props.put("mail.smtp.host","localhost");
+        props.put("mail.smtp.port",String.valueOf(port));
+        Session session = Session.getInstance(props);
+
+        MimeMessage msg = new MimeMessage(session);
+        msg.setFrom(new InternetAddress("alice@localhost"));
+        msg.setRecipient(Message.RecipientType.TO,new InternetAddress("dalma@localhost"));
+        msg.setSubject("hello");
+        msg.setText("hi\n.\n..dots");
+        Transport.send(msg);
+
+        StringBuilder big = new StringBuilder();
+        for( int i=0; i<5000; i++ )
+            big.append("0123456789012345678901234567890123456789\n");
+        msg.setSubject("big");
+        msg.setText(big.toString());
+        Transport.send(msg);
+
+        waitFor(2);
+        // e-mails that start new conversations may be dispatched in any order
+        List<String> r = new ArrayList<String>(received);
+        Collections.sort(r);
+        // JavaMail sends lines in CRLF
+        assertEquals("[big:209998 bytes, hello:hi\r\n.\r\n..dots]",r.toString());
+    }
+
+    /**
+     * Sends pipelined commands in one go.
+     */
+    public void testPipelining() throws Exception {
+        Socket s = new Socket("localhost",port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(),"US-ASCII"));
+        OutputStream out = s.getOutputStream();
+
+        assertTrue(in.readLine().startsWith("220 dalma.test"));
+        out.write("EHLO client\r\n".getBytes("US-ASCII"));
+        String line;
+        List<String> ehlo = new ArrayList<String>();
+        do {
+            line = in.readLine();
+            ehlo.add(line.substring(4));
+        } while(line.charAt(3)=='-');
+        assertTrue(ehlo.contains("PIPELINING"));
+        assertTrue(ehlo.contains("SIZE 1048576"));
+
+        out.write((
+            "MAIL FROM:<alice@localhost> SIZE=100\r\n"+
+            "RCPT TO:<dalma@localhost>\r\n"+
+            "DATA\r\n").getBytes("US-ASCII"));
+        assertEquals("250 2.1.0 OK",in.readLine());
+        assertEquals("250 2.1.5 OK",in.readLine());
+        assertTrue(in.readLine().startsWith("354"));
+
+        out.write((
+            "Subject: one\r\n\r\nfirst\r\n.\r\n"+
+            "MAIL FROM:<alice@localhost> SIZE=2000000\r\n"+
+            "RCPT TO:<dalma@localhost>\r\n"+
+            "QUIT\r\n").getBytes("US-ASCII"));
+        assertEquals("250 2.0.0 OK",in.readLine());
+        assertTrue(in.readLine().startsWith("552"));
+        assertTrue(in.readLine().startsWith("503"));
+        assertTrue(in.readLine().startsWith("221"));
+        assertNull(in.readLine());
+        s.close();
+
+        waitFor(1);
+        assertEquals("[one:first]",received.toString());
+    }
+
+    /**
+     * The e-mail is accepted only after it's dispatched.
+     */
+    public void testReplyAfterDispatch() throws Exception {
+        gate = new CountDownLatch(1);
+        Socket s = new Socket("localhost",port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(),"US-ASCII"));
+        OutputStream out = s.getOutputStream();
+
+        assertTrue(in.readLine().startsWith("220"));
+        out.write((
+            "HELO client\r\n"+
+            "MAIL FROM:<alice@localhost>\r\n"+
+            "RCPT TO:<dalma@localhost>\r\n"+
+            "DATA\r\n").getBytes("US-ASCII"));
+        assertTrue(in.readLine().startsWith("250"));
+        assertTrue(in.readLine().startsWith("250"));
+        assertTrue(in.readLine().startsWith("250"));
+        assertTrue(in.readLine().startsWith("354"));
+        out.write((
+            "Subject: one\r\n\r\nfirst\r\n.\r\n"+
+            "QUIT\r\n").getBytes("US-ASCII"));
+
+        s.setSoTimeout(500);
+        try {
+            fail("replied before dispatching: "+in.readLine());
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+
+        gate.countDown();
+        s.setSoTimeout(10*1000);
+        assertEquals("250 2.0.0 OK",in.readLine());
+        assertTrue(in.readLine().startsWith("221"));
+        assertNull(in.readLine());
+        s.close();
+        assertEquals("[one:first]",received.toString());
+    }
+
+    private void waitFor(int n) throws InterruptedException {
+        long end = System.currentTimeMillis()+10*1000;
+        while(received.size()<n) {
+            if(System.currentTimeMillis()>end)
+                fail("received only "+received);
+            Thread.sleep(50);
+        }
+    }
+}
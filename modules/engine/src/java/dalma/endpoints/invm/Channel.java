@@ -4,88 +4,404 @@ import dalma.Condition;
 import dalma.spi.FiberSPI;
 
 import java.io.Serializable;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Observable;
-import java.util.Observer;
-import java.util.Vector;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Works like a socket in the in-VM communicaiton.
  *
+ * <p>
+ * Any number of threads and conversations can send messages to a {@link Channel}
+ * concurrently without blocking each other, but only one thread or conversation
+ * may receive from a {@link Channel} at any given time.
+ *
+ * <p>
+ * A {@link Channel} can be bounded, in which case a sender has to wait
+ * while the {@link Channel} is holding as many messages as its capacity.
+ * A conversation that sends to a full {@link Channel} suspends
+ * just like it does when receiving, so a pipeline of conversations runs
+ * at the pace of its slowest stage without filling up the heap.
+ *
+ * <p>
+ * A {@link Channel} created by the constructor lives only in memory.
+ * Use {@link ChannelEndPoint} to create a durable {@link Channel},
+ * whose messages survive restarts of the engine.
+ *
  * @author Kohsuke Kawaguchi
  */
-public class Channel extends Observable implements Serializable {
+public class Channel implements Serializable {
+    /**
+     * {@link Message}s that were delivered but not read by the application
+     * form a linked list from {@link #head} to {@link #tail}.
+     *
+     * <p>
+     * {@link #head} is a sentinel node whose message is already consumed.
+     * Only the receiver moves {@link #head}, and senders append to {@link #tail}
+     * by an atomic swap, so neither side needs a lock.
+     */
+    private transient volatile Node head;
+    private final transient AtomicReference<Node> tail;
+
+    /**
+     * The receiver waiting for a new {@link Message}, if any.
+     * Either a {@link ConditionImpl} of a suspended fiber, or a blocked {@link Thread}.
+     */
+    private final transient AtomicReference<Object> waiter = new AtomicReference<Object>();
+
     /**
-     * {@link Message}s that were delivered but not read by the application.
+     * Maximum number of messages this channel holds,
+     * or {@link Integer#MAX_VALUE} if unbounded.
      */
-    private final List<Message> queue = new Vector<Message>();
+    private final int capacity;
+
+    /**
+     * Number of messages in the queue, including those that senders
+     * are about to append.
+     */
+    private final transient AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Senders waiting for this channel to have space.
+     * Either {@link SpaceCondition}s of suspended fibers, or blocked {@link Thread}s.
+     */
+    private final transient Queue<Object> senders = new ConcurrentLinkedQueue<Object>();
 
     /**
      * {@link Channel}s are uniquely identified names (so that serialization
      * will bind back to the same instance.)
      */
-    private static final Map<String,Channel> channels = new Hashtable<String,Channel>();
+    private static final Map<String,Channel> channels = new ConcurrentHashMap<String,Channel>();
 
     private final String name;
-    private static int iota;
+    private static final AtomicInteger iota = new AtomicInteger();
 
-    public Channel() {
-        synchronized(Channel.class) {
-            name = Integer.toString(iota++);
+    /**
+     * The endpoint that persists the messages of this channel,
+     * or null if this channel lives only in memory.
+     */
+    private final ChannelEndPoint endPoint;
+
+    static final class Node {
+        Message msg;
+        /**
+         * Sequence number of the message in the journal, if the channel is durable.
+         */
+        long seq;
+        volatile Node next;
+
+        Node(Message msg) {
+            this.msg = msg;
         }
+    }
+
+    /**
+     * Creates an unbounded channel.
+     */
+    public Channel() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a bounded channel.
+     *
+     * @param capacity
+     *      maximum number of messages this channel holds before
+     *      senders start waiting.
+     */
+    public Channel(int capacity) {
+        this(null,Integer.toString(iota.getAndIncrement()),capacity);
         channels.put(name,this);
     }
 
+    /**
+     * Creates a durable channel.
+     */
+    Channel(ChannelEndPoint endPoint, String name, int capacity) {
+        if(capacity<1)
+            throw new IllegalArgumentException("capacity must be positive: "+capacity);
+        this.endPoint = endPoint;
+        this.name = name;
+        this.capacity = capacity;
+        head = new Node(null);
+        tail = new AtomicReference<Node>(head);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the maximum number of messages this channel holds,
+     * or {@link Integer#MAX_VALUE} if this channel is unbounded.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
     /**
      * Sends a {@link Message} from this channel to the specified channel.
+     *
+     * <p>
+     * If the specified channel is full, waits until it has space.
      */
     public void send(Message msg, Channel to) {
+        if(msg==null)
+            throw new IllegalArgumentException("message is null");
+
         msg.from = this;
         msg.to = to;
 
-        if(msg==null)
-            throw new IllegalArgumentException("message is null");
+        to.reserve(1);
+        Node n = new Node(msg);
+        to.enqueue(n,n,1);
+    }
 
-        synchronized(to) {
-            to.queue.add(msg);
-            to.setChanged();
-            to.notifyObservers();
-            to.notify();
+    /**
+     * Sends {@link Message}s from this channel to the specified channel,
+     * as if they are sent one by one by {@link #send(Message, Channel)},
+     * but more efficiently.
+     *
+     * <p>
+     * Messages are delivered in the iteration order, and messages
+     * sent from other threads never get in between them, unless
+     * the specified channel gets full in the middle.
+     */
+    public void send(Collection<? extends Message> msgs, Channel to) {
+        List<Message> list = new ArrayList<Message>(msgs);
+        // the collection may not be serializable, so don't keep it
+        // in the continuation if we suspend
+        msgs = null;
+
+        for (Message msg : list) {
+            if(msg==null)
+                throw new IllegalArgumentException("message is null");
+            msg.from = this;
+            msg.to = to;
+        }
+
+        int i=0;
+        while(i<list.size()) {
+            int k = to.reserve(list.size()-i);
+            int end = i+k;
+
+            Node first = new Node(list.get(i++));
+            Node last = first;
+            while(i<end) {
+                Node n = new Node(list.get(i++));
+                last.next = n;
+                last = n;
+            }
+            to.enqueue(first,last,k);
         }
     }
 
     /**
-     * Waits until there's a new {@link Message}.
+     * Reserves the space for up to the given number of messages,
+     * waiting if this channel is full.
+     *
+     * @return
+     *      number of messages reserved, at least 1.
      */
-    public synchronized <T> Message<T> receive() {
-        while(queue.isEmpty()) {
-            FiberSPI<?> fiber = FiberSPI.currentFiber(false);
-            if(fiber!=null)
-                fiber.suspend(new ConditionImpl());
-            else
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt(); // process it later
+    private int reserve(int n) {
+        if(capacity==Integer.MAX_VALUE) {
+            size.addAndGet(n);
+            return n;
+        }
+
+        while(true) {
+            int s = size.get();
+            if(s<capacity) {
+                int k = Math.min(n,capacity-s);
+                if(size.compareAndSet(s,s+k)) {
+                    if(s+k<capacity)
+                        // we may have been woken up for the space that was freed
+                        // in a batch, so pass on what's left.
+                        wakeUpSender();
+                    return k;
                 }
+            } else
+                awaitSpace();
         }
+    }
+
+    /**
+     * Gives back the space of consumed messages, and wakes up a waiting sender.
+     */
+    private void release(int n) {
+        size.addAndGet(-n);
+        if(!senders.isEmpty())
+            wakeUpSender();
+    }
+
+    private boolean isFull() {
+        return size.get()>=capacity;
+    }
 
-        return queue.remove(0);
+    private void wakeUpSender() {
+        Object w = senders.poll();
+        if(w!=null)
+            wakeUp(w);
     }
 
-    private final class ConditionImpl extends Condition<Void> implements Observer {
+    /**
+     * Appends a chain of {@code n} nodes and wakes up the receiver.
+     */
+    private void enqueue(Node first, Node last, int n) {
+        if(endPoint!=null) {
+            try {
+                endPoint.send(this,first,last);
+            } catch (RuntimeException e) {
+                release(n);
+                throw e;
+            }
+        } else
+            link(first,last);
+
+        Object w = waiter.get();
+        if(w!=null && waiter.compareAndSet(w,null))
+            wakeUp(w);
+    }
+
+    /**
+     * Appends a chain of nodes.
+     */
+    void link(Node first, Node last) {
+        Node prev = tail.getAndSet(last);
+        prev.next = first;
+    }
+
+    /**
+     * Puts back the messages recovered from the disk.
+     */
+    void restore(List<Node> nodes) {
+        for (Node n : nodes)
+            link(n,n);
+        size.addAndGet(nodes.size());
+    }
+
+    private static void wakeUp(Object w) {
+        if(w instanceof Condition)
+            ((Condition<?>)w).activate(null);
+        else
+            LockSupport.unpark((Thread)w);
+    }
+
+    private boolean isEmpty() {
+        return head.next==null;
+    }
+
+    /**
+     * Removes the first {@link Message} in the queue, if any.
+     * Only called by the receiver.
+     */
+    private Message poll() {
+        Node h = head;
+        Node n = h.next;
+        if(n==null)
+            return null;
+        Message msg = n.msg;
+        n.msg = null;   // n becomes the new sentinel
+        head = n;
+        if(endPoint!=null)
+            endPoint.received(n.seq);
+        release(1);
+        return msg;
+    }
+
+    /**
+     * Waits until there's a new {@link Message}.
+     */
+    public <T> Message<T> receive() {
+        while(true) {
+            Message<T> msg = poll();
+            if(msg!=null)
+                return msg;
+            await();
+        }
+    }
+
+    /**
+     * Waits until there's a new {@link Message}, then receives all the
+     * {@link Message}s in the queue, up to the given number.
+     *
+     * <p>
+     * This is more efficient than calling {@link #receive()} repeatedly,
+     * as a conversation suspends at most once.
+     *
+     * @return
+     *      list that contains at least one and at most {@code max} messages.
+     */
+    public <T> List<Message<T>> drain(int max) {
+        if(max<1)
+            throw new IllegalArgumentException("max must be positive: "+max);
+
+        while(isEmpty())
+            await();
+
+        List<Message<T>> r = new ArrayList<Message<T>>();
+        while(r.size()<max) {
+            Message<T> msg = poll();
+            if(msg==null)
+                break;
+            r.add(msg);
+        }
+        return r;
+    }
+
+    /**
+     * Blocks until the queue gets non-empty, or a spurious wake up.
+     */
+    private void await() {
+        FiberSPI<?> fiber = FiberSPI.currentFiber(false);
+        if(fiber!=null) {
+            fiber.suspend(new ConditionImpl());
+            return;
+        }
+
+        Thread t = Thread.currentThread();
+        waiter.set(t);
+        // check again, as a sender may have missed the waiter we just set
+        if(isEmpty())
+            LockSupport.park(this);
+        waiter.compareAndSet(t,null);
+    }
+
+    /**
+     * Blocks until this channel gets some space, or a spurious wake up.
+     */
+    private void awaitSpace() {
+        FiberSPI<?> fiber = FiberSPI.currentFiber(false);
+        if(fiber!=null) {
+            fiber.suspend(new SpaceCondition());
+            return;
+        }
+
+        Thread t = Thread.currentThread();
+        senders.add(t);
+        // check again, as the receiver may have missed the sender we just added
+        if(isFull())
+            LockSupport.park(this);
+        senders.remove(t);
+    }
+
+    private final class ConditionImpl extends Condition<Void> {
         public ConditionImpl() {
         }
 
         public void onParked() {
-            synchronized(Channel.this) {
-                if(!queue.isEmpty())
-                    activate(null);
-                else
-                    addObserver(this);
-            }
+            waiter.set(this);
+            // check again, as a sender may have missed the waiter we just set
+            if(!isEmpty() && waiter.compareAndSet(this,null))
+                activate(null);
         }
 
         public void onLoad() {
@@ -93,34 +409,78 @@ public class Channel extends Observable implements Serializable {
         }
 
         public void interrupt() {
-            deleteObserver(this);
+            waiter.compareAndSet(this,null);
         }
+    }
 
-        public void update(Observable o, Object arg) {
-            synchronized(Channel.this) {
-                if(!queue.isEmpty()) {
-                    deleteObserver(this);
-                    activate(null);
-                }
-            }
+    /**
+     * Activated when {@link Channel} gets some space.
+     */
+    private final class SpaceCondition extends Condition<Void> {
+        public SpaceCondition() {
+        }
+
+        public void onParked() {
+            senders.add(this);
+            // check again, as the receiver may have missed the sender we just added
+            if(!isFull() && senders.remove(this))
+                activate(null);
+        }
+
+        public void onLoad() {
+            onParked();
+        }
+
+        public void interrupt() {
+            senders.remove(this);
         }
     }
 
     protected Object writeReplace() {
-        return new Moniker(name);
+        if(endPoint!=null)
+            return new DurableMoniker(endPoint,name,capacity);
+        else
+            return new Moniker(name);
     }
 
+    /**
+     * Identifies the current VM session, so that names of in-memory channels
+     * persisted in the previous session won't resolve to unrelated channels.
+     */
+    private static final long SESSION = new Random().nextLong();
+
     private static final class Moniker implements Serializable {
         private final String name;
+        private final long session = SESSION;
 
         public Moniker(String name) {
             this.name = name;
         }
 
         private Object readResolve() {
+            if(session!=SESSION)
+                return null;    // the channel is gone with the previous VM session
             return channels.get(name);
         }
 
         private static final long serialVersionUID = 1L;
     }
+
+    private static final class DurableMoniker implements Serializable {
+        private final ChannelEndPoint endPoint;
+        private final String name;
+        private final int capacity;
+
+        public DurableMoniker(ChannelEndPoint endPoint, String name, int capacity) {
+            this.endPoint = endPoint;
+            this.name = name;
+            this.capacity = capacity;
+        }
+
+        private Object readResolve() {
+            return endPoint.getChannel(name,capacity);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
 }
@@ -0,0 +1,191 @@
+package dalma.endpoints.invm;
+
+import dalma.DalmaException;
+import dalma.impl.EndPointImpl;
+import dalma.spi.FiberSPI;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Endpoint that owns durable {@link Channel}s.
+ *
+ * <p>
+ * Messages sent to a durable channel are recorded in the journal
+ * of this endpoint inside the engine's directory, so the messages
+ * that are delivered but not yet received survive restarts of the engine,
+ * just like conversations do. A durable channel is identified by its name
+ * within the endpoint, and a conversation that refers to a durable channel
+ * binds back to the same channel when it's restored.
+ *
+ * <p>
+ * A message received by a conversation is considered received once the
+ * conversation is saved, at its next suspension or when it ends. If the engine
+ * dies before that, the conversation resumes from where it suspended last,
+ * and receives the same message again. A message received by a thread that's
+ * not running a conversation is considered received once {@link Channel#receive()} returns it.
+ * Messages to durable channels need to be serializable, and a reference
+ * to a non-durable channel in a message (such as {@link Message#getFrom()})
+ * becomes null after a restart.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class ChannelEndPoint extends EndPointImpl {
+    private final Map<String,Channel> channels = new HashMap<String,Channel>();
+
+    /**
+     * Null until the endpoint is started.
+     */
+    private transient ChannelJournal journal;
+
+    /**
+     * Messages recovered from the journal for channels that are not created yet.
+     */
+    private transient Map<String,Map<Long,byte[]>> recovered;
+
+    public ChannelEndPoint(String name) {
+        super(name);
+    }
+
+    protected synchronized void start() {
+        ChannelJournal j = new ChannelJournal(getDataDir());
+        try {
+            recovered = j.recover();
+        } catch (IOException e) {
+            throw new DalmaException("Failed to recover the channels of "+getName(),e);
+        }
+        journal = j;
+    }
+
+    protected void stop() {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING,"Failed to close the journal of "+getName(),e);
+        }
+    }
+
+    /**
+     * Gets the unbounded durable channel of the given name,
+     * creating one if it doesn't exist.
+     */
+    public Channel getChannel(String name) {
+        return getChannel(name,Integer.MAX_VALUE);
+    }
+
+    /**
+     * Gets the durable channel of the given name,
+     * creating one with the given capacity if it doesn't exist.
+     *
+     * <p>
+     * The messages that were in the channel when the engine
+     * was shut down are in the returned channel.
+     */
+    public synchronized Channel getChannel(String name, int capacity) {
+        if(journal==null)
+            throw new IllegalStateException("endpoint "+getName()+" is not started");
+
+        Channel ch = channels.get(name);
+        if(ch==null) {
+            ch = new Channel(this,name,capacity);
+            // register first, as messages in this channel may refer to the channel itself
+            channels.put(name,ch);
+
+            Map<Long,byte[]> data = recovered.remove(name);
+            if(data!=null) {
+                List<Channel.Node> nodes = new ArrayList<Channel.Node>(data.size());
+                for (Map.Entry<Long,byte[]> e : data.entrySet()) {
+                    try {
+                        Channel.Node n = new Channel.Node((Message)deserialize(e.getValue()));
+                        n.seq = e.getKey();
+                        nodes.add(n);
+                    } catch (IOException x) {
+                        throw new DalmaException("Failed to restore a message in the channel "+name,x);
+                    } catch (ClassNotFoundException x) {
+                        throw new DalmaException("Failed to restore a message in the channel "+name,x);
+                    }
+                }
+                ch.restore(nodes);
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Creates a new unbounded durable channel with a unique name.
+     */
+    public Channel createChannel() {
+        return createChannel(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a new durable channel with a unique name.
+     */
+    public Channel createChannel(int capacity) {
+        return getChannel(UUID.randomUUID().toString(),capacity);
+    }
+
+    /**
+     * Records the messages sent to the given channel, and links them
+     * to its queue in the same order.
+     */
+    void send(Channel ch, Channel.Node first, Channel.Node last) {
+        List<byte[]> data = new ArrayList<byte[]>();
+        for( Channel.Node n=first; ; n=n.next ) {
+            try {
+                data.add(serialize(n.msg));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Failed to serialize a message to "+ch,e);
+            }
+            if(n==last)
+                break;
+        }
+
+        long pos = 0;
+        synchronized(journal) {
+            // the journal has to see the messages in the order they are linked
+            Channel.Node n = first;
+            for (byte[] d : data) {
+                n.seq = pos = journal.send(ch.getName(),d);
+                n = n.next;
+            }
+            ch.link(first,last);
+        }
+
+        try {
+            journal.flush(pos);
+        } catch (IOException e) {
+            // the message is still delivered, so there's no point in failing the sender
+            logger.log(Level.WARNING,"Failed to write the journal of "+getName(),e);
+        }
+    }
+
+    /**
+     * Records that the message of the given sequence number is received.
+     */
+    void received(final long seq) {
+        FiberSPI<?> fiber = FiberSPI.currentFiber(false);
+        if(fiber==null) {
+            journal.ack(seq);
+            return;
+        }
+
+        // until the conversation is saved, it may go back to before it received the message
+        final ChannelJournal j = journal;
+        fiber.getOwner().runAfterSave(new Runnable() {
+            public void run() {
+                j.ack(seq);
+            }
+        });
+    }
+
+    private static final Logger logger = Logger.getLogger(ChannelEndPoint.class.getName());
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,359 @@
+package dalma.endpoints.invm;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of the messages sent to and received from
+ * the durable {@link Channel}s of a {@link ChannelEndPoint}.
+ *
+ * <p>
+ * The log consists of segment files. Records are appended to an in-memory
+ * buffer while holding the lock of this object, and written to the current
+ * segment by {@link #flush(long)}. Senders that flush concurrently share one
+ * write (and one fsync), so the disk I/O is batched under load.
+ *
+ * <p>
+ * Each message is identified by its sequence number, which is the position
+ * of its record in the log, and its receipt is recorded with that number.
+ * Once a segment grows big enough, a new segment is started, and the old one
+ * is deleted as soon as all the messages in it are received and the receipts
+ * are written. Messages that are never received keep their segments around
+ * until the next restart, when the live messages are copied into a new segment.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class ChannelJournal {
+    private final File dir;
+
+    private int nextSegmentId;
+
+    /**
+     * Segment that the buffered records go to.
+     */
+    private Segment current;
+
+    private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(buf);
+
+    /**
+     * Position of the last record appended to {@link #buf}.
+     * Positions continue across restarts, so that a sequence number
+     * is never reused.
+     */
+    private long appended;
+
+    /**
+     * Position of the last record written to the disk. Guarded by {@link #writeLock}.
+     */
+    private long written;
+
+    /**
+     * Serializes the writes to segments.
+     * Acquired before the lock of this object, when both are needed.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Segments that contain the messages not yet received, keyed by
+     * the sequence numbers of the messages.
+     */
+    private final Map<Long,Segment> pending = new HashMap<Long,Segment>();
+
+    /**
+     * Segments that are written completely, but not yet deleted.
+     */
+    private final List<Segment> closed = new ArrayList<Segment>();
+
+    private static final class Segment {
+        final File file;
+        final FileOutputStream out;
+        long size;
+        /**
+         * Number of messages in this segment not yet received.
+         */
+        int live;
+        /**
+         * Position of the last receipt of a message in this segment.
+         * The segment can be deleted once this is written.
+         */
+        long lastAck;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            this.out = new FileOutputStream(file);
+        }
+    }
+
+    ChannelJournal(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Reads the existing segments, and moves the messages not yet received
+     * into a new segment.
+     *
+     * @return
+     *      serialized messages not yet received, keyed by the channel name,
+     *      then by their new sequence numbers in the order they are sent.
+     */
+    Map<String,Map<Long,byte[]>> recover() throws IOException {
+        dir.mkdirs();
+
+        File[] files = dir.listFiles();
+        if(files==null)
+            throw new IOException("Unable to list "+dir);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (File f : files) {
+            String n = f.getName();
+            if(n.startsWith("journal-") && n.endsWith(".log"))
+                ids.add(Integer.valueOf(n.substring(8,n.length()-4)));
+        }
+        Integer[] sorted = ids.toArray(new Integer[ids.size()]);
+        Arrays.sort(sorted);
+
+        Map<Long,Record> live = new LinkedHashMap<Long,Record>();
+        for (Integer id : sorted)
+            appended = Math.max(appended,read(id,live));
+
+        nextSegmentId = sorted.length==0 ? 0 : sorted[sorted.length-1]+1;
+        current = new Segment(getSegmentFile(nextSegmentId++));
+        written = appended;
+
+        Map<String,Map<Long,byte[]>> r = new LinkedHashMap<String,Map<Long,byte[]>>();
+        for (Record rec : live.values()) {
+            Map<Long,byte[]> msgs = r.get(rec.channel);
+            if(msgs==null)
+                r.put(rec.channel,msgs=new LinkedHashMap<Long,byte[]>());
+            msgs.put(send(rec.channel,rec.data),rec.data);
+        }
+        synchronized(this) {
+            // the older segments are no longer needed, even if we fail to delete them
+            out.write(CHECKPOINT);
+            appended++;
+        }
+        flush(appended);
+
+        for (Integer id : sorted) {
+            File f = getSegmentFile(id);
+            if(!f.delete())
+                logger.warning("Unable to delete "+f);
+        }
+
+        return r;
+    }
+
+    /**
+     * A message read from a segment.
+     */
+    private static final class Record {
+        final String channel;
+        final byte[] data;
+        /**
+         * ID of the segment that contains this record.
+         */
+        final int segment;
+
+        Record(String channel, byte[] data, int segment) {
+            this.channel = channel;
+            this.data = data;
+            this.segment = segment;
+        }
+    }
+
+    /**
+     * Reads a segment, and updates the messages not yet received.
+     *
+     * @return
+     *      the largest sequence number in the segment.
+     */
+    private long read(int id, Map<Long,Record> live) throws IOException {
+        File f = getSegmentFile(id);
+        long max = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            while(true) {
+                int type = in.read();
+                if(type<0)
+                    break;
+                switch(type) {
+                case SEND:
+                    long seq = in.readLong();
+                    String name = in.readUTF();
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    live.put(seq,new Record(name,data,id));
+                    max = Math.max(max,seq);
+                    break;
+                case ACK:
+                    // the message may be in a segment that's already deleted
+                    live.remove(in.readLong());
+                    break;
+                case CHECKPOINT:
+                    // the live messages in the older segments are copied into this one
+                    for (Iterator<Record> itr = live.values().iterator(); itr.hasNext();) {
+                        if(itr.next().segment<id)
+                            itr.remove();
+                    }
+                    break;
+                default:
+                    throw new IOException("Corrupted journal "+f);
+                }
+            }
+        } catch (EOFException e) {
+            // the last record was partially written when the VM died.
+            logger.warning("Ignoring the incomplete record at the end of "+f);
+        } finally {
+            in.close();
+        }
+        return max;
+    }
+
+    private File getSegmentFile(int id) {
+        return new File(dir,"journal-"+id+".log");
+    }
+
+    /**
+     * Appends a message sent to the given channel.
+     *
+     * @return
+     *      the sequence number of the message, to be passed to
+     *      {@link #ack(long)} once it's received, and to {@link #flush(long)}.
+     */
+    synchronized long send(String channel, byte[] data) {
+        long seq = ++appended;
+        try {
+            out.write(SEND);
+            out.writeLong(seq);
+            out.writeUTF(channel);
+            out.writeInt(data.length);
+            out.write(data);
+        } catch (IOException e) {
+            throw new AssertionError(e); // ByteArrayOutputStream doesn't throw IOException
+        }
+
+        pending.put(seq,current);
+        current.live++;
+
+        return seq;
+    }
+
+    /**
+     * Appends the receipt of the message of the given sequence number.
+     *
+     * <p>
+     * The receipt is written to the disk along with the next batch of messages.
+     * Until then, the message may be received again after a restart.
+     */
+    synchronized void ack(long seq) {
+        try {
+            out.write(ACK);
+            out.writeLong(seq);
+        } catch (IOException e) {
+            throw new AssertionError(e); // ByteArrayOutputStream doesn't throw IOException
+        }
+        appended++;
+
+        Segment seg = pending.remove(seq);
+        if(seg!=null) {
+            seg.live--;
+            seg.lastAck = appended;
+        }
+    }
+
+    /**
+     * Makes sure that the records up to the given position are written to the disk.
+     */
+    void flush(long upTo) throws IOException {
+        synchronized(writeLock) {
+            if(written>=upTo)
+                return; // another thread has written it for us
+
+            Segment seg;
+            byte[] data;
+            long n;
+            Segment next = null;
+            synchronized(this) {
+                seg = current;
+                data = buf.toByteArray();
+                buf.reset();
+                n = appended;
+                seg.size += data.length;
+                if(seg.size>=MAX_SEGMENT_SIZE)
+                    // the records appended from now on go to the new segment
+                    current = next = new Segment(getSegmentFile(nextSegmentId++));
+            }
+
+            seg.out.write(data);
+            seg.out.getFD().sync();
+            written = n;
+
+            if(next!=null)
+                seg.out.close();
+
+            synchronized(this) {
+                if(next!=null)
+                    closed.add(seg);
+                deleteDoneSegments();
+            }
+        }
+    }
+
+    /**
+     * Deletes the closed segments whose messages are all received,
+     * once the receipts are on the disk.
+     */
+    private void deleteDoneSegments() {
+        for (Iterator<Segment> itr = closed.iterator(); itr.hasNext();) {
+            Segment seg = itr.next();
+            if(seg.live==0 && seg.lastAck<=written) {
+                itr.remove();
+                if(!seg.file.delete())
+                    logger.warning("Unable to delete "+seg.file);
+            }
+        }
+    }
+
+    /**
+     * Writes out all the records and closes the journal.
+     */
+    void close() throws IOException {
+        synchronized(writeLock) {
+            long n;
+            synchronized(this) {
+                n = appended;
+            }
+            flush(n);
+            current.out.close();
+        }
+    }
+
+    private static final int SEND = 1;
+    private static final int ACK = 2;
+    /**
+     * Marks the end of the live messages copied from the older segments on recovery.
+     */
+    private static final int CHECKPOINT = 3;
+
+    /**
+     * Segments are switched once it grows beyond this size.
+     */
+    private static final long MAX_SEGMENT_SIZE = 4*1024*1024;
+
+    private static final Logger logger = Logger.getLogger(ChannelJournal.class.getName());
+}
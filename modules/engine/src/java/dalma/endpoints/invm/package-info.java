@@ -4,5 +4,9 @@
  * <p>
  * This package implements an intra-VM message exchange system
  * that can be handy used with a test.
+ *
+ * <p>
+ * {@link dalma.endpoints.invm.ChannelEndPoint} provides channels whose
+ * messages are persisted, so that they survive restarts of the engine.
  */
 package dalma.endpoints.invm;
\ No newline at end of file
@@ -4,6 +4,7 @@ import dalma.Condition;
 import dalma.TimeUnit;
 import dalma.Fiber;
 import dalma.impl.EndPointImpl;
+import dalma.metrics.Histogram;
 import dalma.spi.ConversationSPI;
 import dalma.spi.EngineSPI;
 import dalma.spi.FiberSPI;
@@ -28,6 +29,12 @@ public class TimerEndPoint extends EndPointImpl {
 
     private Timer timer;
 
+    /**
+     * Delay between the scheduled time and the actual activation.
+     * Looked up when the endpoint is started.
+     */
+    private volatile Histogram lag;
+
     /**
      * Timers that were queued while the endpoint is stopped.
      */
@@ -88,12 +95,14 @@ public class TimerEndPoint extends EndPointImpl {
 
         private final class TimerTaskImpl extends TimerTask {
             public void run() {
+                lag.record((System.currentTimeMillis()-dt.getTime())*1000);
                 TimerCondition.this.activate(null);
             }
         }
     }
 
     protected synchronized void start() {
+        lag = getMetrics().histogram("timer.lag");
         timer = new Timer(true);
         for (TimerCondition tc : queuedConditions)
             timer.schedule(tc.task,tc.dt);
@@ -0,0 +1,192 @@
+package dalma.impl;
+
+import dalma.spi.BlobStore;
+import dalma.metrics.Gauge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Engine-wide storage of {@link BlobStore blobs}.
+ *
+ * <p>
+ * Each blob is stored in its own file named after the SHA-1 hash of the data,
+ * in subdirectories named after the first two letters of the hash.
+ *
+ * <p>
+ * This class counts how many conversations refer to each blob, and
+ * deletes the file once the count drops to zero. The counts are not persisted;
+ * instead, each conversation records the blobs it refers to (see {@link ConversationBlobs}),
+ * and the counts are rebuilt when conversations are loaded.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class BlobStoreImpl {
+    private final File dir;
+
+    /**
+     * Number of conversations that refer to each blob, keyed by the blob ID.
+     * Blobs with no reference are not in this map.
+     */
+    private final Map<String,Integer> refs = new HashMap<String,Integer>();
+
+    private static final Logger logger = Logger.getLogger(BlobStoreImpl.class.getName());
+
+    BlobStoreImpl(EngineImpl engine, File dir) {
+        this.dir = dir;
+        engine.getMetrics().gauge("blobs.count",new Gauge() {
+            public long getValue() {
+                synchronized(BlobStoreImpl.this) {
+                    return refs.size();
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes the ID of the given data.
+     */
+    String getId(byte[] data, int offset, int length) {
+        MessageDigest md = createDigest();
+        md.update(data,offset,length);
+        return toHexString(md.digest());
+    }
+
+    /**
+     * Gets the file that stores the blob of the given ID.
+     *
+     * <p>
+     * The file should be treated as read-only.
+     */
+    File getFile(String id) {
+        return new File(new File(dir,id.substring(0,2)),id.substring(2));
+    }
+
+    /**
+     * Adds a reference to the blob of the given ID.
+     *
+     * <p>
+     * Once this method returns, the blob won't be deleted until the reference
+     * is {@link #release(String) released}. The caller is responsible for
+     * {@link #write(String, byte[], int, int) writing} the data if it's not there yet.
+     */
+    synchronized void acquire(String id) {
+        Integer n = refs.get(id);
+        refs.put(id, n==null ? 1 : n+1);
+    }
+
+    /**
+     * Removes a reference to the blob of the given ID,
+     * and deletes the blob if that was the last one.
+     */
+    synchronized void release(String id) {
+        Integer n = refs.get(id);
+        if(n==null) {
+            assert false : "blob "+id+" is not referenced";
+            return;
+        }
+        if(n>1) {
+            refs.put(id,n-1);
+            return;
+        }
+        refs.remove(id);
+        File f = getFile(id);
+        if(!f.delete() && f.exists())
+            // on Windows, this happens if someone is still reading the file.
+            // it will be deleted by the next gc()
+            logger.log(Level.FINE,"Unable to delete "+f);
+    }
+
+    /**
+     * Writes the data of a blob, which should be {@link #acquire(String) acquired} by the caller.
+     */
+    void write(String id, byte[] data, int offset, int length) throws IOException {
+        File f = getFile(id);
+        File parent = f.getParentFile();
+        parent.mkdirs();
+
+        // write to a temporary file first so that a half-written blob
+        // will never be mistaken as a complete one
+        File tmp = File.createTempFile("blob",".tmp",parent);
+        OutputStream os = new FileOutputStream(tmp);
+        try {
+            os.write(data,offset,length);
+        } finally {
+            os.close();
+        }
+        if(!tmp.renameTo(f)) {
+            tmp.delete();
+            // another thread may have written the same blob concurrently
+            if(!f.exists())
+                throw new IOException("Unable to create "+f);
+        }
+    }
+
+    /**
+     * Maps the blob into memory.
+     */
+    ByteBuffer map(String id) throws IOException {
+        FileInputStream in = new FileInputStream(getFile(id));
+        try {
+            FileChannel ch = in.getChannel();
+            return ch.map(FileChannel.MapMode.READ_ONLY,0,ch.size());
+        } finally {
+            // the mapping remains valid after the channel is closed
+            in.close();
+        }
+    }
+
+    /**
+     * Deletes blobs that no conversation refers to.
+     *
+     * <p>
+     * This should be called after all the conversations are loaded,
+     * to clean up the blobs left behind by a crash.
+     */
+    synchronized void gc() {
+        File[] subdirs = dir.listFiles();
+        if(subdirs==null)
+            return;
+        for (File subdir : subdirs) {
+            File[] files = subdir.listFiles();
+            if(files==null)
+                continue;
+            for (File f : files) {
+                if(refs.containsKey(subdir.getName()+f.getName()))
+                    continue;
+                if(!f.delete())
+                    logger.log(Level.FINE,"Unable to delete "+f);
+            }
+            // succeeds only if the directory is empty
+            subdir.delete();
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e); // impossible
+        }
+    }
+
+    private static String toHexString(byte[] data) {
+        StringBuilder buf = new StringBuilder(data.length*2);
+        for (byte b : data) {
+            buf.append(Character.forDigit((b>>4)&0xF,16));
+            buf.append(Character.forDigit(b&0xF,16));
+        }
+        return buf.toString();
+    }
+}
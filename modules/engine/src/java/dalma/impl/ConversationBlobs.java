@@ -0,0 +1,198 @@
+package dalma.impl;
+
+import dalma.spi.BlobStore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link BlobStore} as seen from one conversation.
+ *
+ * <p>
+ * This object keeps track of the blobs that the continuation of the conversation
+ * refers to, and holds references to them in {@link BlobStoreImpl}.
+ * The list of those blobs is kept in a file in the conversation directory,
+ * so that the references can be restored when the engine restarts.
+ * The list is always updated before the continuation starts referring to
+ * a new blob, so it may list more blobs than needed, but never less.
+ *
+ * <p>
+ * This object is only used while the conversation is hydrated or dehydrated,
+ * which never happens concurrently, so it's not thread-safe.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class ConversationBlobs extends BlobStore {
+    private final EngineImpl engine;
+    private final BlobStoreImpl store;
+
+    /**
+     * Lists IDs of {@link #held} blobs, one per line.
+     */
+    private final File listFile;
+
+    /**
+     * Blobs that this conversation holds references to.
+     */
+    private final Set<String> held = new HashSet<String>();
+
+    /**
+     * Blobs referenced by the continuation being written.
+     */
+    private final Set<String> marked = new HashSet<String>();
+
+    private static final Logger logger = Logger.getLogger(ConversationBlobs.class.getName());
+
+    /**
+     * @param rootDir
+     *      The directory of the conversation.
+     */
+    ConversationBlobs(EngineImpl engine, File rootDir) {
+        this.engine = engine;
+        this.store = engine.blobStore;
+        this.listFile = new File(rootDir,"blobs.txt");
+
+        if(listFile.exists()) {
+            try {
+                BufferedReader r = new BufferedReader(new FileReader(listFile));
+                try {
+                    String line;
+                    while((line=r.readLine())!=null) {
+                        if(line.length()>0 && held.add(line))
+                            store.acquire(line);
+                    }
+                } finally {
+                    r.close();
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING,"Failed to read "+listFile,e);
+            }
+        }
+    }
+
+    public String put(byte[] data, int offset, int length) throws IOException {
+        String id = store.getId(data,offset,length);
+        hold(id);
+        // now that we hold a reference, nobody deletes it
+        if(!store.getFile(id).exists())
+            store.write(id,data,offset,length);
+        marked.add(id);
+        return id;
+    }
+
+    public boolean reuse(String id) {
+        File f = store.getFile(id);
+        if(!held.contains(id) && !f.exists())
+            return false;
+        try {
+            hold(id);
+        } catch (IOException e) {
+            logger.log(Level.WARNING,"Failed to update "+listFile,e);
+            return false;
+        }
+        if(!f.exists())
+            return false;   // deleted before we got hold of it
+        marked.add(id);
+        return true;
+    }
+
+    /**
+     * Makes sure this conversation holds a reference to the given blob.
+     */
+    private void hold(String id) throws IOException {
+        if(held.contains(id))
+            return;
+
+        store.acquire(id);
+        held.add(id);
+        // record it before the continuation starts referring to it
+        PrintWriter w = new PrintWriter(new FileWriter(listFile,true));
+        w.println(id);
+        w.close();
+        if(w.checkError())
+            throw new IOException("Failed to write "+listFile);
+    }
+
+    public long getSize(String id) {
+        File f = store.getFile(id);
+        if(!f.exists())
+            return -1;
+        return f.length();
+    }
+
+    public InputStream open(String id) throws IOException {
+        return new FileInputStream(store.getFile(id));
+    }
+
+    public ByteBuffer map(String id) throws IOException {
+        return store.map(id);
+    }
+
+    protected ObjectInputStream createObjectInputStream(InputStream in) throws IOException {
+        return new ObjectInputStreamEx(in,engine.classLoader);
+    }
+
+    /**
+     * Called after the continuation is written, to release the blobs
+     * that it no longer refers to.
+     */
+    void commit() throws IOException {
+        if(!marked.containsAll(held)) {
+            Set<String> unused = new HashSet<String>(held);
+            unused.removeAll(marked);
+            held.removeAll(unused);
+            writeList();
+            for (String id : unused)
+                store.release(id);
+        }
+        marked.clear();
+    }
+
+    /**
+     * Called when the conversation is removed, to release all the blobs.
+     */
+    void dispose() {
+        for (String id : held)
+            store.release(id);
+        held.clear();
+    }
+
+    private void writeList() throws IOException {
+        File tmp = new File(listFile.getPath()+".tmp");
+        PrintWriter w = new PrintWriter(new FileWriter(tmp));
+        for (String id : held)
+            w.println(id);
+        w.close();
+        if(w.checkError())
+            throw new IOException("Failed to write "+tmp);
+
+        if(!tmp.renameTo(listFile)) {
+            // on Windows, the existing file needs to be deleted first
+            listFile.delete();
+            if(!tmp.renameTo(listFile))
+                throw new IOException("Unable to rename "+tmp+" to "+listFile);
+        }
+    }
+
+    /**
+     * Implementation of {@link BlobStore#current()}.
+     */
+    public static ConversationBlobs current() {
+        SerializationContext context = SerializationContext.get();
+        if(context==null)
+            return null;
+        return context.blobs;
+    }
+}
@@ -17,7 +17,14 @@ final class ConversationCondition extends Condition<Conversation> {
     }
 
     public void onParked() {
-        conv.waitList.add(this);
+        synchronized(conv.waitList) {
+            if(!conv.isDisposed) {
+                conv.waitList.add(this);
+                return;
+            }
+        }
+        // the conversation has already completed
+        activate(conv);
     }
 
     public void interrupt() {
@@ -83,6 +83,11 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
      */
     private transient /*final*/ File rootDir;
 
+    /**
+     * Keeps large data referenced from the continuation.
+     */
+    private transient /*final*/ ConversationBlobs blobs;
+
     private final LogRecorder logRecorder;
 
     /**
@@ -90,6 +95,13 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
      */
     private Map<UUID,GeneratorImpl> generators = new Hashtable<UUID,GeneratorImpl>();
 
+    /**
+     * Tasks to be run after the next save.
+     *
+     * @see #runAfterSave(Runnable)
+     */
+    private transient List<Runnable> afterSave;
+
     /**
      * Other conversations that are blocking for the completion of this conversation.
      *
@@ -119,6 +131,13 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
      */
     private boolean isAborted;
 
+    /**
+     * Set to true once {@link ConversationReaper} finished cleaning up
+     * this conversation, including firing the completion event.
+     * {@link #join()} waits for this.
+     */
+    /*package*/ transient volatile boolean isDisposed;
+
     /**
      * Synchronization for handling multiple concurrent {@link Conversation#remove(Throwable)} method invocation.
      */
@@ -195,7 +214,9 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
     private void init(EngineImpl engine,File rootDir) {
         this.engine = engine;
         this.rootDir = rootDir;
+        this.blobs = new ConversationBlobs(engine,rootDir);
         this.waitList = Collections.synchronizedSet(new HashSet<ConversationCondition>());
+        this.afterSave = new ArrayList<Runnable>();
         this.runningCounts = new Counter();
         this.removeLock = new Object();
         this.logger = Logger.getAnonymousLogger();
@@ -210,6 +231,29 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
         g.onLoad();
     }
 
+    public void runAfterSave(Runnable task) {
+        synchronized(afterSave) {
+            afterSave.add(task);
+        }
+    }
+
+    private void runAfterSaveTasks() {
+        List<Runnable> tasks;
+        synchronized(afterSave) {
+            if(afterSave.isEmpty())
+                return;
+            tasks = new ArrayList<Runnable>(afterSave);
+            afterSave.clear();
+        }
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                getLogger().log(Level.WARNING,"Failed to run "+task+" after saving the conversation",e);
+            }
+        }
+    }
+
     public GeneratorImpl getGenerator(UUID id) {
         return generators.get(id);
     }
@@ -218,6 +262,26 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
         return logRecorder.getLogs();
     }
 
+    /**
+     * Moves the log records of this conversation into another directory.
+     *
+     * <p>
+     * Used to archive the log of a completed conversation.
+     * Records logged after this method are no longer recorded.
+     *
+     * @see LogRecorder#moveTo(File)
+     */
+    public void moveLog(File dir) throws IOException {
+        // detach first, so that nothing gets written into the directory being moved
+        logger.removeHandler(logRecorder);
+        try {
+            logRecorder.moveTo(dir);
+        } catch (IOException e) {
+            logger.addHandler(logRecorder);
+            throw e;
+        }
+    }
+
     /**
      * Loads a {@link ConversationImpl} object from the disk.
      */
@@ -259,6 +323,11 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
         } finally {
             SerializationContext.remove();
         }
+        synchronized(generators) {
+            for (GeneratorImpl g : generators.values())
+                g.onSaved();
+        }
+        runAfterSaveTasks();
     }
 
     public int getId() {
@@ -318,8 +387,9 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
         }
 
         File cont = new File(rootDir,"continuation");
+        long start = System.nanoTime();
         try {
-            SerializationContext.set(engine,SerializationContext.Mode.CONTINUATION);
+            SerializationContext.set(engine,SerializationContext.Mode.CONTINUATION,blobs);
 
             ObjectInputStream ois = new ObjectInputStreamEx(
                 new BufferedInputStream(new FileInputStream(cont)),engine.classLoader);
@@ -337,6 +407,9 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
             for (FiberImpl<?> f : fibers) {
                 f.hydrate(list.get(f.id));
             }
+
+            engine.hydrationTime.recordTimeSince(start);
+            engine.hydrationSize.record(cont.length());
         } catch (IOException e) {
             runningCounts.dec();
             throw new ConversationDeath("failed to restore the state of the conversation "+cont,e);
@@ -358,6 +431,8 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
             return;
         }
 
+        long start = System.nanoTime();
+
         // create the object that represents the persisted state
         List<FiberImpl.PersistedData> state = new ArrayList<FiberImpl.PersistedData>(fibers.size());
 
@@ -368,7 +443,7 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
         File cont = new File(rootDir,"continuation");
         ObjectOutputStream oos = null;
         try {
-            SerializationContext.set(engine,SerializationContext.Mode.CONTINUATION);
+            SerializationContext.set(engine,SerializationContext.Mode.CONTINUATION,blobs);
 
             oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(cont)));
             oos.writeObject(state);
@@ -388,6 +463,16 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
             }
         }
 
+        try {
+            // release blobs that are no longer referenced from the continuation
+            blobs.commit();
+        } catch (IOException e) {
+            throw new ConversationDeath("failed to persist the state of the conversation "+cont, e);
+        }
+
+        engine.dehydrationTime.recordTimeSince(start);
+        engine.dehydrationSize.record(cont.length());
+
         try { // this needs to be done outside the EngineImpl.SERIALIZATION_CONTEXT
             save();
         } catch (IOException e) {
@@ -405,6 +490,12 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
      * <p>
      * This method is used also when the conversation normally exits.
      *
+     * <p>
+     * This method returns once all the running fibers have stopped.
+     * The rest of the clean up, including the completion event
+     * and the deletion of the data directory, is done later by
+     * {@link ConversationReaper}.
+     *
      * @param forcible
      *      true if this is a forcible or abnormal termination,
      *      false if the termination is normal (IOW the execution exited normally.)
@@ -435,51 +526,74 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
             }
 
             endDate = System.currentTimeMillis();
-            engine.listeners.onConversationCompleted(this);
-
-            synchronized(engine.completionLock) {
-                Map<Integer,ConversationImpl> convs = engine.conversations;
-                synchronized(convs) {
-                    ConversationImpl removed = convs.remove(id);
-                    assert removed==this;
-                    if(convs.isEmpty()) {
-                        engine.completionLock.notifyAll();
-                    }
-                }
-            }
+        }
 
-            try {
-                Util.deleteRecursive(rootDir);
-            } catch (IOException e) {
-                // there's really nothing we nor appliation can do to recover from this.
-                logger.log(Level.WARNING,"Unable to delete the conversation data directory",e);
+        // the rest of the clean up is done asynchronously
+        // so that we won't hold on to the executor thread.
+        engine.reaper.add(this);
+    }
+
+    /**
+     * Called by {@link ConversationReaper} to fire the completion event.
+     */
+    /*package*/ void fireCompleted() {
+        engine.listeners.onConversationCompleted(this);
+    }
+
+    /**
+     * Gets the directory to save the state of this conversation.
+     */
+    /*package*/ File getRootDir() {
+        return rootDir;
+    }
+
+    /**
+     * Called by {@link ConversationReaper} after the data directory is deleted,
+     * to release fibers and generators and to notify the waiting parties.
+     */
+    /*package*/ void dispose() {
+        synchronized(this) {
+            // remove this conversation from the endPoint
+            synchronized(fibers) {
+                for (FiberImpl f : fibers)
+                    f.remove();
+                fibers.clear();
             }
 
-            synchronized(this) {
-                // remove this conversation from the endPoint
-                synchronized(fibers) {
-                    for (FiberImpl f : fibers)
-                        f.remove();
-                    fibers.clear();
+            synchronized(generators) {
+                for (GeneratorImpl g : generators.values()) {
+                    g.dispose();
                 }
+                generators.clear();
+            }
 
-                synchronized(generators) {
-                    for (GeneratorImpl g : generators.values()) {
-                        g.dispose();
-                    }
-                    generators.clear();
-                }
+            blobs.dispose();
+
+            // nothing is going to resume this conversation anymore
+            runAfterSaveTasks();
+
+            isDisposed = true;
 
-                // notify any threads that are blocked on this conversation.
-                // the lock needs to be held before removing all fibers, as
-                // that changes the getState() value
-                notifyAll();
+            // notify any threads that are blocked on this conversation.
+            // the lock needs to be held before removing all fibers, as
+            // that changes the getState() value
+            notifyAll();
 
-                // notify all conversations that are blocked on this
-                synchronized(waitList) {
-                    for (ConversationCondition cd : waitList)
-                        cd.activate(this);
-                    waitList.clear();
+            // notify all conversations that are blocked on this
+            synchronized(waitList) {
+                for (ConversationCondition cd : waitList)
+                    cd.activate(this);
+                waitList.clear();
+            }
+        }
+
+        synchronized(engine.completionLock) {
+            Map<Integer,ConversationImpl> convs = engine.conversations;
+            synchronized(convs) {
+                ConversationImpl removed = convs.remove(id);
+                assert removed==this;
+                if(convs.isEmpty()) {
+                    engine.completionLock.notifyAll();
                 }
             }
         }
@@ -488,10 +602,10 @@ public final class ConversationImpl extends ConversationSPI implements Serializa
     public synchronized void join() throws InterruptedException {
         FiberImpl<?> fiber = FiberImpl.currentFiber(false);
         if(fiber==null) {
-            // called from outside conversations
-            if(getState()!=ConversationState.ENDED) {
+            // called from outside conversations.
+            // wait until the completion event is fired, too
+            while(!isDisposed)
                 wait();
-            }
         } else {
             if(this==fiber.owner)
                 throw new IllegalStateException("a conversation can't wait for its own completion");
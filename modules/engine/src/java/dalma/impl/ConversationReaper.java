@@ -0,0 +1,255 @@
+package dalma.impl;
+
+import dalma.metrics.Gauge;
+import dalma.metrics.Histogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finishes the removal of completed {@link ConversationImpl}s asynchronously.
+ *
+ * <p>
+ * When the last fiber of a conversation ends, the executor thread
+ * only marks the conversation as removed and queues it here.
+ * Firing the completion events, deleting the data directory, and
+ * disposing fibers and generators happen in the reaper threads,
+ * so that the executor threads can go back to running fibers.
+ *
+ * <p>
+ * Conversations queued at the same time are processed as a batch,
+ * so that their data directories are deleted in one pass.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class ConversationReaper {
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+
+    private final Collection<ReaperThread> threads = new ArrayList<ReaperThread>();
+
+    /**
+     * Number of reaper threads to start.
+     */
+    private final int nThreads;
+
+    /**
+     * Set to true once {@link #stop()} is called.
+     * From then on, conversations are reaped synchronously.
+     * Guarded by {@code this}, so that no conversation is queued
+     * after the reaper threads are told to stop.
+     */
+    private boolean isStopping;
+
+    /**
+     * Time between the completion of a conversation and the end of its reaping.
+     */
+    private final Histogram lag;
+
+    private static final class Entry {
+        final ConversationImpl conv;
+        /**
+         * When this entry is queued.
+         */
+        final long timestamp = System.nanoTime();
+
+        Entry(ConversationImpl conv) {
+            this.conv = conv;
+        }
+    }
+
+    /**
+     * Queued once for each reaper thread to tell it to stop.
+     */
+    private static final Entry STOP = new Entry(null);
+
+    /**
+     * @param nThreads
+     *      number of reaper threads. Reaping is mostly disk I/O,
+     *      so one thread is usually enough.
+     */
+    ConversationReaper(EngineImpl engine, int nThreads) {
+        this.lag = engine.getMetrics().histogram("reaper.lag");
+        engine.getMetrics().gauge("reaper.pending",new Gauge() {
+            public long getValue() {
+                return queue.size();
+            }
+        });
+        this.nThreads = nThreads;
+    }
+
+    /**
+     * Starts the reaper threads.
+     * Conversations queued before this method are reaped once the threads start.
+     */
+    void start() {
+        synchronized(threads) {
+            for( int i=0; i<nThreads; i++ ) {
+                ReaperThread t = new ReaperThread();
+                t.start();
+                threads.add(t);
+            }
+        }
+    }
+
+    /**
+     * Queues a conversation whose {@link ConversationImpl#remove(Throwable, boolean)}
+     * is in progress.
+     */
+    void add(ConversationImpl conv) {
+        Entry e = new Entry(conv);
+        synchronized(this) {
+            if(!isStopping) {
+                queue.add(e);
+                return;
+            }
+        }
+        List<Entry> batch = new ArrayList<Entry>(1);
+        batch.add(e);
+        reap(batch);
+    }
+
+    /**
+     * Lets the reaper threads finish the conversations queued thus far
+     * and waits for them to exit, then reaps any remaining conversations
+     * in the calling thread.
+     */
+    void stop() {
+        List<ReaperThread> running;
+        synchronized(threads) {
+            running = new ArrayList<ReaperThread>(threads);
+        }
+        synchronized(this) {
+            isStopping = true;
+            // everything queued before these is reaped by the threads
+            for( int i=0; i<running.size(); i++ )
+                queue.add(STOP);
+        }
+        try {
+            for (ReaperThread t : running)
+                t.join();
+        } catch (InterruptedException e) {
+            // reap what's left below, and let the caller know
+            Thread.currentThread().interrupt();
+        }
+
+        List<Entry> batch = new ArrayList<Entry>();
+        queue.drainTo(batch);
+        batch.removeAll(Collections.singleton(STOP));
+        if(!batch.isEmpty())
+            reap(batch);
+    }
+
+    /**
+     * Gets the number of conversations that are waiting to be reaped.
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * Gets the number of conversations reaped thus far.
+     */
+    public long getReapedCount() {
+        return lag.getCount();
+    }
+
+    /**
+     * Gets the average time in microseconds between the completion of
+     * a conversation and the end of its reaping.
+     */
+    public double getAverageLag() {
+        return lag.getMean();
+    }
+
+    /**
+     * Gets the longest time in microseconds between the completion of
+     * a conversation and the end of its reaping.
+     */
+    public long getMaxLag() {
+        return lag.getMax();
+    }
+
+    private void reap(List<Entry> batch) {
+        for (Entry e : batch)
+            e.conv.fireCompleted();
+
+        // delete all the data directories in one go
+        for (Entry e : batch) {
+            File dir = e.conv.getRootDir();
+            try {
+                Util.deleteRecursive(dir);
+            } catch (IOException x) {
+                // there's really nothing we nor appliation can do to recover from this.
+                e.conv.getLogger().log(Level.WARNING,"Unable to delete the conversation data directory",x);
+            }
+        }
+
+        for (Entry e : batch)
+            e.conv.dispose();
+
+        for (Entry e : batch)
+            lag.recordTimeSince(e.timestamp);
+    }
+
+    private final class ReaperThread extends Thread {
+        public ReaperThread() {
+            super("Dalma conversation reaper thread");
+            setDaemon(true);
+        }
+
+        public void run() {
+            List<Entry> batch = new ArrayList<Entry>();
+            try {
+                boolean stop = false;
+                while(!stop) {
+                    Entry e = queue.take();
+                    while(true) {
+                        if(e==STOP) {
+                            stop = true;
+                            break;
+                        }
+                        batch.add(e);
+                        if(batch.size()>=MAX_BATCH_SIZE)
+                            break;
+                        e = queue.poll();
+                        if(e==null)
+                            break;
+                    }
+                    if(batch.isEmpty())
+                        continue;
+                    try {
+                        reap(batch);
+                    } catch (RuntimeException x) {
+                        // don't let the reaper thread die
+                        logger.log(Level.WARNING, "Failed to reap conversations",x);
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                // treat this as a signal to die
+            } finally {
+                // don't lose the conversations we've taken
+                if(!batch.isEmpty())
+                    reap(batch);
+                synchronized(threads) {
+                    threads.remove(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Maximum number of conversations reaped as one batch.
+     */
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private static final Logger logger = Logger.getLogger(ConversationReaper.class.getName());
+}
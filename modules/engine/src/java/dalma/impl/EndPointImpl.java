@@ -3,17 +3,103 @@ package dalma.impl;
 import dalma.Conversation;
 import dalma.EndPoint;
 import dalma.Engine;
+import dalma.metrics.MetricsRegistry;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
  * @author Kohsuke Kawaguchi
  */
 public abstract class EndPointImpl extends EndPoint {
+    /**
+     * The engine to which this endpoint belongs. Null until it's added to an engine.
+     */
+    private transient EngineImpl engine;
+
     protected EndPointImpl(String name) {
         super(name);
     }
 
+    /*package*/ void setEngine(EngineImpl engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Gets the engine to which this endpoint belongs.
+     *
+     * @return
+     *      null if this endpoint is not added to an engine yet.
+     */
+    protected Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Gets the {@link MetricsRegistry} to record the statistics of this endpoint.
+     *
+     * @return
+     *      the registry of the engine, or {@link MetricsRegistry#GLOBAL}
+     *      if this endpoint is not added to an engine yet.
+     */
+    protected MetricsRegistry getMetrics() {
+        if(engine==null)
+            return MetricsRegistry.GLOBAL;
+        return engine.getMetrics();
+    }
+
+    /**
+     * Gets the directory in which this endpoint can persist its own data.
+     *
+     * @throws IllegalStateException
+     *      if this endpoint is not added to an engine yet.
+     */
+    protected File getDataDir() {
+        if(engine==null)
+            throw new IllegalStateException("endpoint "+getName()+" is not added to an engine");
+        return engine.getEndPointDir(getName());
+    }
+
+    /**
+     * Serializes an object in the same way the engine persists conversations,
+     * so that references to endpoints, conversations and etc. are kept
+     * as references.
+     */
+    protected byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SerializationContext old = SerializationContext.set(engine,SerializationContext.Mode.CONTINUATION);
+        try {
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            oos.writeObject(o);
+            oos.close();
+        } finally {
+            SerializationContext.SERIALIZATION_CONTEXT.set(old);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Restores an object serialized by {@link #serialize(Object)}.
+     */
+    protected Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        SerializationContext old = SerializationContext.set(engine,SerializationContext.Mode.CONTINUATION);
+        try {
+            ObjectInputStream ois = new ObjectInputStreamEx(new ByteArrayInputStream(data),engine.classLoader);
+            try {
+                return ois.readObject();
+            } finally {
+                ois.close();
+            }
+        } finally {
+            SerializationContext.SERIALIZATION_CONTEXT.set(old);
+        }
+    }
+
 
     /**
      * Called when {@link Engine#start()} is invoked.
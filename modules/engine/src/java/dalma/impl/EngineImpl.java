@@ -9,6 +9,9 @@ import dalma.Executor;
 import dalma.Workflow;
 import dalma.EngineListener;
 import dalma.endpoints.timer.TimerEndPoint;
+import dalma.metrics.Gauge;
+import dalma.metrics.Histogram;
+import dalma.metrics.MetricsRegistry;
 import dalma.spi.EngineSPI;
 import org.apache.bsf.BSFManager;
 import org.apache.commons.io.IOUtils;
@@ -112,6 +115,29 @@ public final class EngineImpl extends EngineSPI implements Serializable {
 
     transient final EngineListenerSet listeners = new EngineListenerSet();
 
+    /**
+     * Performance metrics of this engine.
+     */
+    private transient final MetricsRegistry metrics = new MetricsRegistry();
+
+    // frequently used metrics
+    private transient final Histogram queueWaitTime = metrics.histogram("engine.queueWaitTime");
+    transient final Histogram fiberRunTime = metrics.histogram("fiber.runTime");
+    transient final Histogram hydrationTime = metrics.histogram("conversation.hydrationTime");
+    transient final Histogram hydrationSize = metrics.histogram("conversation.hydrationSize");
+    transient final Histogram dehydrationTime = metrics.histogram("conversation.dehydrationTime");
+    transient final Histogram dehydrationSize = metrics.histogram("conversation.dehydrationSize");
+
+    /**
+     * Stores large data referenced from continuations.
+     */
+    transient final BlobStoreImpl blobStore;
+
+    /**
+     * Cleans up completed conversations.
+     */
+    transient final ConversationReaper reaper;
+
     /**
      * True once the engine is started.
      */
@@ -136,6 +162,13 @@ public final class EngineImpl extends EngineSPI implements Serializable {
             Logger.getLogger(EngineImpl.class.getName()));
         this.logger = Logger.getAnonymousLogger();
         this.logger.setParent(loggerAggregate);
+        this.blobStore = new BlobStoreImpl(this,new File(rootDir,"blobs"));
+        this.reaper = new ConversationReaper(this,1);
+        metrics.gauge("engine.conversations",new Gauge() {
+            public long getValue() {
+                return conversations.size();
+            }
+        });
         load();
 
         addEndPoint(new TimerEndPoint());
@@ -173,8 +206,13 @@ public final class EngineImpl extends EngineSPI implements Serializable {
                 conversations.put(conv.id,conv);
             } catch (IOException e) {
                 logger.log(Level.WARNING, "Failed to load conversation "+subdir,e);
+                // keep its blobs in case it loads next time
+                new ConversationBlobs(this,subdir);
             }
         }
+
+        // clean up blobs left behind by a crash
+        blobStore.gc();
     }
 
     /**
@@ -184,6 +222,13 @@ public final class EngineImpl extends EngineSPI implements Serializable {
         return new File(rootDir,"conversations");
     }
 
+    /**
+     * Directory to store the data of the given endpoint.
+     */
+    File getEndPointDir(String name) {
+        return new File(new File(rootDir,"endpoints"),name);
+    }
+
     /**
      * Persists ths state of this object (but not conversations)
      * into the data file.
@@ -227,8 +272,10 @@ public final class EngineImpl extends EngineSPI implements Serializable {
      * Queues a conversation that became newly runnable.
      */
     void queue(final FiberImpl f) {
+        final long queuedTime = System.nanoTime();
         executor.execute(new Runnable() {
             public void run() {
+                queueWaitTime.recordTimeSince(queuedTime);
                 try {
                     lastActiveTime = System.currentTimeMillis();
                     f.run();
@@ -289,6 +336,27 @@ public final class EngineImpl extends EngineSPI implements Serializable {
         return new Date(lastActiveTime);
     }
 
+    /**
+     * Gets the {@link MetricsRegistry} that records the performance of this engine.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets the {@link ClassLoader} used to load workflow classes.
+     */
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    /**
+     * Gets the {@link ConversationReaper} that cleans up completed conversations.
+     */
+    public ConversationReaper getReaper() {
+        return reaper;
+    }
+
     public Map<String,EndPoint> getEndPoints() {
         synchronized(endPoints) {
             return Collections.<String,EndPoint>unmodifiableMap(endPoints);
@@ -307,6 +375,7 @@ public final class EngineImpl extends EngineSPI implements Serializable {
             if(!(ep instanceof EndPointImpl))
                 throw new IllegalArgumentException(ep.getClass().getName()+" doesn't derive from EndPointImpl");
             endPoints.put(ep.getName(),(EndPointImpl)ep);
+            ((EndPointImpl)ep).setEngine(this);
         }
     }
 
@@ -352,6 +421,7 @@ public final class EngineImpl extends EngineSPI implements Serializable {
     public void start() {
         makeSureNotStarted();
         started = true;
+        reaper.start();
         synchronized(endPoints) {
             for (EndPointImpl ep : endPoints.values())
                 ep.start();
@@ -385,6 +455,9 @@ public final class EngineImpl extends EngineSPI implements Serializable {
         for( EndPointImpl ep : eps )
             ep.stop();
 
+        // finish cleaning up completed conversations
+        reaper.stop();
+
         // write any pending changes
         try {
             save();
@@ -423,6 +496,16 @@ public final class EngineImpl extends EngineSPI implements Serializable {
         return new ConversationImpl(this,workflow);
     }
 
+    /**
+     * Implementation of {@link EngineSPI#current()}.
+     */
+    public static EngineImpl current() {
+        SerializationContext context = SerializationContext.get();
+        if(context==null)
+            return null;
+        return context.engine;
+    }
+
     private Object writeReplace() {
         if(SerializationContext.get().mode!=SerializationContext.Mode.ENGINE)
             // if the engine is written as a part of dehydration,
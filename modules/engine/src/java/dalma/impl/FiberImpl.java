@@ -232,11 +232,13 @@ public final class FiberImpl<T extends Runnable> extends FiberSPI<T> implements
     private void run0() {
         owner.onFiberStartedRunning(this);
         Throwable t = null;
+        long start = System.nanoTime();
         try {
             run1();
         } catch(Throwable tt) {
             t = tt;
         }
+        owner.getEngine().fiberRunTime.recordTimeSince(start);
         owner.onFiberEndedRunning(this,t);
     }
 
@@ -33,6 +33,14 @@ public abstract class GeneratorImpl implements Serializable {
      */
     protected abstract void dispose();
 
+    /**
+     * Called after the conversation is saved to disk, including this generator.
+     *
+     * Typically used to discard the data that the saved state no longer refers to.
+     */
+    protected void onSaved() {
+    }
+
     /*package*/ final void setConversation(ConversationImpl conv) {
         assert this.conv==null;
         this.conv = conv;
@@ -138,6 +138,31 @@ public final class LogRecorder extends Handler implements Serializable {
         return allLogs;
     }
 
+    /**
+     * Gets the directory in which log records are stored.
+     */
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Moves all the log records recorded thus far into another directory,
+     * and returns a new {@link LogRecorder} that reads from there.
+     *
+     * <p>
+     * This is just a rename of the directory, so no log record is parsed.
+     * This object shall not be used after this method is invoked.
+     *
+     * @throws IOException
+     *      if the directory cannot be renamed (for example because
+     *      the destination is on another file system.)
+     */
+    public synchronized LogRecorder moveTo(File newDir) throws IOException {
+        if(!dir.renameTo(newDir))
+            throw new IOException("Unable to move "+dir+" to "+newDir);
+        return new LogRecorder(newDir);
+    }
+
     /**
      * Sets # of days to keep log entries.
      *
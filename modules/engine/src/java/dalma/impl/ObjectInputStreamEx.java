@@ -22,6 +22,7 @@ final class ObjectInputStreamEx extends ObjectInputStream {
 
     protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
         String name = desc.getName();
-        return classLoader.loadClass(name);
+        // unlike ClassLoader.loadClass, this also resolves arrays like "[B"
+        return Class.forName(name,false,classLoader);
     }
 }
@@ -3,10 +3,28 @@ package dalma.impl;
 import dalma.Condition;
 import dalma.spi.ConditionListener;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
+ * {@link Condition} that becomes active when any one of the given
+ * {@link Condition}s becomes active.
+ *
+ * <p>
+ * The first {@link Condition} to become active is determined without a lock,
+ * so the other {@link Condition}s that become active at the same time don't
+ * wait for anything. The rest of the {@link Condition}s are interrupted
+ * after the owner is notified, by whichever thread finishes last between
+ * the one that parks them and the one that activates this condition.
+ *
+ * <p>
+ * Once the rest of the {@link Condition}s are interrupted, only the
+ * {@link Condition} that activated this condition is kept, so that
+ * the other {@link Condition}s are no longer serialized.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class OrCondition<T> extends Condition<Condition<? extends T>> implements ConditionListener {
@@ -14,8 +32,29 @@ public class OrCondition<T> extends Condition<Condition<? extends T>> implements
     /**
      * {@link Condition}s that this object is waiting on.
      * If any one of them become active, this object becomes active.
+     *
+     * <p>
+     * This is the only persisted state, and it has the same form as the earlier
+     * versions, so that their conversations can be restored.
      */
-    private final List<Condition<? extends T>> conditions;
+    private volatile List<Condition<? extends T>> conditions;
+
+    /**
+     * The {@link Condition} that became active first, or this object
+     * if it's interrupted first. Null until then.
+     */
+    private transient volatile Condition winner;
+
+    /**
+     * {@link #conditions} up to this index are parked.
+     */
+    private transient volatile int parked;
+
+    /**
+     * Incremented when the parking is done and when the winner is determined.
+     * Whoever brings this to 2 interrupts the rest of the conditions.
+     */
+    private transient volatile int phase;
 
     public OrCondition(Condition<? extends T>... conditions) {
         this(Arrays.asList(conditions));
@@ -24,38 +63,64 @@ public class OrCondition<T> extends Condition<Condition<? extends T>> implements
     public OrCondition(List<Condition<? extends T>> conditions) {
         if(conditions.isEmpty())
             throw new IllegalArgumentException("condition list is empty");
-        this.conditions = conditions;
+        this.conditions = new ArrayList<Condition<? extends T>>(conditions);
     }
 
     public void onParked() {
-        for (Condition<? extends T> co : conditions) {
-            co.park(this);
-        }
+        List<Condition<? extends T>> cs = conditions;
+        int i;
+        for( i=0; i<cs.size() && winner==null; i++ )
+            cs.get(i).park(this);
+        parked = i;
+        endPhase();
     }
 
     public void interrupt() {
-        for (Condition<? extends T> co : conditions) {
-            co.interrupt();
-        }
+        // the conditions being parked right now are interrupted once the parking is done.
+        // if a condition won already, the rest are interrupted anyway.
+        if(WINNER.compareAndSet(this,null,this))
+            endPhase();
     }
 
     public void onLoad() {
-        for (Condition<? extends T> co : conditions) {
+        List<Condition<? extends T>> cs = conditions;
+        for (Condition<? extends T> co : cs)
             co.onLoad();
-        }
+        parked = cs.size();
+        endPhase();
     }
 
-    public synchronized void onActivated(Condition cond) {
-        if(isActive()) {
-            // we are already active. ignore
-            return;
-        }
-        activate(cond);
-        for (Condition<? extends T> c : conditions) {
-            if(c!=cond)
-                c.interrupt();
+    public void onActivated(Condition cond) {
+        if(!WINNER.compareAndSet(this,null,cond))
+            return; // someone else won, or we are interrupted. ignore
+
+        if(!isActive()) // can be already active if restored from disk
+            activate(cond);
+        endPhase();
+    }
+
+    private void endPhase() {
+        if(PHASE.incrementAndGet(this)==2) {
+            Condition w = winner;
+            List<Condition<? extends T>> cs = conditions;
+            int n = parked;
+            for( int i=0; i<n; i++ ) {
+                Condition<? extends T> c = cs.get(i);
+                if(c!=w && !c.isActive())
+                    c.interrupt();
+            }
+            if(w!=this) {
+                List<Condition<? extends T>> l = new ArrayList<Condition<? extends T>>(1);
+                l.add(w);
+                conditions = l;
+            }
         }
     }
 
+    private static final AtomicReferenceFieldUpdater<OrCondition,Condition> WINNER =
+        AtomicReferenceFieldUpdater.newUpdater(OrCondition.class,Condition.class,"winner");
+    private static final AtomicIntegerFieldUpdater<OrCondition> PHASE =
+        AtomicIntegerFieldUpdater.newUpdater(OrCondition.class,"phase");
+
     private static final long serialVersionUID = 1L;
 }
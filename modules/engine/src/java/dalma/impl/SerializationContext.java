@@ -14,10 +14,15 @@ package dalma.impl;
 final class SerializationContext {
     final EngineImpl engine;
     final Mode mode;
+    /**
+     * The blobs of the conversation being (de)hydrated, if any.
+     */
+    final ConversationBlobs blobs;
 
-    private SerializationContext(EngineImpl engine,Mode mode) {
+    private SerializationContext(EngineImpl engine,Mode mode,ConversationBlobs blobs) {
         this.mode = mode;
         this.engine = engine;
+        this.blobs = blobs;
     }
 
     public static enum Mode {
@@ -40,8 +45,12 @@ final class SerializationContext {
     }
 
     /*package*/ static SerializationContext set(EngineImpl engine, Mode mode) {
+        return set(engine,mode,null);
+    }
+
+    /*package*/ static SerializationContext set(EngineImpl engine, Mode mode, ConversationBlobs blobs) {
         SerializationContext old = SERIALIZATION_CONTEXT.get();
-        SERIALIZATION_CONTEXT.set(new SerializationContext(engine,mode));
+        SERIALIZATION_CONTEXT.set(new SerializationContext(engine,mode,blobs));
         return old;
     }
 
@@ -3,6 +3,8 @@ package dalma.impl;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.io.StreamException;
 import com.thoughtworks.xstream.io.xml.XppReader;
+import dalma.metrics.Histogram;
+import dalma.metrics.MetricsRegistry;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -70,6 +72,7 @@ public final class XmlFile {
     }
 
     public void write( Object o ) throws IOException {
+        long start = System.nanoTime();
         AtomicFileWriter w = new AtomicFileWriter(file);
         try {
             w.write("<?xml version='1.0' encoding='UTF-8'?>\n");
@@ -80,6 +83,7 @@ public final class XmlFile {
         } finally {
             w.close();
         }
+        WRITE_TIME.recordTimeSince(start);
     }
 
     public boolean exists() {
@@ -135,6 +139,8 @@ public final class XmlFile {
         }
     }
 
+    private static final Histogram WRITE_TIME = MetricsRegistry.GLOBAL.histogram("xmlFile.writeTime");
+
     private static final class IOException2 extends IOException  {
         private final Exception cause;
 
@@ -0,0 +1,14 @@
+package dalma.metrics;
+
+/**
+ * Metric whose value is computed when it's read,
+ * such as the size of a queue.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public interface Gauge {
+    /**
+     * Gets the current value.
+     */
+    long getValue();
+}
@@ -0,0 +1,111 @@
+package dalma.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the distribution of non-negative values, such as latencies or sizes.
+ *
+ * <p>
+ * Values are counted in buckets whose width grows exponentially,
+ * with 16 sub-buckets per power of two, so that any value is reported
+ * with the relative error of about 6% at most, regardless of its magnitude.
+ * This is the same idea as HDR histograms, and it allows us to
+ * record a value with a few atomic operations without any lock
+ * and with constant memory.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class Histogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(N_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if(value<0) value=0;
+        buckets.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long m;
+        do {
+            m = max.get();
+        } while(value>m && !max.compareAndSet(m,value));
+    }
+
+    /**
+     * Records the time in microseconds elapsed since the given
+     * {@link System#nanoTime()} value.
+     */
+    public void recordTimeSince(long startNanos) {
+        record((System.nanoTime()-startNanos)/1000);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        if(n==0)    return 0;
+        return ((double)sum.get())/n;
+    }
+
+    /**
+     * Gets the value at the given percentile.
+     *
+     * @param p
+     *      between 0 and 100.
+     * @return
+     *      the upper bound of the bucket that contains the value,
+     *      or 0 if nothing is recorded.
+     */
+    public long getPercentile(double p) {
+        long n = count.get();
+        if(n==0)    return 0;
+        long rank = (long)Math.ceil(n*p/100);
+        if(rank<1)  rank=1;
+
+        long seen = 0;
+        for( int i=0; i<N_BUCKETS; i++ ) {
+            seen += buckets.get(i);
+            if(seen>=rank)
+                return Math.min(upperBoundOf(i),getMax());
+        }
+        // count and buckets are updated separately, so this can happen
+        return getMax();
+    }
+
+    private static int indexOf(long v) {
+        if(v<SUB_BUCKETS)
+            return (int)v;
+        int e = 63-Long.numberOfLeadingZeros(v);    // >=SUB_BUCKET_BITS
+        int sub = (int)(v>>>(e-SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+        return (e-SUB_BUCKET_BITS+1)*SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(int index) {
+        if(index<SUB_BUCKETS)
+            return index;
+        int e = index/SUB_BUCKETS+SUB_BUCKET_BITS-1;
+        long sub = index%SUB_BUCKETS;
+        long width = 1L<<(e-SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS+sub)<<(e-SUB_BUCKET_BITS)) + width-1;
+    }
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1<<SUB_BUCKET_BITS;
+    /**
+     * Buckets for values below {@link #SUB_BUCKETS}, plus
+     * {@link #SUB_BUCKETS} buckets per each bit position above that.
+     */
+    private static final int N_BUCKETS = (63-SUB_BUCKET_BITS+1)*SUB_BUCKETS;
+}
@@ -0,0 +1,94 @@
+package dalma.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the rate of events, such as the number of messages received per second.
+ *
+ * <p>
+ * In addition to the mean rate since the creation, this class computes
+ * the exponentially-weighted moving average of the rate over the last minute.
+ * The average is updated lazily when {@link #mark(long)} or a getter is invoked,
+ * so no background thread is needed.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class Meter {
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Events that are not yet reflected to {@link #rate}.
+     */
+    private final AtomicLong uncounted = new AtomicLong();
+
+    private final long startTime = System.nanoTime();
+
+    private final AtomicLong lastTick = new AtomicLong(startTime);
+
+    /**
+     * Moving average of the rate in events/second. -1 until the first tick.
+     */
+    private volatile double rate = -1;
+
+    public void mark() {
+        mark(1);
+    }
+
+    public void mark(long n) {
+        tickIfNecessary();
+        count.addAndGet(n);
+        uncounted.addAndGet(n);
+    }
+
+    /**
+     * Gets the total number of events.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the mean rate in events/second since this meter is created.
+     */
+    public double getMeanRate() {
+        long elapsed = System.nanoTime()-startTime;
+        if(elapsed<=0)  return 0;
+        return count.get()*1e9/elapsed;
+    }
+
+    /**
+     * Gets the moving average of the rate in events/second over the last minute.
+     */
+    public double getOneMinuteRate() {
+        tickIfNecessary();
+        return Math.max(rate,0);
+    }
+
+    private void tickIfNecessary() {
+        long old = lastTick.get();
+        long now = System.nanoTime();
+        long age = now-old;
+        if(age<TICK_INTERVAL)
+            return;
+        // only the thread that wins the race updates the rate
+        if(lastTick.compareAndSet(old,now-age%TICK_INTERVAL)) {
+            // after a long idle period the rate decays to 0 anyway
+            for( long i=Math.min(age/TICK_INTERVAL,MAX_TICKS); i>0; i-- )
+                tick();
+        }
+    }
+
+    private void tick() {
+        double instantRate = uncounted.getAndSet(0)*1e9/TICK_INTERVAL;
+        if(rate<0)
+            rate = instantRate;
+        else
+            rate += ALPHA*(instantRate-rate);
+    }
+
+    private static final long TICK_INTERVAL = 5L*1000*1000*1000;
+
+    private static final long MAX_TICKS = 120;
+
+    private static final double ALPHA = 1-Math.exp(-5/60.0);
+}
@@ -0,0 +1,129 @@
+package dalma.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes a {@link MetricsRegistry} to JMX as read-only attributes.
+ *
+ * <p>
+ * Metrics are mapped to attributes as follows. Since metrics can be added
+ * at any time, the attribute list is computed every time it's requested.
+ *
+ * <ul>
+ * <li>{@link Counter} and {@link Gauge} "x" become an attribute "x".
+ * <li>{@link Meter} "x" becomes "x.count", "x.meanRate", and "x.oneMinuteRate".
+ * <li>{@link Histogram} "x" becomes "x.count", "x.mean", "x.max",
+ *     "x.p50", "x.p90", "x.p99", and "x.p999".
+ * </ul>
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class MetricsMBean implements DynamicMBean {
+    private final MetricsRegistry registry;
+
+    public MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+        Map<String,Object> metrics = registry.getMetrics();
+
+        Object m = metrics.get(name);
+        if(m instanceof Counter)
+            return ((Counter)m).get();
+        if(m instanceof Gauge)
+            return ((Gauge)m).getValue();
+
+        int idx = name.lastIndexOf('.');
+        if(idx>0) {
+            String prop = name.substring(idx+1);
+            m = metrics.get(name.substring(0,idx));
+            if(m instanceof Meter) {
+                Meter meter = (Meter)m;
+                if(prop.equals("count"))            return meter.getCount();
+                if(prop.equals("meanRate"))         return meter.getMeanRate();
+                if(prop.equals("oneMinuteRate"))    return meter.getOneMinuteRate();
+            }
+            if(m instanceof Histogram) {
+                Histogram h = (Histogram)m;
+                if(prop.equals("count"))    return h.getCount();
+                if(prop.equals("mean"))     return h.getMean();
+                if(prop.equals("max"))      return h.getMax();
+                if(prop.equals("p50"))      return h.getPercentile(50);
+                if(prop.equals("p90"))      return h.getPercentile(90);
+                if(prop.equals("p99"))      return h.getPercentile(99);
+                if(prop.equals("p999"))     return h.getPercentile(99.9);
+            }
+        }
+
+        throw new AttributeNotFoundException(name);
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName()+" is read-only");
+    }
+
+    public AttributeList getAttributes(String[] names) {
+        AttributeList r = new AttributeList();
+        for (String name : names) {
+            try {
+                r.add(new Attribute(name,getAttribute(name)));
+            } catch (AttributeNotFoundException e) {
+                // skip, as per the contract
+            }
+        }
+        return r;
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        // no operations
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> atts = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String,Object> e : registry.getMetrics().entrySet()) {
+            String name = e.getKey();
+            Object m = e.getValue();
+            if(m instanceof Counter || m instanceof Gauge)
+                atts.add(attribute(name,Long.class));
+            if(m instanceof Meter) {
+                atts.add(attribute(name+".count",Long.class));
+                atts.add(attribute(name+".meanRate",Double.class));
+                atts.add(attribute(name+".oneMinuteRate",Double.class));
+            }
+            if(m instanceof Histogram) {
+                atts.add(attribute(name+".count",Long.class));
+                atts.add(attribute(name+".mean",Double.class));
+                for (String p : HISTOGRAM_LONG_PROPERTIES)
+                    atts.add(attribute(name+'.'+p,Long.class));
+            }
+        }
+
+        return new MBeanInfo(getClass().getName(), "Dalma metrics",
+            atts.toArray(new MBeanAttributeInfo[atts.size()]),
+            new MBeanConstructorInfo[0], new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+    }
+
+    private static MBeanAttributeInfo attribute(String name, Class type) {
+        return new MBeanAttributeInfo(name,type.getName(),name,true,false,false);
+    }
+
+    private static final String[] HISTOGRAM_LONG_PROPERTIES = {"max","p50","p90","p99","p999"};
+}
@@ -0,0 +1,102 @@
+package dalma.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Set of named metrics.
+ *
+ * <p>
+ * Metrics are created on demand when they are first looked up,
+ * so code that records a metric doesn't have to worry about the registration.
+ * Looking up a metric involves a hash lookup, so code in hot paths
+ * should keep the returned object in a field.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class MetricsRegistry {
+    private final ConcurrentMap<String,Object> metrics = new ConcurrentHashMap<String,Object>();
+
+    /**
+     * Gets the {@link Counter} of the given name, or creates it if it doesn't exist.
+     *
+     * @throws IllegalArgumentException
+     *      if the name is already used for another kind of metric.
+     */
+    public Counter counter(String name) {
+        Object o = metrics.get(name);
+        if(o==null)
+            o = putIfAbsent(name,new Counter());
+        return cast(name,o,Counter.class);
+    }
+
+    /**
+     * Gets the {@link Meter} of the given name, or creates it if it doesn't exist.
+     *
+     * @throws IllegalArgumentException
+     *      if the name is already used for another kind of metric.
+     */
+    public Meter meter(String name) {
+        Object o = metrics.get(name);
+        if(o==null)
+            o = putIfAbsent(name,new Meter());
+        return cast(name,o,Meter.class);
+    }
+
+    /**
+     * Gets the {@link Histogram} of the given name, or creates it if it doesn't exist.
+     *
+     * @throws IllegalArgumentException
+     *      if the name is already used for another kind of metric.
+     */
+    public Histogram histogram(String name) {
+        Object o = metrics.get(name);
+        if(o==null)
+            o = putIfAbsent(name,new Histogram());
+        return cast(name,o,Histogram.class);
+    }
+
+    /**
+     * Registers a {@link Gauge}, replacing the existing one of the same name if any.
+     */
+    public void gauge(String name, Gauge g) {
+        metrics.put(name,g);
+    }
+
+    /**
+     * Removes the metric of the given name, if any.
+     */
+    public void remove(String name) {
+        metrics.remove(name);
+    }
+
+    /**
+     * Gets a snapshot of all the metrics, sorted by their names.
+     *
+     * @return
+     *      values are {@link Counter}, {@link Gauge}, {@link Meter}, or {@link Histogram}.
+     */
+    public SortedMap<String,Object> getMetrics() {
+        return Collections.unmodifiableSortedMap(new TreeMap<String,Object>(metrics));
+    }
+
+    private Object putIfAbsent(String name, Object metric) {
+        Object o = metrics.putIfAbsent(name,metric);
+        return o!=null ? o : metric;
+    }
+
+    private static <T> T cast(String name, Object o, Class<T> type) {
+        if(!type.isInstance(o))
+            throw new IllegalArgumentException(name+" is already used for "+o.getClass().getSimpleName());
+        return type.cast(o);
+    }
+
+    /**
+     * Metrics that are not specific to any engine, such as file I/O.
+     */
+    public static final MetricsRegistry GLOBAL = new MetricsRegistry();
+}
@@ -0,0 +1,9 @@
+/**
+ * Light-weight performance metrics of the engine and endpoints.
+ *
+ * <p>
+ * Each {@link dalma.Engine} has its own {@link dalma.metrics.MetricsRegistry},
+ * which can be exported to JMX through {@link dalma.metrics.MetricsMBean}.
+ * All the times are recorded in microseconds.
+ */
+package dalma.metrics;
@@ -0,0 +1,225 @@
+package dalma.spi;
+
+import dalma.EndPoint;
+import dalma.impl.ConversationBlobs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Stores large data referenced from continuations outside the continuation files.
+ *
+ * <p>
+ * Messages that {@link EndPoint}s hand to conversations often carry large payloads,
+ * and they tend to stay in a conversation across many suspensions.
+ * By storing such payloads here and serializing just their IDs, a continuation
+ * file stays small, and the same payload is written to the disk only once.
+ *
+ * <p>
+ * Blobs are identified by the hash of their data, so identical data is stored
+ * only once, even when it's referenced from many conversations.
+ * The engine keeps track of which conversation refers to which blob,
+ * and removes blobs nobody refers to.
+ *
+ * <p>
+ * Message wrappers normally use this class from their {@code writeObject}/{@code readObject}
+ * or {@code writeReplace}/{@code readResolve} methods, through {@link #current()}
+ * or the helper methods like {@link #writeBytes(ObjectOutputStream, byte[], int, int)}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public abstract class BlobStore {
+    /**
+     * Stores the data, unless the same data is already stored,
+     * and records that the conversation being persisted refers to it.
+     *
+     * @return
+     *      the ID of the blob, which can be later used to retrieve the data.
+     */
+    public abstract String put(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * If the blob of the given ID is stored, records that the conversation
+     * being persisted refers to it, just like {@link #put(byte[], int, int)} does.
+     *
+     * <p>
+     * An object that remembers the ID of its data can use this method to
+     * avoid computing and writing the same data again.
+     *
+     * @return
+     *      false if no such blob exists, in which case the caller needs to
+     *      {@link #put(byte[], int, int) put} the data again.
+     */
+    public abstract boolean reuse(String id);
+
+    /**
+     * Gets the size of the blob in bytes.
+     *
+     * @return
+     *      -1 if no such blob exists.
+     */
+    public abstract long getSize(String id);
+
+    /**
+     * Reads the blob.
+     *
+     * @throws IOException
+     *      if no such blob exists.
+     */
+    public abstract InputStream open(String id) throws IOException;
+
+    /**
+     * Maps the blob to memory.
+     *
+     * <p>
+     * The data is paged in only when it's accessed, so this is the preferred way
+     * to access a big blob that may or may not be used.
+     * The returned buffer is read-only.
+     *
+     * @throws IOException
+     *      if no such blob exists.
+     */
+    public abstract ByteBuffer map(String id) throws IOException;
+
+    /**
+     * Creates an {@link ObjectInputStream} that can read objects of the workflow application.
+     */
+    protected abstract ObjectInputStream createObjectInputStream(InputStream in) throws IOException;
+
+    /**
+     * Gets the {@link BlobStore} of the conversation whose continuation
+     * is being persisted or restored by the current thread.
+     *
+     * @return
+     *      null if the current thread is not (de)hydrating a continuation,
+     *      in which case the data needs to be serialized inline.
+     */
+    public static BlobStore current() {
+        return ConversationBlobs.current();
+    }
+
+    /**
+     * Writes a byte array to the stream, or to the {@link #current() current} {@link BlobStore}
+     * if it's big enough.
+     *
+     * <p>
+     * Use {@link #readBytes(ObjectInputStream)} to read it back.
+     */
+    public static void writeBytes(ObjectOutputStream out, byte[] data, int offset, int length) throws IOException {
+        BlobStore store = current();
+        if(store!=null && length>=INLINE_THRESHOLD) {
+            out.writeObject(store.put(data,offset,length));
+        } else {
+            out.writeObject(null);
+            out.writeInt(length);
+            out.write(data,offset,length);
+        }
+    }
+
+    /**
+     * Reads a byte array written by {@link #writeBytes(ObjectOutputStream, byte[], int, int)}.
+     */
+    public static byte[] readBytes(ObjectInputStream in) throws IOException {
+        String id = readId(in);
+        if(id==null) {
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return data;
+        }
+
+        BlobStore store = getStore(id);
+        byte[] data = new byte[(int)store.getSize(id)];
+        DataInputStream is = new DataInputStream(store.open(id));
+        try {
+            is.readFully(data);
+        } finally {
+            is.close();
+        }
+        return data;
+    }
+
+    /**
+     * Writes an object to the stream, or to the {@link #current() current} {@link BlobStore}
+     * if its serialized form is big enough.
+     *
+     * <p>
+     * While there's a current {@link BlobStore}, the object is serialized on its own,
+     * even when it's small enough to be kept inline. So the object
+     * shouldn't share objects with the rest of the conversation, except those
+     * that the engine restores by themselves, such as {@link EndPoint}s.
+     *
+     * <p>
+     * Use {@link #readObject(ObjectInputStream)} to read it back.
+     */
+    public static void writeObject(ObjectOutputStream out, Object o) throws IOException {
+        BlobStore store = current();
+        if(store!=null) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            oos.writeObject(o);
+            oos.close();
+            byte[] data = baos.toByteArray();
+            if(data.length>=INLINE_THRESHOLD)
+                out.writeObject(store.put(data,0,data.length));
+            else
+                // don't serialize it again
+                out.writeObject(data);
+            return;
+        }
+        out.writeObject(null);
+        out.writeObject(o);
+    }
+
+    /**
+     * Reads an object written by {@link #writeObject(ObjectOutputStream, Object)}.
+     */
+    public static Object readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        Object head = in.readObject();
+        if(head==null)
+            return in.readObject();
+
+        InputStream data;
+        BlobStore store;
+        if(head instanceof byte[]) {
+            // serialized on its own, but kept inline
+            data = new ByteArrayInputStream((byte[])head);
+            store = getStore("the inline object");
+        } else {
+            String id = (String)head;
+            store = getStore(id);
+            data = store.open(id);
+        }
+        ObjectInputStream ois = store.createObjectInputStream(data);
+        try {
+            return ois.readObject();
+        } finally {
+            ois.close();
+        }
+    }
+
+    private static String readId(ObjectInputStream in) throws IOException {
+        try {
+            return (String)in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new Error(e); // impossible
+        }
+    }
+
+    private static BlobStore getStore(String id) throws IOException {
+        BlobStore store = current();
+        if(store==null)
+            throw new IOException("No blob store to load "+id+" from");
+        return store;
+    }
+
+    /**
+     * Data smaller than this is serialized inline, as a file per blob costs more than that.
+     */
+    private static final int INLINE_THRESHOLD = 4*1024;
+}
@@ -25,4 +25,15 @@ public abstract class ConversationSPI implements Conversation {
     public abstract EngineSPI getEngine();
 
     public abstract void addGenerator(GeneratorImpl generator);
+
+    /**
+     * Runs the given task once the state of this conversation is persisted next time,
+     * or when this conversation ends.
+     *
+     * <p>
+     * Until then, the conversation resumes from the point it last suspended
+     * if the engine dies, so an endpoint should use this to forget what the
+     * conversation has consumed.
+     */
+    public abstract void runAfterSave(Runnable task);
 }
@@ -1,9 +1,26 @@
 package dalma.spi;
 
+import dalma.EndPoint;
 import dalma.Engine;
+import dalma.impl.EngineImpl;
 
 /**
  * @author Kohsuke Kawaguchi
  */
 public abstract class EngineSPI extends Engine {
+    /**
+     * Gets the engine that is serializing or deserializing objects in the current thread.
+     *
+     * <p>
+     * This is the case while a continuation or a conversation is persisted or restored,
+     * and while an {@link EndPoint} persists or restores objects by itself, such as
+     * the messages nobody is waiting for yet. References to {@link EndPoint}s can be
+     * serialized only then, as they are restored to the endpoints of this engine.
+     *
+     * @return
+     *      null if the current thread is not (de)serializing anything for an engine.
+     */
+    public static EngineSPI current() {
+        return EngineImpl.current();
+    }
 }
@@ -0,0 +1,274 @@
+package dalma.spi.port;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the keyed messages that no {@link Receiver} is waiting for,
+ * so that they can be delivered once a {@link Receiver} for the key registers.
+ *
+ * <p>
+ * This happens routinely while the engine is starting, as the endpoints
+ * start receiving messages before the conversations are restored,
+ * and when a reply arrives before the conversation that sent the message
+ * registers itself.
+ *
+ * <p>
+ * Each message is written to its own file, so that the messages survive
+ * restarts of the engine. Only the keys are kept in memory.
+ * Messages are discarded once they get too old, or when there are too many
+ * of them, oldest first.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class DeadLetterStore<Key,Msg> {
+    private final MultiplexedEndPoint<Key,Msg> endPoint;
+
+    private final File dir;
+
+    /**
+     * Letters keyed by their keys. Each list is in the order of arrival.
+     */
+    private final Map<Key,List<Letter<Key>>> letters = new HashMap<Key,List<Letter<Key>>>();
+
+    /**
+     * All the letters in the order of arrival, thus in the order of expiration.
+     */
+    private final LinkedList<Letter<Key>> all = new LinkedList<Letter<Key>>();
+
+    /**
+     * Size of {@link #all}, readable without a lock.
+     */
+    private volatile int size;
+
+    private long iota;
+
+    private static final class Letter<Key> {
+        final Key key;
+        final File file;
+        /**
+         * The time this letter expires.
+         */
+        final long expiration;
+
+        Letter(Key key, File file, long expiration) {
+            this.key = key;
+            this.file = file;
+            this.expiration = expiration;
+        }
+    }
+
+    DeadLetterStore(MultiplexedEndPoint<Key,Msg> endPoint, File dir) {
+        this.endPoint = endPoint;
+        this.dir = dir;
+        recover();
+    }
+
+    /**
+     * Reads the letters left by the previous run.
+     */
+    private void recover() {
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        if(files==null)
+            return;
+
+        List<Letter<Key>> list = new ArrayList<Letter<Key>>();
+        for (File f : files) {
+            String n = f.getName();
+            if(!n.endsWith(".msg"))
+                continue;
+            try {
+                iota = Math.max(iota,Long.parseLong(n.substring(0,n.length()-4))+1);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+                try {
+                    long expiration = in.readLong();
+                    byte[] key = new byte[in.readInt()];
+                    in.readFully(key);
+                    list.add(new Letter<Key>((Key)endPoint.fromBytes(key),f,expiration));
+                } finally {
+                    in.close();
+                }
+            } catch (Exception e) {
+                logger.log(Level.WARNING,"Discarding a broken dead letter "+f,e);
+                delete(f);
+            }
+        }
+
+        Collections.sort(list,new Comparator<Letter<Key>>() {
+            public int compare(Letter<Key> x, Letter<Key> y) {
+                return x.expiration<y.expiration ? -1 : (x.expiration==y.expiration ? 0 : 1);
+            }
+        });
+        synchronized(this) {
+            for (Letter<Key> l : list)
+                add(l);
+        }
+    }
+
+    /**
+     * Gets the number of the letters in this store.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Stores a message.
+     *
+     * @param timeToLive
+     *      number of milliseconds to keep the message.
+     * @param max
+     *      maximum number of the letters to be kept.
+     * @return
+     *      letters discarded to make room for this message.
+     */
+    int park(Key key, Msg msg, long timeToLive, int max) throws IOException {
+        byte[] k = endPoint.toBytes(key);
+        byte[] m = endPoint.toBytes(msg);
+        long expiration = System.currentTimeMillis()+timeToLive;
+
+        File f;
+        synchronized(this) {
+            f = new File(dir,(iota++)+".msg");
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            out.writeLong(expiration);
+            out.writeInt(k.length);
+            out.write(k);
+            out.writeInt(m.length);
+            out.write(m);
+        } finally {
+            out.close();
+        }
+
+        List<Letter<Key>> evicted = new ArrayList<Letter<Key>>();
+        synchronized(this) {
+            add(new Letter<Key>(key,f,expiration));
+            while(all.size()>max)
+                evicted.add(remove(all.getFirst()));
+        }
+        for (Letter<Key> l : evicted) {
+            logger.warning("Discarding the dead letter for key="+l.key+" as there are too many");
+            delete(l.file);
+        }
+        return evicted.size();
+    }
+
+    /**
+     * Removes and returns the messages for the given key, if any.
+     *
+     * @return
+     *      messages in the order of arrival. always non-null.
+     */
+    List<Msg> take(Key key) {
+        if(size==0)
+            return Collections.emptyList(); // fast path for the most common case
+
+        List<Letter<Key>> list;
+        synchronized(this) {
+            list = letters.get(key);
+            if(list==null)
+                return Collections.emptyList();
+            list = new ArrayList<Letter<Key>>(list);
+            for (Letter<Key> l : list)
+                remove(l);
+        }
+
+        List<Msg> r = new ArrayList<Msg>(list.size());
+        for (Letter<Key> l : list) {
+            try {
+                r.add(read(l.file));
+            } catch (Exception e) {
+                logger.log(Level.WARNING,"Failed to restore the dead letter "+l.file,e);
+            }
+            delete(l.file);
+        }
+        return r;
+    }
+
+    private Msg read(File f) throws IOException, ClassNotFoundException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            in.readLong();
+            in.readFully(new byte[in.readInt()]); // skip the key
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return (Msg)endPoint.fromBytes(data);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Discards the letters that are expired.
+     *
+     * @return
+     *      number of the letters discarded.
+     */
+    int expire() {
+        if(size==0)
+            return 0;
+
+        long now = System.currentTimeMillis();
+        List<Letter<Key>> expired = new ArrayList<Letter<Key>>();
+        synchronized(this) {
+            for (Iterator<Letter<Key>> itr = all.iterator(); itr.hasNext();) {
+                Letter<Key> l = itr.next();
+                if(l.expiration>now)
+                    break;
+                expired.add(l);
+            }
+            for (Letter<Key> l : expired)
+                remove(l);
+        }
+        for (Letter<Key> l : expired) {
+            logger.warning("No conversation claimed the message key="+l.key+" in time. Discarding");
+            delete(l.file);
+        }
+        return expired.size();
+    }
+
+    private void add(Letter<Key> l) {
+        List<Letter<Key>> list = letters.get(l.key);
+        if(list==null)
+            letters.put(l.key,list=new ArrayList<Letter<Key>>(1));
+        list.add(l);
+        all.add(l);
+        size = all.size();
+    }
+
+    private Letter<Key> remove(Letter<Key> l) {
+        List<Letter<Key>> list = letters.get(l.key);
+        list.remove(l);
+        if(list.isEmpty())
+            letters.remove(l.key);
+        all.remove(l);
+        size = all.size();
+        return l;
+    }
+
+    private static void delete(File f) {
+        if(!f.delete() && f.exists())
+            logger.warning("Unable to delete "+f);
+    }
+
+    private static final Logger logger = Logger.getLogger(DeadLetterStore.class.getName());
+}
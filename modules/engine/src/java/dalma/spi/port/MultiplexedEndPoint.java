@@ -4,11 +4,27 @@ import dalma.Condition;
 import dalma.ReplyIterator;
 import dalma.endpoints.timer.TimerEndPoint;
 import dalma.impl.EndPointImpl;
+import dalma.metrics.Gauge;
+import dalma.metrics.Meter;
+import dalma.metrics.MetricsRegistry;
 import dalma.spi.FiberSPI;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -17,18 +33,102 @@ import java.util.logging.Logger;
 public abstract class MultiplexedEndPoint<Key,Msg> extends EndPointImpl {
     /**
      * Conversations waiting for replies.
+     *
+     * <p>
+     * Listener threads look up this map for every incoming message,
+     * so this is a concurrent map rather than one guarded by a single lock.
+     */
+    protected final ConcurrentMap<Key,Receiver<Key,Msg>> queue = new ConcurrentHashMap<Key,Receiver<Key,Msg>>();
+
+    /**
+     * Number of messages being sent whose keys may not be registered yet.
+     *
+     * @see #beginSend()
      */
-    protected final Map<Key,Receiver<Key,Msg>> queue = new Hashtable<Key,Receiver<Key,Msg>>();
+    private final AtomicInteger sending = new AtomicInteger();
+
+    /**
+     * Replies that arrived while messages were being sent, before the
+     * conversations waiting for them registered themselves.
+     * Guarded by itself.
+     */
+    private final Map<Key,List<Msg>> earlyReplies = new HashMap<Key,List<Msg>>();
 
     /**
      * Logger for event logging.
      */
     protected final Logger logger = Logger.getLogger(getClass().getName());
 
+    /**
+     * Statistics of the incoming messages. Created lazily.
+     */
+    private transient volatile Stats stats;
+
+    private static final class Stats {
+        final Meter received, correlated, unmatched, unkeyed, replayed, expired;
+
+        Stats(MetricsRegistry registry, String prefix) {
+            received = registry.meter(prefix+"received");
+            correlated = registry.meter(prefix+"correlated");
+            unmatched = registry.meter(prefix+"unmatched");
+            unkeyed = registry.meter(prefix+"new");
+            replayed = registry.meter(prefix+"replayed");
+            expired = registry.meter(prefix+"expired");
+        }
+    }
+
+    /**
+     * Keyed messages that no conversation was waiting for.
+     * Created lazily once this endpoint is added to an engine.
+     */
+    private transient volatile DeadLetterStore<Key,Msg> deadLetters;
+
+    /**
+     * Delivers the parked messages to the {@link Receiver}s. Created lazily.
+     */
+    private transient volatile ThreadPoolExecutor replayer;
+
+    /**
+     * @see #setMaxDeadLetters(int)
+     */
+    private int maxDeadLetters = 1000;
+
+    /**
+     * @see #setDeadLetterTimeToLive(long)
+     */
+    private long deadLetterTimeToLive = 60*60*1000;
+
     protected MultiplexedEndPoint(String name) {
         super(name);
     }
 
+    /**
+     * Sets the maximum number of the keyed messages kept while
+     * no conversation is waiting for them.
+     *
+     * <p>
+     * A message that arrives before the conversation waiting for it
+     * registers itself, such as when the engine is starting, is kept
+     * on the disk and delivered once the conversation registers.
+     * When there are too many of them, the oldest ones are discarded.
+     *
+     * @param max
+     *      0 to discard such messages right away. Defaults to 1000.
+     */
+    public void setMaxDeadLetters(int max) {
+        this.maxDeadLetters = max;
+    }
+
+    /**
+     * Sets the number of milliseconds to keep a keyed message
+     * while no conversation is waiting for it. Defaults to 1 hour.
+     *
+     * @see #setMaxDeadLetters(int)
+     */
+    public void setDeadLetterTimeToLive(long ms) {
+        this.deadLetterTimeToLive = ms;
+    }
+
     /**
      * Sends out an message and waits for a single reply.
      *
@@ -60,6 +160,31 @@ public abstract class MultiplexedEndPoint<Key,Msg> extends EndPointImpl {
         return new ReplyIteratorImpl<Key,Msg>(this,outgoing,expirationDate);
     }
 
+    /**
+     * Sends out messages and waits until replies to enough of them are received.
+     *
+     * <p>
+     * All the messages are sent in one batch through {@link #send(Collection)},
+     * and the conversation waits on a single {@link Condition} no matter
+     * how many messages are sent. Only the first reply to each message counts.
+     *
+     * @param quorum
+     *      the conversation resumes once replies to this many messages are received.
+     *      must be between 1 and the number of the messages.
+     * @param timeout
+     *      if non-null, the conversation resumes at this time even if
+     *      the quorum is not reached.
+     * @return
+     *      the replies received, in the order they arrived. always non-null.
+     *      has less than {@code quorum} replies only when the timeout expired.
+     */
+    protected List<? extends Msg> scatterGather(Collection<? extends Msg> msgs, int quorum, Date timeout) {
+        if(quorum<1 || quorum>msgs.size())
+            throw new IllegalArgumentException("quorum "+quorum+" is out of range for "+msgs.size()+" messages");
+        return FiberSPI.currentFiber(true).suspend(
+            new ScatterGatherCondition<Key,Msg>(this,msgs,quorum,timeout));
+    }
+
 
 
 //
@@ -68,12 +193,108 @@ public abstract class MultiplexedEndPoint<Key,Msg> extends EndPointImpl {
 //
 //
 
-    /*package*/ void register(Receiver<Key,Msg> mr) {
-        queue.put(mr.getKey(),mr);
+    /*package*/ void register(Key key, Receiver<Key,Msg> mr) {
+        queue.put(key,mr);
+        deliverEarlyReplies(key);
+        replay(key);
+    }
+
+    /**
+     * Registers a {@link Receiver} to multiple keys.
+     */
+    /*package*/ void register(Collection<Key> keys, Receiver<Key,Msg> mr) {
+        for (Key key : keys)
+            queue.put(key,mr);
+        for (Key key : keys) {
+            deliverEarlyReplies(key);
+            replay(key);
+        }
+    }
+
+    /**
+     * Called before sending a message whose replies are waited for.
+     *
+     * <p>
+     * Until the matching {@link #endSend()}, replies that nobody is waiting for
+     * are kept in memory, so that a reply that arrives before its {@link Receiver}
+     * registers itself isn't lost. The caller needs to register the {@link Receiver}
+     * before calling {@link #endSend()}.
+     */
+    /*package*/ void beginSend() {
+        sending.incrementAndGet();
+    }
+
+    /**
+     * Called after the {@link Receiver} of the messages sent is registered.
+     *
+     * @see #beginSend()
+     */
+    /*package*/ void endSend() {
+        if(sending.decrementAndGet()>0)
+            return;
+
+        // the replies no sender turned out to wait for
+        List<Map.Entry<Key,List<Msg>>> unmatched;
+        synchronized(earlyReplies) {
+            if(sending.get()>0)
+                return; // the next endSend() takes care of them
+            unmatched = new ArrayList<Map.Entry<Key,List<Msg>>>(earlyReplies.entrySet());
+            earlyReplies.clear();
+        }
+        for (Map.Entry<Key,List<Msg>> e : unmatched) {
+            for (Msg msg : e.getValue())
+                dispatch(e.getKey(),msg);
+        }
+    }
+
+    /**
+     * Keeps a reply while messages are being sent.
+     *
+     * @return
+     *      false if no message is being sent.
+     */
+    private boolean holdEarlyReply(Key key, Msg msg) {
+        synchronized(earlyReplies) {
+            if(sending.get()==0)
+                return false;
+            List<Msg> msgs = earlyReplies.get(key);
+            if(msgs==null)
+                earlyReplies.put(key,msgs=new ArrayList<Msg>(1));
+            msgs.add(msg);
+        }
+        // the receiver may have registered while we are holding it
+        if(queue.containsKey(key))
+            deliverEarlyReplies(key);
+        return true;
+    }
+
+    /**
+     * Delivers the replies of the given key that arrived before the registration.
+     */
+    private void deliverEarlyReplies(Key key) {
+        List<Msg> msgs;
+        synchronized(earlyReplies) {
+            if(earlyReplies.isEmpty())
+                return;
+            msgs = earlyReplies.remove(key);
+        }
+        if(msgs!=null) {
+            for (Msg msg : msgs)
+                dispatch(key,msg);
+        }
+    }
+
+    /**
+     * @return
+     *      false if the {@link Receiver} wasn't registered to the key.
+     */
+    /*package*/ boolean unregister(Key key, Receiver<Key,Msg> mr) {
+        return queue.remove(key,mr);
     }
 
-    /*paclage*/ void unregister(Receiver<Key,Msg> mr) {
-        queue.remove(mr.getKey());
+    /*package*/ void unregister(Collection<Key> keys, Receiver<Key,Msg> mr) {
+        for (Key key : keys)
+            queue.remove(key,mr);
     }
 
     /**
@@ -95,25 +316,219 @@ public abstract class MultiplexedEndPoint<Key,Msg> extends EndPointImpl {
      */
     protected abstract Key send(Msg msg);
 
+    /**
+     * Sends out-going messages in one batch, and returns keys that will
+     * identify replies, in the same order as the messages.
+     *
+     * <p>
+     * This implementation just sends them one by one. Endpoints that
+     * can send multiple messages more cheaply than that should override
+     * this method.
+     */
+    protected List<Key> send(Collection<? extends Msg> msgs) {
+        List<Key> keys = new ArrayList<Key>(msgs.size());
+        for (Msg msg : msgs)
+            keys.add(send(msg));
+        return keys;
+    }
+
     /**
      * Dispatches a newly received message to the right receiver.
      *
      * This method needs to be invoked when a new message is received.
      */
     protected void handleMessage(Msg msg) {
+        Stats stats = getStats();
+        stats.received.mark();
+
         Key key = getKey(msg);
         if(key==null) {
+            stats.unkeyed.mark();
             onNewMessage(msg);
             return;
         }
 
-        Receiver<Key, Msg> receiver = queue.get(key);
-        if(receiver==null) {
-            // TODO: or shall it be exception?
+        if(queue.get(key)==null && holdEarlyReply(key,msg))
+            return;
+        dispatch(key,msg);
+    }
+
+    /**
+     * Delivers a keyed message to the {@link Receiver} waiting for it, if any.
+     */
+    private void dispatch(Key key, Msg msg) {
+        Stats stats = getStats();
+        if(deliver(key,msg)) {
+            stats.correlated.mark();
+        } else {
+            stats.unmatched.mark();
+            park(key,msg);
+        }
+    }
+
+    /**
+     * Hands a keyed message to the {@link Receiver} registered for it.
+     *
+     * @return
+     *      false if no {@link Receiver} took it.
+     */
+    private boolean deliver(Key key, Msg msg) {
+        while(true) {
+            Receiver<Key,Msg> receiver = queue.get(key);
+            if(receiver==null)
+                return false;
+            if(receiver.handleMessage(msg))
+                return true;
+            // another thread gave it what it was waiting for. try the next one, if any
+            queue.remove(key,receiver);
+        }
+    }
+
+    /**
+     * Checks if a message of the given key would be used, either by
+     * a conversation waiting for it or by being kept for later.
+     *
+     * <p>
+     * Endpoints can use this to avoid retrieving the whole message
+     * when nobody needs it.
+     */
+    protected boolean accepts(Key key) {
+        return queue.containsKey(key) || sending.get()>0 || (maxDeadLetters>0 && getEngine()!=null);
+    }
+
+    /**
+     * Keeps a message that no conversation is waiting for,
+     * until a conversation registers for its key.
+     */
+    private void park(Key key, Msg msg) {
+        DeadLetterStore<Key,Msg> store = getDeadLetters();
+        if(store==null || maxDeadLetters<=0) {
             logger.warning("No conversation is waiting for the message key="+key);
             return;
         }
-        receiver.handleMessage(msg);
+
+        Stats stats = getStats();
+        stats.expired.mark(store.expire());
+        try {
+            stats.expired.mark(store.park(key,msg,deadLetterTimeToLive,maxDeadLetters));
+        } catch (IOException e) {
+            logger.log(Level.WARNING,"No conversation is waiting for the message key="+key+", and failed to keep it",e);
+            return;
+        }
+        logger.fine("No conversation is waiting for the message key="+key+". Keeping it for later");
+
+        // a conversation may have registered while we are parking
+        if(queue.containsKey(key))
+            replay(key);
+    }
+
+    /**
+     * Delivers the parked messages of the given key to the registered {@link Receiver}.
+     *
+     * <p>
+     * This is called while a {@link Receiver} registers itself, which happens
+     * while a conversation is being parked or restored, so the messages are
+     * delivered later from another thread.
+     */
+    private void replay(final Key key) {
+        DeadLetterStore<Key,Msg> store = getDeadLetters();
+        if(store==null || store.size()==0)
+            return;
+
+        getReplayer().execute(new Runnable() {
+            public void run() {
+                try {
+                    doReplay(key);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING,"Failed to deliver the parked messages for key="+key,e);
+                }
+            }
+        });
+    }
+
+    private void doReplay(Key key) {
+        DeadLetterStore<Key,Msg> store = getDeadLetters();
+        Stats stats = getStats();
+        stats.expired.mark(store.expire());
+        List<Msg> msgs = store.take(key);
+        for( int i=0; i<msgs.size(); i++ ) {
+            if(!deliver(key,msgs.get(i))) {
+                // the receiver took what it wanted. keep the rest
+                for (Msg msg : msgs.subList(i,msgs.size()))
+                    park(key,msg);
+                return;
+            }
+            stats.replayed.mark();
+        }
+    }
+
+    /**
+     * Gets the executor that runs {@link #doReplay(Object)}.
+     * Its thread goes away when it's idle, so it doesn't need to be shut down.
+     */
+    private ThreadPoolExecutor getReplayer() {
+        ThreadPoolExecutor r = replayer;
+        if(r==null) {
+            synchronized(this) {
+                r = replayer;
+                if(r==null) {
+                    r = new ThreadPoolExecutor(1,1,10,TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            public Thread newThread(Runnable job) {
+                                Thread t = new Thread(job,"Dead letter replayer for "+getName());
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+                    r.allowCoreThreadTimeOut(true);
+                    replayer = r;
+                }
+            }
+        }
+        return r;
+    }
+
+    private DeadLetterStore<Key,Msg> getDeadLetters() {
+        DeadLetterStore<Key,Msg> s = deadLetters;
+        if(s==null && getEngine()!=null) {
+            synchronized(this) {
+                s = deadLetters;
+                if(s==null) {
+                    final DeadLetterStore<Key,Msg> store = new DeadLetterStore<Key,Msg>(this,getDataFile("deadLetters"));
+                    getMetrics().gauge("endpoint."+getName()+".deadLetters",new Gauge() {
+                        public long getValue() {
+                            return store.size();
+                        }
+                    });
+                    deadLetters = s = store;
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Gets a file in the data directory of this endpoint.
+     */
+    /*package*/ File getDataFile(String name) {
+        return new File(getDataDir(),name);
+    }
+
+    /*package*/ byte[] toBytes(Object o) throws IOException {
+        return serialize(o);
+    }
+
+    /*package*/ Object fromBytes(byte[] data) throws IOException, ClassNotFoundException {
+        return deserialize(data);
+    }
+
+    private Stats getStats() {
+        Stats s = stats;
+        if(s==null)
+            // racy, but harmless since the registry returns the same meters
+            stats = s = new Stats(getMetrics(),"endpoint."+getName()+'.');
+        return s;
     }
 
     /**
@@ -141,35 +556,36 @@ public abstract class MultiplexedEndPoint<Key,Msg> extends EndPointImpl {
             return endPoint;
         }
 
-        public Key getKey() {
-            return key;
-        }
-
-        public void handleMessage(Msg msg) {
-            getEndPoint().unregister(this);
+        public boolean handleMessage(Msg msg) {
+            // a live reply and a replayed one may arrive at the same time. only one of them wins
+            if(!getEndPoint().unregister(key,this))
+                return false;
             activate(msg);
+            return true;
         }
 
         public void onParked() {
             MultiplexedEndPoint<Key,Msg> endPoint = getEndPoint();
+            endPoint.beginSend();
             try {
                 key = endPoint.send(outgoing);
                 assert key!=null;
-                endPoint.register(this);
+                endPoint.register(key,this);
             } finally {
                 outgoing = null;
+                endPoint.endSend();
             }
         }
 
         public void interrupt() {
             if(key!=null)
-                getEndPoint().unregister(this);
+                getEndPoint().unregister(key,this);
         }
 
         public void onLoad() {
             // key==null if the condition is created but left unused
             if(key!=null)
-                getEndPoint().register(this);
+                getEndPoint().register(key,this);
         }
     }
 }
@@ -1,9 +1,16 @@
 package dalma.spi.port;
 
 /**
+ * Receives the replies correlated by {@link MultiplexedEndPoint}.
+ *
  * @author Kohsuke Kawaguchi
  */
 interface Receiver<Key,Msg> {
-    Key getKey();
-    void handleMessage(Msg msg);
+    /**
+     * @return
+     *      false if the receiver stopped waiting for the key before the message arrived,
+     *      such as when another thread gave it a reply first. The message then goes to
+     *      the next {@link Receiver} of the key, or kept for later.
+     */
+    boolean handleMessage(Msg msg);
 }
@@ -0,0 +1,258 @@
+package dalma.spi.port;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * FIFO queue of the replies received by {@link ReplyIteratorImpl}.
+ *
+ * <p>
+ * Replies are appended to a file as they arrive, and read back
+ * a few at a time when the conversation consumes them. So the only state
+ * persisted with the conversation is the position of the next reply
+ * in the file, no matter how many replies are waiting.
+ *
+ * <p>
+ * Once all the replies are consumed, the following replies go to a new file,
+ * so that the file doesn't grow forever. The old file is deleted after
+ * the conversation is saved, as the conversation restored from the earlier
+ * state would read the replies in it again.
+ *
+ * <p>
+ * This class is not thread-safe. The owner is expected to synchronize.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class ReplyBuffer<Msg> {
+    /**
+     * Identifies the files of this buffer.
+     */
+    private final String id = UUID.randomUUID().toString();
+
+    /**
+     * Incremented every time a new file is started.
+     */
+    private int generation;
+
+    /**
+     * Position in the file of the reply that will be returned next.
+     */
+    private long readOffset;
+
+    private transient File dir;
+
+    private transient MultiplexedEndPoint<?,Msg> endPoint;
+
+    private transient File file;
+
+    /**
+     * End of the file.
+     */
+    private transient long writeOffset;
+
+    /**
+     * Replies read ahead from the file, starting at {@link #readOffset}.
+     */
+    private transient LinkedList<Entry<Msg>> window;
+
+    /**
+     * Position in the file where {@link #window} ends.
+     */
+    private transient long windowEnd;
+
+    /**
+     * Files of the earlier generations, to be deleted once the conversation is saved.
+     * Guarded by itself, as {@link #purge()} is called without the lock of the owner.
+     */
+    private transient List<File> obsolete;
+
+    private static final class Entry<Msg> {
+        final Msg msg;
+        /**
+         * Size of this reply in the file.
+         */
+        final int length;
+
+        Entry(Msg msg, int length) {
+            this.msg = msg;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Opens the file. Needs to be called before any other method,
+     * both when this buffer is created and when it's restored.
+     */
+    void open(MultiplexedEndPoint<?,Msg> endPoint) throws IOException {
+        this.endPoint = endPoint;
+        dir = endPoint.getDataFile("replies");
+        dir.mkdirs();
+        obsolete = new ArrayList<File>();
+        file = getFile(generation);
+
+        // files of the other generations are left if the VM died before the conversation was saved.
+        // the newer ones only have replies received after that, which are lost just like
+        // those in memory, and need to go before we start the next generation.
+        for( int i=generation+1; getFile(i).exists(); i++ )
+            delete(getFile(i));
+        for( int i=generation-1; i>=0 && getFile(i).exists(); i-- )
+            delete(getFile(i));
+        writeOffset = scan();
+        window = new LinkedList<Entry<Msg>>();
+        windowEnd = readOffset;
+    }
+
+    private File getFile(int generation) {
+        return new File(dir,id+'-'+generation+".log");
+    }
+
+    /**
+     * Finds the end of the last complete reply in the file,
+     * in case the VM died while writing one.
+     */
+    private long scan() throws IOException {
+        if(!file.exists())
+            return readOffset;
+
+        RandomAccessFile raf = new RandomAccessFile(file,"r");
+        try {
+            long len = raf.length();
+            long pos = readOffset;
+            while(pos+4<=len) {
+                raf.seek(pos);
+                long next = pos+4+raf.readInt();
+                if(next>len)
+                    break;
+                pos = next;
+            }
+            if(pos<len) {
+                logger.warning("Ignoring the incomplete reply at the end of "+file);
+                raf.close();
+                raf = new RandomAccessFile(file,"rw");
+                raf.setLength(pos);
+            }
+            return pos;
+        } finally {
+            raf.close();
+        }
+    }
+
+    boolean isEmpty() {
+        return readOffset==writeOffset;
+    }
+
+    void add(Msg msg) throws IOException {
+        byte[] data = endPoint.toBytes(msg);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file,true));
+        try {
+            out.writeInt(data.length);
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        int length = 4+data.length;
+        if(windowEnd==writeOffset && window.size()<WINDOW_SIZE) {
+            // no need to read this back from the disk
+            window.add(new Entry<Msg>(msg,length));
+            windowEnd += length;
+        }
+        writeOffset += length;
+    }
+
+    /**
+     * Removes the next reply.
+     *
+     * @return
+     *      null if the buffer is empty.
+     */
+    Msg poll() throws IOException {
+        if(isEmpty())
+            return null;
+        if(window.isEmpty())
+            fill();
+        Entry<Msg> e = window.removeFirst();
+        readOffset += e.length;
+        if(isEmpty())
+            rotate();
+        return e.msg;
+    }
+
+    /**
+     * Starts a new file, as all the replies in the current one are consumed.
+     */
+    private void rotate() {
+        synchronized(obsolete) {
+            obsolete.add(file);
+        }
+        file = getFile(++generation);
+        readOffset = writeOffset = windowEnd = 0;
+    }
+
+    /**
+     * Deletes the files that the saved state of the conversation no longer refers to.
+     * Called after the conversation is saved.
+     */
+    void purge() {
+        List<File> files;
+        synchronized(obsolete) {
+            if(obsolete.isEmpty())
+                return;
+            files = new ArrayList<File>(obsolete);
+            obsolete.clear();
+        }
+        for (File f : files)
+            delete(f);
+    }
+
+    private void fill() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file,"r");
+        try {
+            raf.seek(windowEnd);
+            while(windowEnd<writeOffset && window.size()<WINDOW_SIZE) {
+                byte[] data = new byte[raf.readInt()];
+                raf.readFully(data);
+                try {
+                    window.add(new Entry<Msg>((Msg)endPoint.fromBytes(data),4+data.length));
+                } catch (ClassNotFoundException e) {
+                    IOException x = new IOException("Failed to restore a reply in "+file);
+                    x.initCause(e);
+                    throw x;
+                }
+                windowEnd += 4+data.length;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Discards all the replies.
+     */
+    void delete() {
+        if(file!=null) {
+            purge();
+            delete(file);
+        }
+    }
+
+    private static void delete(File f) {
+        if(!f.delete() && f.exists())
+            logger.warning("Unable to delete "+f);
+    }
+
+    /**
+     * Number of replies kept in memory.
+     */
+    private static final int WINDOW_SIZE = 16;
+
+    private static final Logger logger = Logger.getLogger(ReplyBuffer.class.getName());
+}
@@ -1,16 +1,18 @@
 package dalma.spi.port;
 
 import dalma.Condition;
+import dalma.DalmaException;
 import dalma.ReplyIterator;
 import dalma.endpoints.timer.TimerEndPoint;
 import dalma.impl.GeneratorImpl;
 import dalma.spi.ConversationSPI;
 import dalma.spi.FiberSPI;
 
+import java.io.IOException;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.logging.Level;
 
 /**
  * {@link ReplyIterator} implementation for {@link MultiplexedEndPoint}.
@@ -24,10 +26,21 @@ final class ReplyIteratorImpl<Key,Msg> extends GeneratorImpl implements ReplyIte
      */
     private final MultiplexedEndPoint<Key,Msg> endPoint;
 
-    private final List<Msg> replies = new LinkedList<Msg>();
+    /**
+     * Replies received but not yet returned from {@link #next()}.
+     * Created in {@link #onLoad()}, as the conversations saved by
+     * the earlier versions don't have one.
+     */
+    private ReplyBuffer<Msg> buffer;
 
     /**
-     * If the {@link #replies} become empty, the conversation
+     * Replies kept in the conversation by the earlier versions.
+     * Moved to {@link #buffer} when restored, and null thereafter.
+     */
+    private List<Msg> replies;
+
+    /**
+     * If the {@link #buffer} becomes empty, the conversation
      * will wait until a new one arrives by using this lock.
      */
     private transient ConditionImpl lock;
@@ -42,18 +55,43 @@ final class ReplyIteratorImpl<Key,Msg> extends GeneratorImpl implements ReplyIte
     ReplyIteratorImpl(MultiplexedEndPoint<Key,Msg> endPoint, Msg outgoing, Date expirationDate) {
         this.endPoint = endPoint;
         this.expirationDate = expirationDate;
-        synchronized(endPoint.queue) {
+        // a reply that arrives before we register ourselves is
+        // kept by the endpoint, and delivered when we register
+        endPoint.beginSend();
+        try {
             this.key = endPoint.send(outgoing);
             ConversationSPI.currentConversation().addGenerator(this);
+        } finally {
+            endPoint.endSend();
         }
     }
 
-    protected void onLoad() {
-        endPoint.register(this);
+    protected synchronized void onLoad() {
+        try {
+            if(buffer==null)
+                buffer = new ReplyBuffer<Msg>();
+            buffer.open(endPoint);
+            if(replies!=null) {
+                for (Msg msg : replies)
+                    buffer.add(msg);
+                replies = null;
+            }
+        } catch (IOException e) {
+            throw new DalmaException("Failed to restore the replies for key="+key,e);
+        }
+        endPoint.register(key,this);
     }
 
     public void dispose() {
-        endPoint.unregister(this);
+        endPoint.unregister(key,this);
+        synchronized(this) {
+            buffer.delete();
+        }
+    }
+
+    protected void onSaved() {
+        // called while the conversation is locked, so don't lock this object
+        buffer.purge();
     }
 
     public Key getKey() {
@@ -65,14 +103,19 @@ final class ReplyIteratorImpl<Key,Msg> extends GeneratorImpl implements ReplyIte
     }
 
     public synchronized Msg next() {
-        if(replies.isEmpty())
+        Msg msg;
+        try {
+            msg = buffer.poll();
+        } catch (IOException e) {
+            throw new DalmaException("Failed to read a reply for key="+key,e);
+        }
+        if(msg==null)
             throw new NoSuchElementException();
-
-        return replies.remove(0);
+        return msg;
     }
 
     public synchronized boolean hasNext() {
-        if(replies.isEmpty()) {
+        if(buffer.isEmpty()) {
             // no replies in the queue
             if(!isExpired()) {
                 // block until we receive another one
@@ -84,7 +127,7 @@ final class ReplyIteratorImpl<Key,Msg> extends GeneratorImpl implements ReplyIte
                         lock, TimerEndPoint.createDock(expirationDate));
             }
         }
-        return !replies.isEmpty();
+        return !buffer.isEmpty();
     }
 
     private boolean isExpired() {
@@ -95,14 +138,20 @@ final class ReplyIteratorImpl<Key,Msg> extends GeneratorImpl implements ReplyIte
         throw new UnsupportedOperationException();
     }
 
-    public synchronized void handleMessage(Msg msg) {
+    public synchronized boolean handleMessage(Msg msg) {
         if(isExpired())
-            return; // we are no longer collecting replies. discard.
-        replies.add(msg);
+            return true; // we are no longer collecting replies. discard.
+        try {
+            buffer.add(msg);
+        } catch (IOException e) {
+            endPoint.logger.log(Level.WARNING,"Failed to store a reply for key="+key,e);
+            return true;
+        }
         if(lock!=null) {
             lock.activate(null);
             lock = null;
         }
+        return true;
     }
 
     /**
@@ -114,7 +163,7 @@ final class ReplyIteratorImpl<Key,Msg> extends GeneratorImpl implements ReplyIte
 
         public void onParked() {
             synchronized(ReplyIteratorImpl.this) {
-                if(!replies.isEmpty()) {
+                if(!buffer.isEmpty()) {
                     activate(null);
                     return;
                 }
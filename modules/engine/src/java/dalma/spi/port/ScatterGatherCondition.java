@@ -0,0 +1,160 @@
+package dalma.spi.port;
+
+import dalma.Condition;
+import dalma.endpoints.timer.TimerEndPoint;
+import dalma.spi.ConditionListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link Condition} that sends out messages and waits for replies
+ * to a quorum of them.
+ *
+ * <p>
+ * One object is registered to {@link MultiplexedEndPoint} for all the keys,
+ * and the timeout is handled by a timer parked on this object, so
+ * a scatter-gather is persisted as one {@link Condition} regardless of
+ * the number of messages.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see MultiplexedEndPoint#scatterGather(Collection, int, Date)
+ */
+final class ScatterGatherCondition<Key,Msg> extends Condition<List<Msg>> implements Receiver<Key,Msg>, ConditionListener {
+
+    private final MultiplexedEndPoint<Key,Msg> endPoint;
+
+    /**
+     * The out-going messages to be sent.
+     *
+     * The field is transient because we'll send them before
+     * the condition is serialized, and thereafter never be used.
+     */
+    private transient Collection<? extends Msg> outgoing;
+
+    /**
+     * Keys of the messages that haven't been replied yet.
+     * Null until the messages are sent.
+     */
+    private Set<Key> waiting;
+
+    private final List<Msg> replies = new ArrayList<Msg>();
+
+    private final int quorum;
+
+    /**
+     * Fires when the timeout expires. Null if there's no timeout.
+     */
+    private final Condition<Object> timer;
+
+    /**
+     * True once this condition is decided to be activated.
+     */
+    private boolean done;
+
+    ScatterGatherCondition(MultiplexedEndPoint<Key,Msg> endPoint, Collection<? extends Msg> outgoing, int quorum, Date timeout) {
+        this.endPoint = endPoint;
+        this.outgoing = outgoing;
+        this.quorum = quorum;
+        this.timer = timeout==null ? null : TimerEndPoint.createDock(timeout);
+    }
+
+    public void onParked() {
+        endPoint.beginSend();
+        try {
+            List<Key> keys;
+            try {
+                keys = endPoint.send(outgoing);
+            } finally {
+                outgoing = null;
+            }
+            synchronized(this) {
+                waiting = new LinkedHashSet<Key>(keys);
+            }
+            endPoint.register(keys,this);
+        } finally {
+            endPoint.endSend();
+        }
+        if(timer!=null && !isDone())
+            timer.park(this);
+    }
+
+    private synchronized boolean isDone() {
+        return done;
+    }
+
+    public boolean handleMessage(Msg msg) {
+        Key key = endPoint.getKey(msg);
+        boolean reached;
+        synchronized(this) {
+            if(done || !waiting.remove(key))
+                return true; // not the first reply to this message. discard
+            replies.add(msg);
+            done = reached = replies.size()>=quorum;
+        }
+        endPoint.unregister(key,this);
+        if(reached)
+            finish();
+        return true;
+    }
+
+    /**
+     * Invoked when the timer fires.
+     */
+    public void onActivated(Condition cond) {
+        synchronized(this) {
+            if(done)
+                return;
+            done = true;
+        }
+        finish();
+    }
+
+    private void finish() {
+        List<Msg> r;
+        synchronized(this) {
+            r = new ArrayList<Msg>(replies);
+        }
+        stopWaiting();
+        activate(r);
+    }
+
+    private void stopWaiting() {
+        List<Key> keys;
+        synchronized(this) {
+            keys = new ArrayList<Key>(waiting);
+            waiting.clear();
+        }
+        endPoint.unregister(keys,this);
+        if(timer!=null && !timer.isActive())
+            timer.interrupt();
+    }
+
+    public void interrupt() {
+        synchronized(this) {
+            if(waiting==null)
+                return; // never parked
+            done = true;
+        }
+        stopWaiting();
+    }
+
+    public void onLoad() {
+        List<Key> keys;
+        synchronized(this) {
+            // waiting==null if the condition is created but left unused
+            if(waiting==null || done)
+                return;
+            keys = new ArrayList<Key>(waiting);
+        }
+        endPoint.register(keys,this);
+        if(timer!=null && !isDone())
+            timer.onLoad();
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,207 @@
+package dalma.spi.port;
+
+import dalma.Condition;
+import dalma.endpoints.timer.TimerEndPoint;
+import dalma.impl.GeneratorImpl;
+import dalma.spi.ConditionListener;
+import dalma.spi.ConversationSPI;
+import dalma.spi.FiberSPI;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Waits for many {@link Condition}s repeatedly, and returns them
+ * one by one in the order they become active.
+ *
+ * <p>
+ * Suspending on many {@link Condition}s through
+ * {@link FiberSPI#suspend(Condition[])} parks all of them, then interrupts
+ * all but one when the first one becomes active. So waiting for N replies
+ * one at a time that way costs O(N<sup>2</sup>). A {@link Selector} keeps
+ * the {@link Condition}s parked across {@link #select()}s instead,
+ * so adding, removing, and selecting a {@link Condition} are all O(1).
+ *
+ * <pre>
+ * Selector&lt;Msg> sel = new Selector&lt;Msg>();
+ * for( ... )
+ *   sel.add(createCondition(...));
+ * Condition&lt;? extends Msg> c;
+ * while((c=sel.select())!=null) {
+ *   Msg reply = c.getReturnValue();
+ *   ...
+ * }
+ * </pre>
+ *
+ * <p>
+ * A {@link Selector} belongs to the conversation that created it,
+ * and it can be only used from that conversation.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class Selector<T> extends GeneratorImpl implements ConditionListener {
+
+    /**
+     * {@link Condition}s that are parked on this selector but not active yet.
+     */
+    private final Set<Condition<? extends T>> pending = new HashSet<Condition<? extends T>>();
+
+    /**
+     * {@link Condition}s that became active but not yet returned from {@link #select()}.
+     */
+    private final LinkedList<Condition<? extends T>> ready = new LinkedList<Condition<? extends T>>();
+
+    /**
+     * The conversation waiting in {@link #select()} waits on this {@link Condition}.
+     */
+    private transient ReadyCondition waiter;
+
+    public Selector() {
+        ConversationSPI.currentConversation().addGenerator(this);
+    }
+
+    /**
+     * Starts waiting for the given {@link Condition}.
+     */
+    public void add(Condition<? extends T> c) {
+        synchronized(this) {
+            pending.add(c);
+        }
+        // may activate synchronously, so do this outside the lock
+        c.park(this);
+    }
+
+    /**
+     * Stops waiting for the given {@link Condition}.
+     *
+     * @return
+     *      false if the condition is not in this selector.
+     */
+    public boolean remove(Condition<? extends T> c) {
+        synchronized(this) {
+            if(!pending.remove(c))
+                return ready.remove(c);
+        }
+        c.interrupt();
+        return true;
+    }
+
+    /**
+     * Gets the number of {@link Condition}s that are waited on or not yet selected.
+     */
+    public synchronized int size() {
+        return pending.size()+ready.size();
+    }
+
+    /**
+     * Waits until one of the {@link Condition}s becomes active, and returns it.
+     *
+     * @return
+     *      null if there's no {@link Condition} left to wait for.
+     */
+    public Condition<? extends T> select() {
+        return select(null);
+    }
+
+    /**
+     * Waits until one of the {@link Condition}s becomes active, and returns it.
+     *
+     * @param timeout
+     *      if non-null, gives up waiting at this time.
+     * @return
+     *      null if the timeout expires, or if there's no {@link Condition}
+     *      left to wait for.
+     */
+    public Condition<? extends T> select(Date timeout) {
+        while(true) {
+            synchronized(this) {
+                if(!ready.isEmpty())
+                    return ready.removeFirst();
+                if(pending.isEmpty())
+                    return null;
+            }
+            if(timeout!=null && !timeout.after(new Date()))
+                return null;
+
+            ReadyCondition rc = new ReadyCondition();
+            if(timeout==null)
+                FiberSPI.currentFiber(true).suspend(rc);
+            else
+                FiberSPI.currentFiber(true).suspend(rc,TimerEndPoint.<Void>createDock(timeout));
+        }
+    }
+
+    /**
+     * Stops waiting for all the {@link Condition}s.
+     */
+    public void close() {
+        dispose();
+    }
+
+    public void onActivated(Condition cond) {
+        ReadyCondition w;
+        synchronized(this) {
+            if(!pending.remove(cond))
+                return; // already removed
+            ready.add((Condition<? extends T>)cond);
+            w = waiter;
+            waiter = null;
+        }
+        if(w!=null)
+            w.activate(null);
+    }
+
+    protected void onLoad() {
+        List<Condition<? extends T>> l;
+        synchronized(this) {
+            l = new ArrayList<Condition<? extends T>>(pending);
+        }
+        for (Condition<? extends T> c : l)
+            c.onLoad();
+    }
+
+    protected void dispose() {
+        List<Condition<? extends T>> l;
+        synchronized(this) {
+            l = new ArrayList<Condition<? extends T>>(pending);
+            pending.clear();
+            ready.clear();
+        }
+        for (Condition<? extends T> c : l)
+            c.interrupt();
+    }
+
+    /**
+     * Activated when a {@link Condition} becomes ready.
+     */
+    private final class ReadyCondition extends Condition<Void> {
+        public void onParked() {
+            synchronized(Selector.this) {
+                if(ready.isEmpty()) {
+                    waiter = this;
+                    return;
+                }
+            }
+            activate(null);
+        }
+
+        public void interrupt() {
+            synchronized(Selector.this) {
+                if(waiter==this)
+                    waiter = null;
+            }
+        }
+
+        public void onLoad() {
+            onParked();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,118 @@
+package dalma.endpoints.invm;
+
+import dalma.impl.Util;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class ChannelJournalTest extends TestCase {
+    private File dir;
+
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("dalma","journal");
+        dir.delete();
+    }
+
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    public void testRecover() throws Exception {
+        ChannelJournal j = new ChannelJournal(dir);
+        assertTrue(j.recover().isEmpty());
+
+        long[] a = new long[5];
+        for( int i=0; i<5; i++ )
+            j.flush(a[i]=j.send("a",new byte[]{(byte)i}));
+        long b = j.send("b",new byte[]{9});
+        j.ack(a[0]);
+        j.ack(a[1]);
+        j.close();
+
+        j = new ChannelJournal(dir);
+        Map<String,Map<Long,byte[]>> r = j.recover();
+        assertEquals(3,r.get("a").size());
+        assertEquals(2,first(r.get("a"))[0]);
+        assertEquals(1,r.get("b").size());
+
+        // the recovered messages are moved to a new segment
+        assertEquals(1,dir.list().length);
+
+        j.ack(r.get("b").keySet().iterator().next());
+        j.close();
+        r = new ChannelJournal(dir).recover();
+        assertEquals(3,r.get("a").size());
+        assertNull(r.get("b"));
+        assertTrue(b>a[4]);
+    }
+
+    public void testSegmentDeletion() throws Exception {
+        ChannelJournal j = new ChannelJournal(dir);
+        j.recover();
+
+        // enough to fill up a few segments
+        byte[] data = new byte[64*1024];
+        for( int i=0; i<200; i++ ) {
+            long seq = j.send("a",data);
+            j.flush(seq);
+            j.ack(seq);
+        }
+        j.flush(j.send("a",data));
+        assertTrue(dir.list().length<=2);
+
+        j.close();
+        Map<String,Map<Long,byte[]>> r = new ChannelJournal(dir).recover();
+        assertEquals(1,r.get("a").size());
+    }
+
+    /**
+     * A receipt in a later segment must not remove other messages on recovery.
+     */
+    public void testAckAfterRollover() throws Exception {
+        ChannelJournal j = new ChannelJournal(dir);
+        j.recover();
+
+        long big = j.send("a",new byte[5*1024*1024]);
+        j.flush(big);   // starts a new segment
+        j.flush(j.send("a",new byte[]{2}));
+        j.ack(big);
+        j.close();
+
+        Map<String,Map<Long,byte[]>> r = new ChannelJournal(dir).recover();
+        assertEquals(1,r.get("a").size());
+        assertEquals(2,first(r.get("a"))[0]);
+
+        // and the same after the recovered message is moved again
+        r = new ChannelJournal(dir).recover();
+        assertEquals(1,r.get("a").size());
+    }
+
+    /**
+     * Messages recovered twice keep their sequence numbers distinct from new ones.
+     */
+    public void testRecoverTwice() throws Exception {
+        ChannelJournal j = new ChannelJournal(dir);
+        j.recover();
+        j.send("a",new byte[]{1});
+        j.close();
+
+        j = new ChannelJournal(dir);
+        long old = j.recover().get("a").keySet().iterator().next();
+        long seq = j.send("a",new byte[]{2});
+        assertTrue(seq>old);
+        j.ack(old);
+        j.close();
+
+        Map<String,Map<Long,byte[]>> r = new ChannelJournal(dir).recover();
+        assertEquals(1,r.get("a").size());
+        assertEquals(2,first(r.get("a"))[0]);
+    }
+
+    private static byte[] first(Map<Long,byte[]> msgs) {
+        return msgs.values().iterator().next();
+    }
+}
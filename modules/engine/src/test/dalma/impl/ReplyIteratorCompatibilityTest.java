@@ -0,0 +1,109 @@
+package dalma.impl;
+
+import com.thoughtworks.xstream.XStream;
+import dalma.ReplyIterator;
+import dalma.helpers.ThreadPoolExecutor;
+import dalma.spi.port.MultiplexedEndPoint;
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * Makes sure that the reply iterators saved by the earlier versions,
+ * which kept the replies in the conversation, are restored.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class ReplyIteratorCompatibilityTest extends TestCase {
+    /**
+     * Replies are "key:value".
+     */
+    private static final class EndPoint extends MultiplexedEndPoint<String,String> {
+        EndPoint() {
+            super("test");
+        }
+
+        protected String getKey(String msg) {
+            return msg.substring(0,msg.indexOf(':'));
+        }
+
+        protected void onNewMessage(String msg) {
+            fail();
+        }
+
+        protected String send(String msg) {
+            return msg;
+        }
+
+        protected void start() {
+        }
+
+        protected void stop() {
+        }
+
+        void receive(String msg) {
+            handleMessage(msg);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private File dir;
+    private EngineImpl engine;
+    private EndPoint endPoint;
+
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("dalma","replies");
+        dir.delete();
+        engine = new EngineImpl(dir,getClass().getClassLoader(),new ThreadPoolExecutor(1,true));
+        endPoint = new EndPoint();
+        engine.addEndPoint(endPoint);
+    }
+
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    public void testOldForm() throws Exception {
+        GeneratorImpl g = load(
+            "<dalma.spi.port.ReplyIteratorImpl>" +
+              "<endPoint class='dalma.impl.EndPointImpl-Moniker'><name>test</name></endPoint>" +
+              "<replies class='linked-list'><string>a:1</string><string>a:2</string></replies>" +
+              "<key class='string'>a</key>" +
+            "</dalma.spi.port.ReplyIteratorImpl>");
+        g.onLoad();
+        ReplyIterator<String> itr = (ReplyIterator<String>)g;
+
+        // the replies kept in the conversation come first
+        endPoint.receive("a:3");
+        assertTrue(itr.hasNext());
+        assertEquals("a:1",itr.next());
+        assertEquals("a:2",itr.next());
+        assertEquals("a:3",itr.next());
+        assertTrue(replyFiles().length<=1);
+
+        // once consumed, a new file is started, and the old one goes after the save
+        endPoint.receive("a:4");
+        assertEquals(2,replyFiles().length);
+        g.onSaved();
+        assertEquals(1,replyFiles().length);
+        assertEquals("a:4",itr.next());
+
+        g.dispose();
+        assertEquals(0,replyFiles().length);
+    }
+
+    private GeneratorImpl load(String xml) {
+        SerializationContext.set(engine,SerializationContext.Mode.CONVERSATION);
+        try {
+            return (GeneratorImpl)new XStream().fromXML(xml);
+        } finally {
+            SerializationContext.remove();
+        }
+    }
+
+    private String[] replyFiles() {
+        String[] files = new File(engine.getEndPointDir("test"),"replies").list();
+        return files==null ? new String[0] : files;
+    }
+}
@@ -0,0 +1,194 @@
+package dalma.spi.port;
+
+import dalma.helpers.ThreadPoolExecutor;
+import dalma.impl.EngineImpl;
+import dalma.impl.Util;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class DeadLetterStoreTest extends TestCase {
+    /**
+     * Replies are "key:value".
+     */
+    private static final class EndPoint extends MultiplexedEndPoint<String,String> {
+        EndPoint() {
+            super("test");
+        }
+
+        protected String getKey(String msg) {
+            return msg.substring(0,msg.indexOf(':'));
+        }
+
+        protected void onNewMessage(String msg) {
+            fail();
+        }
+
+        protected String send(String msg) {
+            return msg;
+        }
+
+        protected void start() {
+        }
+
+        protected void stop() {
+        }
+
+        // serialize without an engine
+        byte[] toBytes(Object o) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            oos.writeObject(o);
+            oos.close();
+            return baos.toByteArray();
+        }
+
+        Object fromBytes(byte[] data) throws IOException, ClassNotFoundException {
+            return new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class ReceiverImpl implements Receiver<String,String> {
+        final List<String> msgs = new ArrayList<String>();
+
+        public synchronized boolean handleMessage(String msg) {
+            msgs.add(msg);
+            notifyAll();
+            return true;
+        }
+
+        synchronized void waitFor(int n) throws InterruptedException {
+            long end = System.currentTimeMillis()+10*1000;
+            while(msgs.size()<n && System.currentTimeMillis()<end)
+                wait(100);
+        }
+    }
+
+    /**
+     * Takes just one message, like a conversation waiting for a reply.
+     */
+    private final class OneTimeReceiver extends ReceiverImpl {
+        public boolean handleMessage(String msg) {
+            if(!endPoint.unregister("a",this))
+                return false;
+            return super.handleMessage(msg);
+        }
+    }
+
+    private File dir;
+    private EndPoint endPoint;
+
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("dalma","deadletters");
+        dir.delete();
+        endPoint = new EndPoint();
+    }
+
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(dir);
+    }
+
+    private DeadLetterStore<String,String> createStore() {
+        return new DeadLetterStore<String,String>(endPoint,dir);
+    }
+
+    public void testPark() throws Exception {
+        DeadLetterStore<String,String> store = createStore();
+        assertEquals(0,store.park("a","a:1",60*1000,10));
+        store.park("b","b:1",60*1000,10);
+        store.park("a","a:2",60*1000,10);
+        assertEquals(3,store.size());
+        assertEquals(3,dir.list().length);
+
+        assertEquals(Arrays.asList("a:1","a:2"),store.take("a"));
+        assertTrue(store.take("a").isEmpty());
+        assertEquals(1,store.size());
+        assertEquals(1,dir.list().length);
+
+        // the rest survives the restart
+        store = createStore();
+        assertEquals(1,store.size());
+        assertEquals(Arrays.asList("b:1"),store.take("b"));
+        assertEquals(0,dir.list().length);
+    }
+
+    public void testExpiry() throws Exception {
+        DeadLetterStore<String,String> store = createStore();
+        store.park("a","a:1",-1,10);
+        store.park("b","b:1",60*1000,10);
+
+        assertEquals(1,store.expire());
+        assertEquals(1,store.size());
+        assertTrue(store.take("a").isEmpty());
+        assertEquals(Arrays.asList("b:1"),store.take("b"));
+        assertEquals(0,store.expire());
+    }
+
+    public void testEviction() throws Exception {
+        DeadLetterStore<String,String> store = createStore();
+        store.park("a","a:1",60*1000,2);
+        store.park("b","b:1",60*1000,2);
+        // the oldest one goes
+        assertEquals(1,store.park("a","a:2",60*1000,2));
+        assertEquals(2,store.size());
+        assertEquals(2,dir.list().length);
+        assertEquals(Arrays.asList("a:2"),store.take("a"));
+        assertEquals(Arrays.asList("b:1"),store.take("b"));
+    }
+
+    public void testReplay() throws Exception {
+        EngineImpl engine = new EngineImpl(dir,getClass().getClassLoader(),new ThreadPoolExecutor(1,true));
+        engine.addEndPoint(endPoint);
+
+        endPoint.handleMessage("a:1");
+        endPoint.handleMessage("a:2");
+        endPoint.handleMessage("b:1");
+
+        ReceiverImpl r = new ReceiverImpl();
+        endPoint.register("a",r);
+        r.waitFor(2);
+        assertEquals(Arrays.asList("a:1","a:2"),r.msgs);
+
+        // messages that arrive after the registration go directly
+        endPoint.handleMessage("a:3");
+        assertEquals(3,r.msgs.size());
+    }
+
+    /**
+     * A receiver that waits for one message gets just one,
+     * even when a new message arrives while the parked ones are replayed.
+     */
+    public void testReplayRace() throws Exception {
+        EngineImpl engine = new EngineImpl(dir,getClass().getClassLoader(),new ThreadPoolExecutor(1,true));
+        engine.addEndPoint(endPoint);
+
+        endPoint.handleMessage("a:1");
+        endPoint.handleMessage("a:2");
+
+        ReceiverImpl r = new OneTimeReceiver();
+        endPoint.register("a",r);
+        endPoint.handleMessage("a:3");
+        r.waitFor(1);
+
+        // the rest are parked again
+        File parked = endPoint.getDataFile("deadLetters");
+        long end = System.currentTimeMillis()+10*1000;
+        while(parked.list().length<2 && System.currentTimeMillis()<end)
+            Thread.sleep(100);
+        assertEquals(2,parked.list().length);
+        assertEquals(1,r.msgs.size());
+    }
+}
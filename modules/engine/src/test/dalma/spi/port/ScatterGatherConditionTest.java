@@ -0,0 +1,181 @@
+package dalma.spi.port;
+
+import dalma.Condition;
+import dalma.spi.ConditionListener;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class ScatterGatherConditionTest extends TestCase {
+    /**
+     * Replies are "key:value", and the key is the message sent.
+     */
+    private static final class EndPoint extends MultiplexedEndPoint<String,String> {
+        int batches;
+        /**
+         * If true, the reply to each message arrives before {@link #send(String)} returns.
+         */
+        boolean replyOnSend;
+
+        EndPoint() {
+            super("test");
+        }
+
+        protected String getKey(String msg) {
+            int idx = msg.indexOf(':');
+            return idx<0 ? null : msg.substring(0,idx);
+        }
+
+        protected void onNewMessage(String msg) {
+            fail();
+        }
+
+        protected String send(String msg) {
+            if(replyOnSend)
+                handleMessage(msg+":early");
+            return msg;
+        }
+
+        protected List<String> send(Collection<? extends String> msgs) {
+            batches++;
+            return super.send(msgs);
+        }
+
+        protected void start() {
+        }
+
+        protected void stop() {
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Listener implements ConditionListener {
+        int count;
+        public void onActivated(Condition cond) {
+            count++;
+        }
+    }
+
+    private EndPoint endPoint;
+    private Listener listener;
+
+    protected void setUp() throws Exception {
+        endPoint = new EndPoint();
+        listener = new Listener();
+    }
+
+    private ScatterGatherCondition<String,String> park(int quorum) {
+        ScatterGatherCondition<String,String> sg = new ScatterGatherCondition<String,String>(
+            endPoint,Arrays.asList("a","b","c"),quorum,null);
+        sg.park(listener);
+        return sg;
+    }
+
+    public void testQuorum() throws Exception {
+        ScatterGatherCondition<String,String> sg = park(2);
+        assertEquals(1,endPoint.batches);
+        assertEquals(3,endPoint.queue.size());
+
+        endPoint.handleMessage("b:1");
+        assertEquals(0,listener.count);
+        endPoint.handleMessage("a:2");
+        assertEquals(1,listener.count);
+        assertEquals(Arrays.asList("b:1","a:2"),sg.getReturnValue());
+        // nobody waits for the rest
+        assertTrue(endPoint.queue.isEmpty());
+    }
+
+    public void testDuplicateReplies() throws Exception {
+        ScatterGatherCondition<String,String> sg = park(2);
+
+        sg.handleMessage("a:1");
+        // a reply to the same message doesn't count
+        sg.handleMessage("a:2");
+        assertEquals(0,listener.count);
+        sg.handleMessage("c:3");
+        assertEquals(1,listener.count);
+        assertEquals(Arrays.asList("a:1","c:3"),sg.getReturnValue());
+
+        // late replies are ignored
+        sg.handleMessage("b:4");
+        assertEquals(1,listener.count);
+    }
+
+    public void testTimeout() throws Exception {
+        ScatterGatherCondition<String,String> sg = park(3);
+        endPoint.handleMessage("c:1");
+
+        // what the timer does when it fires
+        sg.onActivated(null);
+        assertEquals(1,listener.count);
+        assertEquals(Arrays.asList("c:1"),sg.getReturnValue());
+        assertTrue(endPoint.queue.isEmpty());
+
+        // the quorum reached after the timeout doesn't activate it again
+        sg.handleMessage("a:2");
+        sg.handleMessage("b:3");
+        assertEquals(1,listener.count);
+    }
+
+    /**
+     * Replies that arrive before the condition registers itself are not lost.
+     */
+    public void testEarlyReplies() throws Exception {
+        endPoint.replyOnSend = true;
+        ScatterGatherCondition<String,String> sg = park(3);
+        assertEquals(1,listener.count);
+        assertEquals(Arrays.asList("a:early","b:early","c:early"),sg.getReturnValue());
+        assertTrue(endPoint.queue.isEmpty());
+
+        // replies nobody waits for are not kept once the sending is over
+        endPoint.replyOnSend = false;
+        listener.count = 0;
+        sg = park(1);
+        endPoint.handleMessage("x:1");
+        endPoint.handleMessage("b:1");
+        assertEquals(1,listener.count);
+    }
+
+    public void testInterrupt() throws Exception {
+        ScatterGatherCondition<String,String> sg = park(1);
+        sg.interrupt();
+        assertTrue(endPoint.queue.isEmpty());
+        sg.handleMessage("a:1");
+        assertEquals(0,listener.count);
+    }
+
+    public void testOnLoad() throws Exception {
+        ScatterGatherCondition<String,String> sg = park(2);
+        endPoint.handleMessage("a:1");
+
+        // the registrations are lost when the engine restarts
+        endPoint.queue.clear();
+        sg.onLoad();
+        // only the messages not replied yet are registered again
+        assertEquals(Arrays.asList("b","c"),sortedKeys());
+        assertEquals(1,endPoint.batches);
+
+        endPoint.handleMessage("c:2");
+        assertEquals(1,listener.count);
+        assertEquals(Arrays.asList("a:1","c:2"),sg.getReturnValue());
+
+        // once done, nothing is registered on load
+        endPoint.queue.clear();
+        sg.onLoad();
+        assertTrue(endPoint.queue.isEmpty());
+    }
+
+    private List<String> sortedKeys() {
+        List<String> keys = new ArrayList<String>(endPoint.queue.keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+}
@@ -0,0 +1,110 @@
+package test;
+
+import dalma.endpoints.invm.Channel;
+import dalma.endpoints.invm.Message;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exercises {@link Channel} from plain threads.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class ChannelTest extends TestCase {
+    private static final int N_SENDERS = 4;
+    private static final int N_MESSAGES = 10000;
+
+    public void testConcurrentSend() throws Exception {
+        concurrentSend(new Channel());
+    }
+
+    public void testConcurrentSendToBoundedChannel() throws Exception {
+        concurrentSend(new Channel(16));
+    }
+
+    private void concurrentSend(final Channel rcv) throws Exception {
+        Thread[] senders = new Thread[N_SENDERS];
+        for( int i=0; i<N_SENDERS; i++ ) {
+            final Channel from = new Channel();
+            final int id = i;
+            senders[i] = new Thread() {
+                public void run() {
+                    for( int j=0; j<N_MESSAGES; j++ )
+                        from.send(new Message<int[]>(new int[]{id,j}),rcv);
+                }
+            };
+            senders[i].start();
+        }
+
+        // messages from the same sender must arrive in order
+        int[] next = new int[N_SENDERS];
+        for( int i=0; i<N_SENDERS*N_MESSAGES; i++ ) {
+            Message<int[]> msg = rcv.receive();
+            assertEquals(next[msg.payload[0]]++,msg.payload[1]);
+        }
+        for (Thread t : senders)
+            t.join();
+    }
+
+    public void testBulk() throws Exception {
+        final Channel a = new Channel();
+        final Channel b = new Channel();
+
+        List<Message<Integer>> msgs = new ArrayList<Message<Integer>>();
+        for( int i=0; i<10; i++ )
+            msgs.add(new Message<Integer>(i));
+        a.send(msgs,b);
+
+        List<Message<Integer>> r = b.drain(4);
+        assertEquals(4,r.size());
+        assertEquals(0,r.get(0).payload.intValue());
+        assertSame(a,r.get(0).getFrom());
+        assertSame(b,r.get(0).getTo());
+
+        r = b.drain(100);
+        assertEquals(6,r.size());
+        assertEquals(9,r.get(5).payload.intValue());
+
+        // drain waits for a message
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new Error(e);
+                }
+                a.send(new Message<Integer>(10),b);
+            }
+        }.start();
+        r = b.drain(100);
+        assertEquals(1,r.size());
+        assertEquals(10,r.get(0).payload.intValue());
+    }
+
+    public void testBackpressure() throws Exception {
+        final Channel a = new Channel();
+        final Channel b = new Channel(2);
+        assertEquals(2,b.getCapacity());
+
+        Thread sender = new Thread() {
+            public void run() {
+                List<Message<Integer>> msgs = new ArrayList<Message<Integer>>();
+                for( int i=0; i<5; i++ )
+                    msgs.add(new Message<Integer>(i));
+                a.send(msgs,b);
+            }
+        };
+        sender.start();
+        sender.join(200);
+        // the channel is full
+        assertTrue(sender.isAlive());
+
+        for( int i=0; i<5; i++ ) {
+            Message<Integer> msg = b.receive();
+            assertEquals(i,msg.payload.intValue());
+        }
+        sender.join();
+    }
+}
@@ -0,0 +1,37 @@
+package test;
+
+import dalma.metrics.Histogram;
+import junit.framework.TestCase;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class HistogramTest extends TestCase {
+    public void testEmpty() {
+        Histogram h = new Histogram();
+        assertEquals(0,h.getCount());
+        assertEquals(0,h.getPercentile(99));
+    }
+
+    public void testPercentile() {
+        Histogram h = new Histogram();
+        for( int i=1; i<=1000; i++ )
+            h.record(i);
+        assertEquals(1000,h.getCount());
+        assertEquals(1000,h.getMax());
+        assertEquals(500.5,h.getMean(),0.001);
+
+        // values are accurate within about 6%
+        assertTrue(Math.abs(h.getPercentile(50)-500)<=500*0.07);
+        assertTrue(Math.abs(h.getPercentile(99)-990)<=990*0.07);
+        assertEquals(1000,h.getPercentile(100));
+    }
+
+    public void testLargeValue() {
+        Histogram h = new Histogram();
+        h.record(Long.MAX_VALUE);
+        h.record(-1);
+        assertEquals(Long.MAX_VALUE,h.getPercentile(100));
+        assertEquals(0,h.getPercentile(50));
+    }
+}
@@ -0,0 +1,183 @@
+package test;
+
+import com.thoughtworks.xstream.XStream;
+import dalma.Condition;
+import dalma.impl.OrCondition;
+import dalma.spi.ConditionListener;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class OrConditionTest extends TestCase {
+    private static final class Branch extends Condition<Integer> {
+        boolean parked;
+        boolean activateOnPark;
+        /**
+         * Interrupts this condition when it's parked.
+         */
+        transient Condition interruptOnPark;
+
+        public void onParked() {
+            parked = true;
+            if(activateOnPark)
+                activate(-1);
+            if(interruptOnPark!=null)
+                interruptOnPark.interrupt();
+        }
+
+        public void interrupt() {
+            assertTrue(parked);
+            parked = false;
+        }
+
+        public void onLoad() {
+            loaded++;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Number of {@link Branch}es restored.
+     */
+    private static int loaded;
+
+    private static final class Listener implements ConditionListener, Serializable {
+        int count;
+        public void onActivated(Condition cond) {
+            count++;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private final List<Condition<? extends Integer>> branches = new ArrayList<Condition<? extends Integer>>();
+
+    private Branch branch(int i) {
+        return (Branch)branches.get(i);
+    }
+
+    protected void setUp() throws Exception {
+        for( int i=0; i<10; i++ )
+            branches.add(new Branch());
+    }
+
+    public void testActivate() throws Exception {
+        OrCondition<Integer> or = new OrCondition<Integer>(branches);
+        Listener l = new Listener();
+        or.park(l);
+        for( int i=0; i<10; i++ )
+            assertTrue(branch(i).parked);
+
+        branch(3).activate(3);
+        assertEquals(1,l.count);
+        assertSame(branch(3),or.getReturnValue());
+        // the rest are interrupted
+        for( int i=0; i<10; i++ )
+            assertEquals(i==3,branch(i).parked);
+
+        // late activation is ignored
+        branch(5).activate(5);
+        assertEquals(1,l.count);
+    }
+
+    public void testActivateWhileParking() throws Exception {
+        branch(2).activateOnPark = true;
+        OrCondition<Integer> or = new OrCondition<Integer>(branches);
+        Listener l = new Listener();
+        or.park(l);
+
+        assertEquals(1,l.count);
+        assertSame(branch(2),or.getReturnValue());
+        // the rest are never parked, and the ones before are interrupted
+        for( int i=0; i<10; i++ )
+            assertEquals(i==2,branch(i).parked);
+    }
+
+    public void testInterruptWhileParking() throws Exception {
+        OrCondition<Integer> or = new OrCondition<Integer>(branches);
+        branch(4).interruptOnPark = or;
+        or.park(new Listener());
+
+        // the ones parked so far, including the one being parked, are interrupted
+        for( int i=0; i<10; i++ )
+            assertFalse(branch(i).parked);
+
+        // activation after the interruption is ignored
+        Listener l = (Listener)or.getOwner();
+        branch(2).activate(2);
+        assertEquals(0,l.count);
+        assertFalse(or.isActive());
+    }
+
+    public void testInterrupt() throws Exception {
+        OrCondition<Integer> or = new OrCondition<Integer>(branches);
+        or.park(new Listener());
+        or.interrupt();
+        for( int i=0; i<10; i++ )
+            assertFalse(branch(i).parked);
+        // the second interruption is a no-op
+        or.interrupt();
+    }
+
+    public void testSerialization() throws Exception {
+        OrCondition<Integer> or = new OrCondition<Integer>(branches);
+        assertEquals(10,roundTrip(or));
+
+        or.park(new Listener());
+        branch(7).activate(7);
+        // only the winner is kept
+        assertEquals(1,roundTrip(or));
+    }
+
+    /**
+     * Conversations are persisted by XStream, so the XML form
+     * needs to stay the same as that of the earlier versions.
+     */
+    public void testXStream() throws Exception {
+        XStream xs = new XStream();
+        String xml = xs.toXML(new OrCondition<Integer>(branches));
+        assertTrue(xml.indexOf("serialization")<0);
+
+        // the form written by the earlier versions
+        OrCondition<Integer> r = (OrCondition<Integer>)xs.fromXML(
+            "<dalma.impl.OrCondition>" +
+              "<conditions class='list'>" +
+                "<test.OrConditionTest-Branch><isActive>false</isActive><parked>true</parked><activateOnPark>false</activateOnPark></test.OrConditionTest-Branch>" +
+                "<test.OrConditionTest-Branch><isActive>false</isActive><parked>true</parked><activateOnPark>false</activateOnPark></test.OrConditionTest-Branch>" +
+              "</conditions>" +
+              "<isActive>false</isActive>" +
+            "</dalma.impl.OrCondition>");
+        loaded = 0;
+        r.onLoad();
+        assertEquals(2,loaded);
+
+        // and the new form reads back, too
+        r = (OrCondition<Integer>)xs.fromXML(xml);
+        loaded = 0;
+        r.onLoad();
+        assertEquals(10,loaded);
+    }
+
+    private int roundTrip(OrCondition<Integer> or) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(or);
+        oos.close();
+
+        OrCondition<Integer> r = (OrCondition<Integer>)new ObjectInputStream(
+            new ByteArrayInputStream(baos.toByteArray())).readObject();
+        loaded = 0;
+        r.onLoad();
+        return loaded;
+    }
+}
@@ -24,7 +24,10 @@ import javax.jms.QueueSession;
 import javax.jms.StreamMessage;
 import javax.jms.TextMessage;
 import javax.jms.Session;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.logging.Level;
 
 /**
@@ -33,8 +36,17 @@ import java.util.logging.Level;
  * @author Kohsuke Kawaguchi
  */
 public class JMSEndPoint extends MultiplexedEndPoint<String,Message> implements MessageListener {
+    /**
+     * Session through which messages are received.
+     */
     private final Session session;
 
+    /**
+     * Session through which messages are sent.
+     * Can be the same as {@link #session}.
+     */
+    private final Session sendSession;
+
     private final MessageProducer sender;
     private final MessageConsumer consumer;
 
@@ -60,10 +72,30 @@ public class JMSEndPoint extends MultiplexedEndPoint<String,Message> implements
      *      must not be null.
      */
     public JMSEndPoint(String name, Session session, Destination out, Destination in) throws JMSException {
+        this(name,session,session,out,in);
+    }
+
+    /**
+     * Creates a new {@link JMSEndPoint} that sends messages through its own session.
+     *
+     * <p>
+     * If the send session is transacted, the messages sent together by
+     * {@link #scatterGather(Collection, int, Date)} are committed in one transaction,
+     * without committing what's received through the other session.
+     *
+     * @param receiveSession
+     *      JMS messages are received through this session. must not be null.
+     * @param sendSession
+     *      JMS messages are sent through this session. must not be null.
+     *      must be different from {@code receiveSession} for messages to be
+     *      sent in a transaction.
+     */
+    public JMSEndPoint(String name, Session receiveSession, Session sendSession, Destination out, Destination in) throws JMSException {
         super(name);
-        this.session = session;
-        sender =session.createProducer(out);
-        consumer = session.createConsumer(in);
+        this.session = receiveSession;
+        this.sendSession = sendSession;
+        sender = sendSession.createProducer(out);
+        consumer = receiveSession.createConsumer(in);
         consumer.setMessageListener(this);
     }
 
@@ -118,6 +150,12 @@ public class JMSEndPoint extends MultiplexedEndPoint<String,Message> implements
      * Sends a message and returns immediately.
      */
     public String send(Message msg) {
+        synchronized(sendSession) {
+            return doSend(msg);
+        }
+    }
+
+    private String doSend(Message msg) {
         try {
             Message providerMsg = unwrap(msg);
             sender.send(providerMsg);
@@ -132,6 +170,36 @@ public class JMSEndPoint extends MultiplexedEndPoint<String,Message> implements
         }
     }
 
+    /**
+     * Sends messages and returns immediately.
+     *
+     * <p>
+     * If this endpoint has its own transacted session for sending,
+     * the messages are sent in one transaction.
+     */
+    protected List<String> send(Collection<? extends Message> msgs) {
+        synchronized(sendSession) {
+            try {
+                List<String> ids = new ArrayList<String>(msgs.size());
+                // committing the shared session would also acknowledge the received messages
+                boolean transacted = sendSession!=session && sendSession.getTransacted();
+                try {
+                    for (Message msg : msgs)
+                        ids.add(doSend(msg));
+                    if(transacted)
+                        sendSession.commit();
+                } catch (QueueException e) {
+                    if(transacted)
+                        sendSession.rollback();
+                    throw e;
+                }
+                return ids;
+            } catch (JMSException e) {
+                throw new QueueException(e);
+            }
+        }
+    }
+
 //
 //
 // API methods
@@ -198,27 +266,27 @@ public class JMSEndPoint extends MultiplexedEndPoint<String,Message> implements
      */
     private <T extends Message> T unwrap(T msg) throws JMSException {
         if(msg instanceof BytesMessageImpl) {
-            BytesMessage r = session.createBytesMessage();
+            BytesMessage r = sendSession.createBytesMessage();
             ((BytesMessageImpl)msg).writeTo(r);
             return (T)r;
         }
         if(msg instanceof MapMessageImpl) {
-            MapMessage r = session.createMapMessage();
+            MapMessage r = sendSession.createMapMessage();
             ((MapMessageImpl)msg).writeTo(r);
             return (T)r;
         }
         if(msg instanceof ObjectMessage) {
-            ObjectMessage r = session.createObjectMessage();
+            ObjectMessage r = sendSession.createObjectMessage();
             ((ObjectMessageImpl)msg).writeTo(r);
             return (T)r;
         }
         if(msg instanceof StreamMessage) {
-            StreamMessage r = session.createStreamMessage();
+            StreamMessage r = sendSession.createStreamMessage();
             ((StreamMessageImpl)msg).writeTo(r);
             return (T)r;
         }
         if(msg instanceof TextMessage) {
-            TextMessage r = session.createTextMessage();
+            TextMessage r = sendSession.createTextMessage();
             ((TextMessageImpl)msg).writeTo(r);
             return (T)r;
         }
@@ -245,4 +313,8 @@ public class JMSEndPoint extends MultiplexedEndPoint<String,Message> implements
     public ReplyIterator<Message> waitForMultipleReplies(Message outgoing, Date expirationDate) {
         return (ReplyIterator)super.waitForMultipleReplies(outgoing, expirationDate);
     }
+
+    public List<Message> scatterGather(Collection<? extends Message> outgoing, int quorum, Date timeout) {
+        return (List<Message>)super.scatterGather(outgoing, quorum, timeout);
+    }
 }
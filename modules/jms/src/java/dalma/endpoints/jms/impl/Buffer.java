@@ -1,21 +1,32 @@
 package dalma.endpoints.jms.impl;
 
+import dalma.spi.BlobStore;
+
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 
 /**
  * Readable/writable memory buffer.
  *
+ * <p>
+ * When persisted as a part of a conversation, a big buffer is stored
+ * in the {@link BlobStore}.
+ *
  * @author Kohsuke Kawaguchi
  */
-final class Buffer extends ByteArrayOutputStream {
+final class Buffer extends ByteArrayOutputStream implements Serializable {
     public Buffer() {
     }
 
     public Buffer(byte[] data) {
         super(0);
         super.buf = data;
+        super.count = data.length;
     }
 
     public InputStream newInputStream() {
@@ -28,4 +39,17 @@ final class Buffer extends ByteArrayOutputStream {
     public int size() {
         return count;
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        BlobStore.writeBytes(out,buf,0,count);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        buf = BlobStore.readBytes(in);
+        count = buf.length;
+    }
+
+    private static final long serialVersionUID = 1L;
 }
@@ -9,6 +9,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
@@ -18,11 +20,18 @@ import java.io.Serializable;
  * @ThirdParty this class contains code released under ASL.
  */
 public class BytesMessageImpl extends MessageImpl<BytesMessage> implements BytesMessage {
-    private DataOutputStream dataOut;
+    private transient DataOutputStream dataOut;
     private Buffer buffer;
-    private DataInputStream dataIn;
+    private transient DataInputStream dataIn;
     private transient long bodyLength = 0;
 
+    /**
+     * Remembers {@link #dataOut} and {@link #dataIn} across serialization.
+     * Only meaningful during serialization.
+     */
+    private boolean writing;
+    private int readPosition;
+
     public BytesMessageImpl() {
     }
 
@@ -486,5 +495,25 @@ public class BytesMessageImpl extends MessageImpl<BytesMessage> implements Bytes
         }
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        writing = dataOut!=null;
+        if(writing)
+            dataOut.flush();
+        readPosition = dataIn==null ? -1 : buffer.size()-dataIn.available();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if(buffer==null)
+            return;
+        if(writing)
+            dataOut = new DataOutputStream(buffer);
+        if(readPosition>=0) {
+            dataIn = new DataInputStream(buffer.newInputStream());
+            dataIn.skipBytes(readPosition);
+        }
+    }
+
     private static final long serialVersionUID = 1L;
 }
@@ -58,8 +58,12 @@ public class JMSEndPointFactory implements EndPointFactory {
                 throw new ParseException("Unknown mode: "+modeStr,-1);
             int mode = MODE_TABLE.get(modeStr);
 
+            boolean transacted = qp.has("transacted");
+            // messages are sent from conversations while the listener thread receives,
+            // so they go through separate sessions
             return new JMSEndPoint(endPointName,
-                con.createSession(qp.has("transacted"),mode),
+                con.createSession(transacted,mode),
+                con.createSession(transacted,mode),
                 out,in);
         } catch (URISyntaxException e) {
             ParseException pe = new ParseException(e.getMessage(), e.getIndex());
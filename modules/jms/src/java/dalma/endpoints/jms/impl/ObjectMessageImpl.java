@@ -1,12 +1,22 @@
 package dalma.endpoints.jms.impl;
 
+import dalma.spi.BlobStore;
+
 import javax.jms.JMSException;
 import javax.jms.ObjectMessage;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
 import java.io.Serializable;
 
 /**
  * {@link Serializable} {@link ObjectMessage}.
  *
+ * <p>
+ * When persisted as a part of a conversation, a big object is stored
+ * in the {@link BlobStore}.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class ObjectMessageImpl extends MessageImpl<ObjectMessage> implements ObjectMessage {
@@ -38,5 +48,30 @@ public class ObjectMessageImpl extends MessageImpl<ObjectMessage> implements Obj
         return object;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // the object is written separately so that it can go to the blob store
+        Serializable o = object;
+        object = null;
+        try {
+            out.defaultWriteObject();
+        } finally {
+            object = o;
+        }
+        BlobStore.writeObject(out,o);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if(object!=null)
+            return; // written by an earlier version
+        try {
+            object = (Serializable)BlobStore.readObject(in);
+        } catch (OptionalDataException e) {
+            if(!e.eof)
+                throw e;
+            // written by an earlier version without an object
+        }
+    }
+
     private static final long serialVersionUID = 1L;
 }
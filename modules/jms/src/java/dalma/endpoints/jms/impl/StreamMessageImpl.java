@@ -11,6 +11,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 
 /**
  * @ThirdParty this class contains code released under ASL.
@@ -23,11 +25,18 @@ public class StreamMessageImpl extends MessageImpl<StreamMessage> implements Str
      */
     boolean readOnlyMode = false;
 
-    private DataInputStream dataIn;
-    private DataOutputStream dataOut;
+    private transient DataInputStream dataIn;
+    private transient DataOutputStream dataOut;
     private Buffer bytesOut = new Buffer();
     private int bytesToRead = -1;
 
+    /**
+     * Remembers {@link #dataOut} and {@link #dataIn} across serialization.
+     * Only meaningful during serialization.
+     */
+    private boolean writing;
+    private int readPosition;
+
     public StreamMessageImpl() {
     }
 
@@ -1225,6 +1234,24 @@ public class StreamMessageImpl extends MessageImpl<StreamMessage> implements Str
         dataOut = null;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        writing = dataOut!=null;
+        if(writing)
+            dataOut.flush();
+        readPosition = dataIn==null ? -1 : bytesOut.size()-dataIn.available();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if(writing)
+            dataOut = new DataOutputStream(bytesOut);
+        if(readPosition>=0) {
+            dataIn = new DataInputStream(bytesOut.newInputStream());
+            dataIn.skipBytes(readPosition);
+        }
+    }
+
     /**
      * message property types
      */